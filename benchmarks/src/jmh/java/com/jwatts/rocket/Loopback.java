@@ -0,0 +1,69 @@
+package com.jwatts.rocket;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A server and a client LaunchPad connected over the loopback interface. The
+ * server counts one-way Rockets, and echoes requests back as replies.
+ * Listeners run on the Reactor threads, so the numbers measure Rocket rather
+ * than a thread pool.
+ *
+ * @author joeywatts
+ *
+ */
+class Loopback {
+	protected LaunchPad server, clientPad;
+	protected LandingZone client;
+	protected final AtomicLong landed = new AtomicLong();
+
+	protected static Loopback open() throws IOException, InterruptedException {
+		Loopback loopback = new Loopback();
+		int port;
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			port = socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+		final AtomicLong landed = loopback.landed;
+		loopback.server = LaunchPad.serve(port, 1)
+				.dispatchOn(Dispatchers.inline())
+				.onLanding(new LaunchPad.LandingListener() {
+					@Override
+					public void onLanding(LaunchPad launchPad, Rocket rocket) {
+						if (rocket.isRequest()) {
+							rocket.reply(rocket);
+						} else {
+							landed.incrementAndGet();
+						}
+					}
+				});
+		loopback.clientPad = LaunchPad.connect("127.0.0.1", port).dispatchOn(
+				Dispatchers.inline());
+		while (loopback.clientPad.getAvailableLandingZones().isEmpty()
+				|| loopback.server.getAvailableLandingZones().isEmpty()) {
+			Thread.sleep(10);
+		}
+		loopback.client = loopback.clientPad.getAvailableLandingZones().get(0);
+		while (!loopback.client.peerSupports(LandingZone.FEATURE_FLOW_CONTROL)) {
+			Thread.sleep(10);
+		}
+		return loopback;
+	}
+
+	/**
+	 * Waits until the server has landed a number of one-way Rockets.
+	 */
+	protected void awaitLanded(long count) {
+		while (landed.get() < count) {
+			Thread.yield();
+		}
+	}
+
+	protected void close() {
+		clientPad.shutdown();
+		server.shutdown();
+	}
+}
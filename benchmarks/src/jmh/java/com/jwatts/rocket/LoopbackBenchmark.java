@@ -0,0 +1,69 @@
+package com.jwatts.rocket;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * End-to-end throughput and latency between two LaunchPads over the loopback
+ * interface, at several Rocket sizes.
+ *
+ * @author joeywatts
+ *
+ */
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+	private static final int BATCH = 1000;
+
+	@Param({ "64", "1024", "16384" })
+	public int size;
+
+	private Loopback loopback;
+	private Rocket rocket;
+	private long sent;
+
+	@Setup
+	public void setUp() throws Exception {
+		loopback = Loopback.open();
+		rocket = RocketEncodingBenchmark.sampleRocket(size);
+	}
+
+	@TearDown
+	public void tearDown() {
+		loopback.close();
+	}
+
+	/**
+	 * Launches a batch of one-way Rockets and waits for all of them to land.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(BATCH)
+	public void throughput() {
+		for (int i = 0; i < BATCH; i++) {
+			rocket.launch(loopback.client);
+		}
+		sent += BATCH;
+		loopback.awaitLanded(sent);
+	}
+
+	/**
+	 * Sends a request and waits for its reply.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Rocket roundTrip() throws Exception {
+		return loopback.client.request(rocket).get();
+	}
+}
@@ -0,0 +1,90 @@
+package com.jwatts.rocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encoding and decoding a Rocket, without any I/O. The Rocket carries a few
+ * primitives, a short string and a byte array of the given size.
+ *
+ * @author joeywatts
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RocketEncodingBenchmark {
+	@Param({ "16", "256", "4096", "65536" })
+	public int size;
+
+	private BufferPool pool;
+	private Rocket rocket;
+	private int[] ids;
+	private ByteBuffer encoded, encodedCompact;
+
+	@Setup
+	public void setUp() {
+		pool = BufferPool.heap();
+		rocket = sampleRocket(size);
+		ids = rocket.dictionaryIds(new RocketDictionary());
+		encoded = copy(rocket.toRocketBuffer(pool));
+		/* Inline keys, so decoding does not need a LandingZone's definitions. */
+		encodedCompact = copy(rocket.toCompactRocketBuffer(pool,
+				new int[ids.length]));
+	}
+
+	protected static Rocket sampleRocket(int size) {
+		return new Rocket("bench").attachInt("id", 42)
+				.attachLong("time", 1234567890L).attachDouble("score", 0.5)
+				.attach("name", "benchmark").attach("payload", new byte[size]);
+	}
+
+	private static ByteBuffer copy(RocketBuffer rb) {
+		ByteBuffer buffer = ByteBuffer.allocate(rb.getLength());
+		buffer.put(rb.getBuffer().duplicate()).flip();
+		rb.written();
+		return buffer;
+	}
+
+	@Benchmark
+	public int encode() {
+		RocketBuffer rb = rocket.toRocketBuffer(pool);
+		int length = rb.getLength();
+		rb.written();
+		return length;
+	}
+
+	@Benchmark
+	public int encodeCompact() {
+		RocketBuffer rb = rocket.toCompactRocketBuffer(pool, ids);
+		int length = rb.getLength();
+		rb.written();
+		return length;
+	}
+
+	@Benchmark
+	public Rocket parse() {
+		return new Rocket().parse(null, encoded.duplicate());
+	}
+
+	@Benchmark
+	public Rocket parseCompact() throws IOException {
+		return new Rocket().parseCompact(null, encodedCompact.duplicate());
+	}
+
+	@Benchmark
+	public int indexLazily() throws IOException {
+		Rocket lazy = new Rocket().index(null, encoded.duplicate(), false);
+		return lazy.getInt("id");
+	}
+}
@@ -0,0 +1,87 @@
+package com.jwatts.rocket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Wrapping, writing and parsing single RocketValues.
+ *
+ * @author joeywatts
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RocketValueBenchmark {
+	private String string;
+	private byte[] bytes;
+	private ByteBuffer out, encodedString, encodedInt, encodedBytes;
+
+	@Setup
+	public void setUp() {
+		string = "a short string value";
+		bytes = new byte[1024];
+		out = ByteBuffer.allocate(4096);
+		encodedString = encode(string);
+		encodedInt = encode(42);
+		encodedBytes = encode(bytes);
+	}
+
+	private static ByteBuffer encode(Object o) {
+		ByteBuffer buffer = ByteBuffer.allocate(RocketValue.sizeOf(o));
+		RocketValue.write(buffer, o);
+		buffer.flip();
+		return buffer;
+	}
+
+	@Benchmark
+	public int wrapString() {
+		out.clear();
+		RocketValue.wrap(string).write(out);
+		return out.position();
+	}
+
+	@Benchmark
+	public int wrapInt() {
+		out.clear();
+		RocketValue.wrap(42).write(out);
+		return out.position();
+	}
+
+	@Benchmark
+	public int wrapBytes() {
+		out.clear();
+		RocketValue.wrap(bytes).write(out);
+		return out.position();
+	}
+
+	@Benchmark
+	public int writeString() {
+		out.clear();
+		RocketValue.write(out, string);
+		return out.position();
+	}
+
+	@Benchmark
+	public Object parseString() {
+		return RocketValue.parse(encodedString.duplicate());
+	}
+
+	@Benchmark
+	public Object parseInt() {
+		return RocketValue.parse(encodedInt.duplicate());
+	}
+
+	@Benchmark
+	public Object parseBytes() {
+		return RocketValue.parse(encodedBytes.duplicate());
+	}
+}
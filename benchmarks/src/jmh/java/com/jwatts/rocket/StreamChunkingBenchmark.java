@@ -0,0 +1,76 @@
+package com.jwatts.rocket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cutting a RocketStream's data into framed chunks, as the writing side of a
+ * LandingZone does. The chunks are released straight away instead of being
+ * written, so only the copying and framing is measured.
+ *
+ * @author joeywatts
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StreamChunkingBenchmark {
+	@Param({ "1024", "8192", "65536" })
+	public int chunkSize;
+
+	@Param({ "false", "true" })
+	public boolean compressed;
+
+	private Loopback loopback;
+	private RocketStream stream;
+
+	@Setup
+	public void setUp() throws Exception {
+		loopback = Loopback.open();
+		final byte[] data = new byte[1 << 20];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 61);
+		}
+		stream = RocketStream.createStream(new RocketStream.StreamData() {
+			private int position;
+
+			@Override
+			public ByteBuffer getBuffer() {
+				int length = Math.min(16384, data.length - position);
+				ByteBuffer buffer = ByteBuffer.wrap(data, position, length);
+				position = (position + length) % data.length;
+				return buffer;
+			}
+
+			@Override
+			public boolean isFinished() {
+				return false;
+			}
+		});
+		stream.setChunkSize(chunkSize);
+		stream.setCompressed(compressed);
+	}
+
+	@TearDown
+	public void tearDown() {
+		loopback.close();
+	}
+
+	@Benchmark
+	public int getBuffer() {
+		RocketBuffer chunk = stream.getBuffer(loopback.client);
+		int length = chunk.getLength();
+		chunk.written();
+		return length;
+	}
+}
@@ -0,0 +1,249 @@
+package com.jwatts.rocket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of ByteBuffers grouped into power-of-two size classes. Frames read
+ * by a LandingZone are read into buffers from its LaunchPad's pool and
+ * released once they have been consumed, so that steady traffic reuses the
+ * same few buffers instead of allocating one per frame.
+ *
+ * A released buffer must not be used again by the caller, and must not be
+ * released twice.
+ *
+ * @author joeywatts
+ *
+ */
+public class BufferPool {
+	public static final int DEFAULT_MIN_BUFFER_SIZE = 512;
+	public static final int DEFAULT_MAX_BUFFER_SIZE = 1 << 20;
+	public static final int DEFAULT_BUFFERS_PER_CLASS = 64;
+
+	private final boolean direct;
+	private final int minShift, maxShift;
+	private final int buffersPerClass;
+	private final ConcurrentLinkedQueue<ByteBuffer>[] classes;
+	private final AtomicInteger[] classCounts;
+
+	private final LongAdder acquired, reused, allocated, oversized, released,
+			discarded;
+
+	/**
+	 * Creates a new BufferPool.
+	 *
+	 * @param direct
+	 *            whether to pool direct buffers rather than heap buffers.
+	 * @param minBufferSize
+	 *            the smallest size class, rounded up to a power of two.
+	 * @param maxBufferSize
+	 *            the largest size class, rounded up to a power of two. Larger
+	 *            requests are allocated without pooling.
+	 * @param buffersPerClass
+	 *            the maximum number of idle buffers kept per size class.
+	 */
+	@SuppressWarnings("unchecked")
+	public BufferPool(boolean direct, int minBufferSize, int maxBufferSize,
+			int buffersPerClass) {
+		if (minBufferSize <= 0 || maxBufferSize < minBufferSize) {
+			throw new IllegalArgumentException("Invalid buffer size range.");
+		}
+		this.direct = direct;
+		this.minShift = shiftFor(minBufferSize);
+		this.maxShift = shiftFor(maxBufferSize);
+		this.buffersPerClass = buffersPerClass;
+		int count = maxShift - minShift + 1;
+		classes = (ConcurrentLinkedQueue<ByteBuffer>[])
+				new ConcurrentLinkedQueue<?>[count];
+		classCounts = new AtomicInteger[count];
+		for (int i = 0; i < count; i++) {
+			classes[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			classCounts[i] = new AtomicInteger();
+		}
+		acquired = new LongAdder();
+		reused = new LongAdder();
+		allocated = new LongAdder();
+		oversized = new LongAdder();
+		released = new LongAdder();
+		discarded = new LongAdder();
+	}
+
+	/**
+	 * Creates a pool of heap buffers with the default size classes.
+	 *
+	 * @return the BufferPool.
+	 */
+	public static BufferPool heap() {
+		return new BufferPool(false, DEFAULT_MIN_BUFFER_SIZE,
+				DEFAULT_MAX_BUFFER_SIZE, DEFAULT_BUFFERS_PER_CLASS);
+	}
+
+	/**
+	 * Creates a pool of direct buffers with the default size classes.
+	 *
+	 * @return the BufferPool.
+	 */
+	public static BufferPool direct() {
+		return new BufferPool(true, DEFAULT_MIN_BUFFER_SIZE,
+				DEFAULT_MAX_BUFFER_SIZE, DEFAULT_BUFFERS_PER_CLASS);
+	}
+
+	/**
+	 * Takes a buffer from the pool.
+	 *
+	 * @param size
+	 *            the number of bytes needed.
+	 * @return a buffer with position 0 and limit size. Its capacity may be
+	 *         larger.
+	 */
+	public ByteBuffer acquire(int size) {
+		acquired.increment();
+		int shift = Math.max(shiftFor(size), minShift);
+		if (shift > maxShift) {
+			oversized.increment();
+			return allocate(size);
+		}
+		int index = shift - minShift;
+		ByteBuffer buffer = classes[index].poll();
+		if (buffer == null) {
+			allocated.increment();
+			buffer = allocate(1 << shift);
+		} else {
+			classCounts[index].decrementAndGet();
+			reused.increment();
+		}
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers that were not allocated by this
+	 * pool, and buffers beyond a size class's limit, are left to the garbage
+	 * collector.
+	 *
+	 * @param buffer
+	 *            the buffer.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		released.increment();
+		int capacity = buffer.capacity();
+		int shift = shiftFor(capacity);
+		if (buffer.isDirect() != direct || buffer.isReadOnly()
+				|| capacity != 1 << shift || shift < minShift
+				|| shift > maxShift) {
+			discarded.increment();
+			return;
+		}
+		int index = shift - minShift;
+		if (classCounts[index].incrementAndGet() > buffersPerClass) {
+			classCounts[index].decrementAndGet();
+			discarded.increment();
+			return;
+		}
+		classes[index].offer(buffer);
+	}
+
+	/**
+	 * @return the size of the largest size class. Larger requests are
+	 *         allocated without pooling.
+	 */
+	public int getMaxBufferSize() {
+		return 1 << maxShift;
+	}
+
+	/**
+	 * @return whether this pool hands out direct buffers.
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * @return the number of calls to acquire.
+	 */
+	public long getAcquireCount() {
+		return acquired.sum();
+	}
+
+	/**
+	 * @return the number of acquired buffers that were served from the pool.
+	 */
+	public long getReuseCount() {
+		return reused.sum();
+	}
+
+	/**
+	 * @return the number of pooled buffers that had to be allocated.
+	 */
+	public long getAllocationCount() {
+		return allocated.sum();
+	}
+
+	/**
+	 * @return the number of requests too large for any size class.
+	 */
+	public long getOversizedCount() {
+		return oversized.sum();
+	}
+
+	/**
+	 * @return the number of calls to release.
+	 */
+	public long getReleaseCount() {
+		return released.sum();
+	}
+
+	/**
+	 * @return the number of released buffers that were not kept.
+	 */
+	public long getDiscardCount() {
+		return discarded.sum();
+	}
+
+	/**
+	 * @return the number of idle buffers currently held by the pool.
+	 */
+	public int getIdleBufferCount() {
+		int count = 0;
+		for (AtomicInteger classCount : classCounts) {
+			count += classCount.get();
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of bytes held by idle buffers in the pool.
+	 */
+	public long getIdleBytes() {
+		long bytes = 0;
+		for (int i = 0; i < classCounts.length; i++) {
+			bytes += (long) classCounts[i].get() << (minShift + i);
+		}
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return "BufferPool[direct=" + direct + ", acquired="
+				+ getAcquireCount() + ", reused=" + getReuseCount()
+				+ ", allocated=" + getAllocationCount() + ", oversized="
+				+ getOversizedCount() + ", released=" + getReleaseCount()
+				+ ", discarded=" + getDiscardCount() + ", idleBuffers="
+				+ getIdleBufferCount() + ", idleBytes=" + getIdleBytes() + "]";
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer
+				.allocate(capacity);
+	}
+
+	private static int shiftFor(int size) {
+		return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+}
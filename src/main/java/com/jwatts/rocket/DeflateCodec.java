@@ -0,0 +1,156 @@
+package com.jwatts.rocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A FrameCodec that uses the JDK's Deflater and Inflater. Each thread keeps
+ * its own Deflater and Inflater, which are reset rather than recreated for
+ * every frame.
+ *
+ * @author joeywatts
+ *
+ */
+public class DeflateCodec implements FrameCodec {
+	public static final byte ID = 1;
+
+	private final ThreadLocal<Deflater> deflaters;
+	private final ThreadLocal<Inflater> inflaters;
+
+	public DeflateCodec() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Creates a DeflateCodec.
+	 *
+	 * @param level
+	 *            the compression level, from 0 to 9, or
+	 *            Deflater.DEFAULT_COMPRESSION.
+	 */
+	public DeflateCodec(final int level) {
+		deflaters = new ThreadLocal<Deflater>() {
+			@Override
+			protected Deflater initialValue() {
+				return new Deflater(level);
+			}
+		};
+		inflaters = new ThreadLocal<Inflater>() {
+			@Override
+			protected Inflater initialValue() {
+				return new Inflater();
+			}
+		};
+	}
+
+	@Override
+	public byte getId() {
+		return ID;
+	}
+
+	@Override
+	public boolean compress(ByteBuffer[] sources, ByteBuffer destination) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		byte[] out;
+		int offset;
+		int length = destination.remaining();
+		if (destination.hasArray()) {
+			out = destination.array();
+			offset = destination.arrayOffset() + destination.position();
+		} else {
+			out = new byte[length];
+			offset = 0;
+		}
+		int written = 0;
+		for (int i = 0; i < sources.length; i++) {
+			setInput(deflater, sources[i]);
+			boolean last = i == sources.length - 1;
+			if (last) {
+				deflater.finish();
+			}
+			while (last ? !deflater.finished() : !deflater.needsInput()) {
+				if (written == length) {
+					return false;
+				}
+				written += deflater.deflate(out, offset + written, length
+						- written);
+			}
+		}
+		if (destination.hasArray()) {
+			destination.position(destination.position() + written);
+		} else {
+			destination.put(out, 0, written);
+		}
+		return true;
+	}
+
+	@Override
+	public void decompress(ByteBuffer source, ByteBuffer destination)
+			throws IOException {
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		setInput(inflater, source);
+		byte[] out;
+		int offset;
+		int length = destination.remaining();
+		if (destination.hasArray()) {
+			out = destination.array();
+			offset = destination.arrayOffset() + destination.position();
+		} else {
+			out = new byte[length];
+			offset = 0;
+		}
+		int read = 0;
+		try {
+			while (read < length) {
+				int n = inflater.inflate(out, offset + read, length - read);
+				if (n == 0 && inflater.needsDictionary()) {
+					/* Nothing more can be inflated without it. */
+					throw new IOException(
+							"Compressed frame needs a preset dictionary.");
+				}
+				if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+					throw new IOException("Compressed frame is too short.");
+				}
+				read += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		}
+		if (destination.hasArray()) {
+			destination.position(destination.position() + read);
+		} else {
+			destination.put(out, 0, read);
+		}
+	}
+
+	private static void setInput(Deflater deflater, ByteBuffer source) {
+		if (source.hasArray()) {
+			deflater.setInput(source.array(),
+					source.arrayOffset() + source.position(),
+					source.remaining());
+		} else {
+			deflater.setInput(copy(source));
+		}
+	}
+
+	private static void setInput(Inflater inflater, ByteBuffer source) {
+		if (source.hasArray()) {
+			inflater.setInput(source.array(),
+					source.arrayOffset() + source.position(),
+					source.remaining());
+		} else {
+			inflater.setInput(copy(source));
+		}
+	}
+
+	private static byte[] copy(ByteBuffer source) {
+		byte[] bytes = new byte[source.remaining()];
+		source.duplicate().get(bytes);
+		return bytes;
+	}
+}
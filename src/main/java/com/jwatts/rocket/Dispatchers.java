@@ -0,0 +1,129 @@
+package com.jwatts.rocket;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory methods for the Executors a LaunchPad can use to deliver its
+ * LandingListener and LZCommunicationListener callbacks.
+ *
+ * @author joeywatts
+ *
+ */
+public final class Dispatchers {
+
+	/**
+	 * The default number of callbacks that may wait for a worker before new
+	 * ones are rejected.
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+	private Dispatchers() {
+	}
+
+	/**
+	 * Creates a fixed pool of worker threads backed by a bounded queue. When
+	 * the queue is full, further callbacks are rejected and reported to the
+	 * LaunchPad's ErrorListener instead of piling up in memory.
+	 *
+	 * @param threads
+	 *            the number of worker threads.
+	 * @param queueCapacity
+	 *            the maximum number of callbacks waiting for a worker.
+	 * @return the ExecutorService.
+	 */
+	public static ExecutorService boundedPool(int threads, int queueCapacity) {
+		return new ThreadPoolExecutor(threads, threads, 0L,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						queueCapacity), new DispatchThreadFactory(),
+				new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * Creates a bounded pool with one worker per available processor.
+	 *
+	 * @return the ExecutorService.
+	 */
+	public static ExecutorService boundedPool() {
+		return boundedPool(Runtime.getRuntime().availableProcessors(),
+				DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * Creates an Executor that runs every callback on the LaunchPad's selector
+	 * thread. Only suitable for tiny handlers that never block, since a slow
+	 * callback stalls all I/O on the LaunchPad.
+	 *
+	 * @return the Executor.
+	 */
+	public static Executor inline() {
+		return INLINE;
+	}
+
+	/**
+	 * Creates an Executor that starts a new Thread for every callback.
+	 *
+	 * @return the Executor.
+	 */
+	public static Executor threadPerEvent() {
+		return THREAD_PER_EVENT;
+	}
+
+	/**
+	 * Creates an Executor that starts a new virtual thread for every callback.
+	 * Virtual threads are only available when running on JDK 21 or newer.
+	 *
+	 * @return the ExecutorService.
+	 * @throws UnsupportedOperationException
+	 *             if the running JVM has no virtual threads.
+	 */
+	public static ExecutorService virtualThreads() {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException e) {
+			throw new UnsupportedOperationException(
+					"Virtual threads require JDK 21 or newer.", e);
+		} catch (IllegalAccessException e) {
+			throw new UnsupportedOperationException(e);
+		} catch (InvocationTargetException e) {
+			throw new UnsupportedOperationException(e.getCause());
+		}
+	}
+
+	private static final Executor INLINE = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private static final Executor THREAD_PER_EVENT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			new Thread(command).start();
+		}
+	};
+
+	private static class DispatchThreadFactory implements ThreadFactory {
+		private static final AtomicInteger poolNumber = new AtomicInteger();
+		private final AtomicInteger threadNumber = new AtomicInteger();
+		private final String prefix = "rocket-dispatch-"
+				+ poolNumber.incrementAndGet() + "-";
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix
+					+ threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
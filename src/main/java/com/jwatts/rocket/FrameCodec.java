@@ -0,0 +1,49 @@
+package com.jwatts.rocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses the frames a LandingZone sends. A codec is identified on the
+ * wire by its ID, so both sides must have a codec with the same ID registered
+ * with their LaunchPad; {@link DeflateCodec} is always registered.
+ *
+ * Implementations must be safe to use from several threads at once.
+ *
+ * @author joeywatts
+ *
+ */
+public interface FrameCodec {
+	/**
+	 * @return the ID that identifies this codec on the wire.
+	 */
+	public byte getId();
+
+	/**
+	 * Compresses the remaining bytes of the sources, one after the other,
+	 * into the destination. The sources' positions are left unchanged.
+	 *
+	 * @param sources
+	 *            the data to compress.
+	 * @param destination
+	 *            the buffer to compress into.
+	 * @return false if the compressed data did not fit in the destination's
+	 *         remaining bytes.
+	 */
+	public boolean compress(ByteBuffer[] sources, ByteBuffer destination);
+
+	/**
+	 * Decompresses the remaining bytes of the source, filling the
+	 * destination's remaining bytes exactly.
+	 *
+	 * @param source
+	 *            the compressed data.
+	 * @param destination
+	 *            the buffer to decompress into.
+	 * @throws IOException
+	 *             if the data is corrupt, or does not decompress to the
+	 *             destination's size.
+	 */
+	public void decompress(ByteBuffer source, ByteBuffer destination)
+			throws IOException;
+}
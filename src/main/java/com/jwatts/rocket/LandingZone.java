@@ -1,37 +1,204 @@
 package com.jwatts.rocket;
 
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import com.jwatts.rocket.TimerWheel.Timeout;
 
 public class LandingZone {
+	/**
+	 * The first frame each side sends, listing the features it supports.
+	 * Older peers ignore it, and are then treated as supporting none.
+	 */
+	protected static final byte HEADER_BYTE_TYPE_HELLO = 4;
+	protected static final int FEATURE_FLOW_CONTROL = 1;
+	protected static final int FEATURE_COMPACT_STREAMS = 2;
+	protected static final int FEATURE_COMPACT_ROCKETS = 4;
+
+	/**
+	 * How long a connection in a PooledLandingZone waits for the other side's
+	 * HELLO before it is taken to be an older peer.
+	 */
+	protected static final long HELLO_TIMEOUT_NANOS = TimeUnit.SECONDS
+			.toNanos(1);
+
+	/**
+	 * How long a stream abandoned because its StreamReader failed stays
+	 * registered, at least, so that chunks sent before the other side was told
+	 * to stop are dropped rather than taken for a new stream.
+	 */
+	private static final long RESET_GRACE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	/**
+	 * Defines a dictionary ID used by the compact Rockets that follow it.
+	 */
+	protected static final byte HEADER_BYTE_TYPE_DEFINE = 9;
+
+	/**
+	 * Wraps another frame whose payload has been compressed by a FrameCodec.
+	 */
+	protected static final byte HEADER_BYTE_TYPE_COMPRESSED = 10;
+	protected static final int FEATURE_COMPRESSION = 8;
+
+	/**
+	 * An empty frame sent on an otherwise quiet connection, so the other side
+	 * can tell it is still alive. Older peers ignore it.
+	 */
+	protected static final byte HEADER_BYTE_TYPE_HEARTBEAT = 13;
+
+	/**
+	 * The number of bytes a stream of weight 1 may send per turn.
+	 */
+	protected static final int STREAM_QUANTUM = 64 * 1024;
+
 	private LaunchPad launchPad;
+	private Reactor reactor;
 	private SelectionKey key;
 	private SocketChannel channel;
 	private ConcurrentLinkedQueue<RocketBuffer> writeBuffers;
-	private ByteBuffer currentWriteBuffer[], currentReadBuffer;
+	private ByteBuffer currentReadBuffer;
 	private ByteBuffer readHeaderBuffer;
 
+	/*
+	 * The frames being written. Their headers and buffers are laid out in
+	 * writeBatch so they can be sent with a single gathering write; only the
+	 * last frame of a batch may carry a file region.
+	 */
+	private static final int MAX_BATCH_FRAMES = 128;
+	private ByteBuffer writeBatch[], frameHeaders[];
+	private RocketBuffer batchFrames[];
+	private int batchFrameEnds[];
+	private int batchSlots, batchOffset, batchFrameCount, batchFramesWritten;
+	private long regionPosition, regionRemaining;
+	private long lingerStart;
+	private boolean flushScheduled;
+
+	/*
+	 * Set while a request for OP_WRITE is on its way to the Reactor, so that
+	 * a burst of launches from other threads costs one selector wakeup.
+	 */
+	private AtomicBoolean writeRequested;
+	private Runnable enableWrite;
+
+	private RocketMetrics metrics;
+
+	/*
+	 * Set once the connection has gone offline, before its queues are
+	 * drained. Whatever is queued after that is moved on by requeue.
+	 */
+	private volatile boolean offline;
+
+	/*
+	 * When data was last read from and written to the socket, for the idle
+	 * timeout and heartbeats.
+	 */
+	private long lastRead, lastWrite;
+
+	/*
+	 * When the connection was made, and the delay before reconnecting if it
+	 * drops again soon after; see LaunchPad.removeLandingZone.
+	 */
+	private long connectedAt, reconnectDelay;
+
+	/*
+	 * Bytes of incoming data held for this connection: the frame being read,
+	 * and stream data waiting for its reader. Guarded by this. Reading is
+	 * paused while the LaunchPad's inbound budgets are used up.
+	 */
+	private long inboundBytes;
+	private boolean inboundReleased;
+	private volatile boolean readPaused;
+	private AtomicBoolean resumeRequested;
+	private Runnable resumeRead;
+
 	private Map<UUID, RocketStream> readStreams;
+	private Map<Integer, RocketStream> readStreamIds;
 	private ConcurrentLinkedQueue<RocketStream> writeStreams;
-	private RocketStream writeStream;
+	private ArrayDeque<RocketStream> activeStreams;
+	private Map<UUID, RocketStream> sendingStreams, pausedStreams;
 	private boolean lastWriteWasStream;
+	private volatile int peerFeatures;
+	private boolean awaitingHello;
+	private int peerStreamWindow;
+	private BitSet definedIds;
+	private Map<Integer, String> definitions;
+	private int nextStreamId;
+	private AtomicInteger nextRequestId;
+	private ConcurrentHashMap<Integer, CompletableFuture<Rocket>> pendingRequests;
 
 	protected LandingZone() {
-		currentWriteBuffer = new ByteBuffer[2];
-		currentWriteBuffer[0] = ByteBuffer.allocate(5);
+		writeBatch = new ByteBuffer[MAX_BATCH_FRAMES * 3];
+		frameHeaders = new ByteBuffer[MAX_BATCH_FRAMES];
+		batchFrames = new RocketBuffer[MAX_BATCH_FRAMES];
+		batchFrameEnds = new int[MAX_BATCH_FRAMES];
+		lingerStart = -1;
 		writeStreams = new ConcurrentLinkedQueue<RocketStream>();
 		writeBuffers = new ConcurrentLinkedQueue<RocketBuffer>();
 		readStreams = Collections
 				.synchronizedMap(new HashMap<UUID, RocketStream>());
+		readStreamIds = new HashMap<Integer, RocketStream>();
+		definedIds = new BitSet();
+		definitions = new HashMap<Integer, String>();
+		nextRequestId = new AtomicInteger();
+		pendingRequests = new ConcurrentHashMap<Integer, CompletableFuture<Rocket>>();
 		readHeaderBuffer = ByteBuffer.allocate(5);
+		activeStreams = new ArrayDeque<RocketStream>();
+		sendingStreams = new HashMap<UUID, RocketStream>();
+		pausedStreams = new HashMap<UUID, RocketStream>();
 		lastWriteWasStream = false;
+		writeRequested = new AtomicBoolean();
+		enableWrite = new Runnable() {
+			@Override
+			public void run() {
+				/* Cleared first, so a later enqueue asks again. */
+				writeRequested.set(false);
+				if (key.isValid()) {
+					interest(SelectionKey.OP_WRITE);
+				}
+			}
+		};
+		resumeRequested = new AtomicBoolean();
+		resumeRead = new Runnable() {
+			@Override
+			public void run() {
+				resumeRequested.set(false);
+				if (readPaused && key.isValid()) {
+					readPaused = false;
+					/* The idle timeout starts again from here. */
+					lastRead = System.nanoTime();
+					key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+					if (currentReadBuffer != null
+							&& !currentReadBuffer.hasRemaining()) {
+						/* A whole frame is waiting; the selector won't say so. */
+						try {
+							read();
+						} catch (IOException e) {
+							launchPad.disconnect(key, e);
+						}
+					}
+				}
+			}
+		};
 	}
 
 	/**
@@ -40,154 +207,1512 @@ public class LandingZone {
 	 * @throws IOException
 	 */
 	protected void read() throws IOException {
+		if (readPaused) {
+			return;
+		}
 		int bytesRead = 0;
+		lastRead = System.nanoTime();
 		while (readHeaderBuffer.hasRemaining()) {
 			bytesRead = channel.read(readHeaderBuffer);
 			if (bytesRead == -1) {
 				throw new IOException();
 			}
+			metrics.bytesRead(bytesRead);
 			if (bytesRead == 0) {
-				key.interestOps(SelectionKey.OP_READ);
+				interest(SelectionKey.OP_READ);
 				return;
 			}
 		}
+		int length = readHeaderBuffer.getInt(1);
 		if (currentReadBuffer == null) {
-			int length = readHeaderBuffer.getInt(1);
-			currentReadBuffer = ByteBuffer.allocate(length);
+			if (length < 0 || length > launchPad.getMaxFrameSize()) {
+				throw new IOException("Frame of " + length
+						+ " bytes is larger than the maximum frame size.");
+			}
+			if (!reserveInbound(length)) {
+				pauseReading();
+				return;
+			}
+			currentReadBuffer = launchPad.getBufferPool().acquire(length);
 		}
 		while (currentReadBuffer.hasRemaining()) {
 			bytesRead = channel.read(currentReadBuffer);
 			if (bytesRead == -1) {
 				throw new IOException();
 			}
+			metrics.bytesRead(bytesRead);
 			if (bytesRead == 0) {
-				key.interestOps(SelectionKey.OP_READ);
+				interest(SelectionKey.OP_READ);
 				return;
 			}
 		}
 		/* currentReadBuffer.remaining() == 0 */
-		readHeaderBuffer.position(0);
 		byte type = readHeaderBuffer.get(0);
+		int inflated = 0;
+		if (type == HEADER_BYTE_TYPE_COMPRESSED) {
+			inflated = inflatedLength(currentReadBuffer);
+			if (!reserveInflated(length, inflated)) {
+				/* The frame is kept, and handled once reading resumes. */
+				pauseReading();
+				return;
+			}
+		}
+		readHeaderBuffer.position(0);
 		currentReadBuffer.flip();
+		ByteBuffer frame = currentReadBuffer;
+		currentReadBuffer = null;
+		metrics.frameRead();
+		try {
+			handleFrame(type, frame);
+		} catch (BufferUnderflowException e) {
+			/* Only this connection is dropped, by whoever called read. */
+			throw new IOException("Frame of type " + type + " from "
+					+ getAddress() + " is too short.", e);
+		} catch (IllegalArgumentException e) {
+			/* A malformed varint, or a position outside the frame. */
+			throw new IOException("Frame of type " + type + " from "
+					+ getAddress() + " is malformed.", e);
+		} finally {
+			/* Stream data kept by handleFrame is counted again as it is kept. */
+			addInbound(-length - inflated);
+		}
+	}
+
+	/**
+	 * Stops reading until resumeReading is called, because the inbound
+	 * budgets are used up.
+	 */
+	private void pauseReading() {
+		readPaused = true;
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Gets the size a compressed frame says it decompresses to, so that it
+	 * can be reserved before it is decompressed. A size that is missing or
+	 * out of range is left for decompress to report.
+	 * 
+	 * @param frame
+	 *            the frame, read completely but not yet flipped.
+	 * @return the decompressed size, or zero.
+	 */
+	private int inflatedLength(ByteBuffer frame) {
+		ByteBuffer header = frame.duplicate();
+		header.flip();
+		if (header.remaining() < 3) {
+			return 0;
+		}
+		header.position(2);
+		try {
+			int length = RocketValue.getVarint(header);
+			return length < 0 || length > launchPad.getMaxFrameSize() ? 0
+					: length;
+		} catch (BufferUnderflowException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Reserves inbound memory for a compressed frame's decompressed payload,
+	 * on top of the frame itself. The frame's own reservation is given back
+	 * and taken again together with the payload, so that a frame is still
+	 * always allowed while nothing else is held.
+	 * 
+	 * @param length
+	 *            the size of the frame, which is already reserved.
+	 * @param inflated
+	 *            the size of the payload.
+	 * @return whether the memory was reserved; if not, only the frame is.
+	 */
+	private synchronized boolean reserveInflated(int length, int inflated) {
+		if (inflated == 0) {
+			return true;
+		}
+		addInbound(-length);
+		if (reserveInbound(length + inflated)) {
+			return true;
+		}
+		addInbound(length);
+		return false;
+	}
+
+	/**
+	 * Sets the key's interest ops, leaving out OP_READ while reading is
+	 * paused.
+	 * 
+	 * @param ops
+	 *            the interest ops.
+	 */
+	private void interest(int ops) {
+		key.interestOps(readPaused ? ops & ~SelectionKey.OP_READ : ops);
+	}
+
+	/**
+	 * Reserves inbound memory for a frame, within this connection's budget
+	 * and the LaunchPad's. A frame is always allowed while nothing else is
+	 * held, so frames larger than a budget can still be read one at a time.
+	 * 
+	 * @param bytes
+	 *            the size of the frame.
+	 * @return whether the memory was reserved.
+	 */
+	private synchronized boolean reserveInbound(int bytes) {
+		long budget = launchPad.getZoneInboundBudget();
+		if (bytes > 0 && budget > 0 && inboundBytes > 0
+				&& inboundBytes + bytes > budget) {
+			return false;
+		}
+		if (bytes > 0 && !launchPad.reserveInbound(bytes, this)) {
+			return false;
+		}
+		inboundBytes += bytes;
+		return true;
+	}
+
+	private synchronized void addInbound(long delta) {
+		if (!inboundReleased) {
+			inboundBytes += delta;
+			launchPad.addInbound(delta);
+		}
+	}
+
+	/**
+	 * Counts incoming stream data that is being kept for its reader, or that
+	 * has been handed over or dropped, against the inbound budgets.
+	 * 
+	 * @param delta
+	 *            the change in the number of bytes kept.
+	 */
+	protected void streamBytesBuffered(long delta) {
+		metrics.streamBytesBuffered(delta);
+		addInbound(delta);
+		if (delta < 0 && readPaused) {
+			resumeReading();
+		}
+	}
+
+	/**
+	 * Lets a connection whose reading was paused for lack of inbound memory
+	 * try again. May be called from any thread.
+	 */
+	protected void resumeReading() {
+		if (resumeRequested.compareAndSet(false, true)) {
+			reactor.execute(resumeRead);
+		}
+	}
+
+	/**
+	 * Gives back all the inbound memory this connection holds, once it has
+	 * gone offline.
+	 */
+	protected synchronized void releaseInbound() {
+		if (!inboundReleased) {
+			inboundReleased = true;
+			launchPad.addInbound(-inboundBytes);
+			inboundBytes = 0;
+		}
+	}
+
+	/**
+	 * Handles a frame that has been read completely.
+	 * 
+	 * @param type
+	 *            the frame type.
+	 * @param buffer
+	 *            the frame's payload, from the LaunchPad's BufferPool.
+	 * @throws IOException
+	 */
+	private void handleFrame(byte type, ByteBuffer buffer) throws IOException {
+		boolean finished;
+		UUID uuid;
+		RocketStream rs;
 		switch (type) {
 		case Rocket.HEADER_BYTE_TYPE:
-			launchPad.land(new Rocket().parse(this, currentReadBuffer));
+		case Rocket.HEADER_BYTE_TYPE_COMPACT:
+			landRocket(type == Rocket.HEADER_BYTE_TYPE_COMPACT, buffer);
+			break;
+		case Rocket.HEADER_BYTE_TYPE_REQUEST:
+		case Rocket.HEADER_BYTE_TYPE_REPLY:
+			landCorrelated(type == Rocket.HEADER_BYTE_TYPE_REPLY, buffer);
+			break;
+		case HEADER_BYTE_TYPE_DEFINE:
+			int id = RocketValue.getVarint(buffer);
+			if (id > 0 && id <= RocketDictionary.CAPACITY) {
+				byte[] bytes = new byte[buffer.remaining()];
+				buffer.get(bytes);
+				definitions.put(id, new String(bytes, RocketValue.UTF_8));
+			}
+			launchPad.getBufferPool().release(buffer);
 			break;
 		case RocketStream.HEADER_BYTE_TYPE:
 		case RocketStream.HEADER_BYTE_TYPE_FINISHED:
-			boolean finished = false;
+			finished = false;
 			if (type == RocketStream.HEADER_BYTE_TYPE_FINISHED) {
 				finished = true;
 			}
-			long msb = currentReadBuffer.getLong();
-			long lsb = currentReadBuffer.getLong();
-			UUID uuid = new UUID(msb, lsb);
-			RocketStream rs = null;
-			if (readStreams.containsKey(uuid)) {
-				rs = readStreams.get(uuid);
+			long msb = buffer.getLong();
+			long lsb = buffer.getLong();
+			uuid = new UUID(msb, lsb);
+			rs = streamFor(uuid);
+			/* The stream releases the buffer once its reader is done with it. */
+			rs.data(buffer, finished);
+			if (finished) {
+				lastChunk(rs);
+			}
+			break;
+		case RocketStream.HEADER_BYTE_TYPE_ANNOUNCE:
+			uuid = new UUID(buffer.getLong(),
+					buffer.getLong());
+			readStreamIds.put(RocketValue.getVarint(buffer), streamFor(uuid));
+			launchPad.getBufferPool().release(buffer);
+			break;
+		case RocketStream.HEADER_BYTE_TYPE_COMPACT:
+		case RocketStream.HEADER_BYTE_TYPE_COMPACT_FINISHED:
+			finished = type == RocketStream.HEADER_BYTE_TYPE_COMPACT_FINISHED;
+			int streamId = RocketValue.getVarint(buffer);
+			rs = finished ? readStreamIds.remove(streamId) : readStreamIds
+					.get(streamId);
+			if (rs == null) {
+				/* Chunks are only sent after the stream is announced. */
+				launchPad.getBufferPool().release(buffer);
 			} else {
-				rs = new RocketStream(uuid);
-				readStreams.put(uuid, rs);
+				rs.data(buffer, finished);
+				if (finished) {
+					lastChunk(rs);
+				}
 			}
-			rs.data(currentReadBuffer, finished);
+			break;
+		case RocketStream.HEADER_BYTE_TYPE_CREDIT:
+			uuid = new UUID(buffer.getLong(),
+					buffer.getLong());
+			grantCredit(uuid, buffer.getInt());
+			launchPad.getBufferPool().release(buffer);
+			break;
+		case RocketStream.HEADER_BYTE_TYPE_RESET:
+			uuid = new UUID(buffer.getLong(), buffer.getLong());
+			launchPad.getBufferPool().release(buffer);
+			resetStream(uuid);
+			break;
+		case HEADER_BYTE_TYPE_COMPRESSED:
+			FrameCodec codec = launchPad.getCodec(buffer.get());
+			byte innerType = buffer.get();
+			handleFrame(innerType, decompress(codec, innerType, buffer));
+			break;
+		case HEADER_BYTE_TYPE_HEARTBEAT:
+			launchPad.getBufferPool().release(buffer);
+			break;
+		case HEADER_BYTE_TYPE_HELLO:
+			peerFeatures = buffer.getInt();
+			peerStreamWindow = buffer.getInt();
+			launchPad.getBufferPool().release(buffer);
+			joinPool();
+			break;
+		default:
+			launchPad.getBufferPool().release(buffer);
 			break;
 		}
-		currentReadBuffer = null;
 	}
 
 	/**
-	 * Writes data to this LandingZone.
+	 * Decodes a Rocket and lands it on the LaunchPad. With lazy decoding, the
+	 * Rocket keeps the frame, which is then left to the garbage collector
+	 * instead of being returned to the BufferPool.
+	 * 
+	 * @param compact
+	 *            whether the frame is in the compact encoding.
+	 * @param buffer
+	 *            the frame.
+	 * @throws IOException
+	 */
+	private void landRocket(boolean compact, ByteBuffer buffer)
+			throws IOException {
+		launchPad.land(decodeRocket(compact, buffer));
+	}
+
+	/**
+	 * Decodes a Rocket, releasing the frame unless it is decoded lazily and
+	 * turns out to be well formed.
+	 * 
+	 * @param compact
+	 *            whether the frame is in the compact encoding.
+	 * @param buffer
+	 *            the frame, positioned at the Rocket.
+	 * @return the Rocket.
+	 * @throws IOException
+	 *             if the Rocket is malformed.
+	 */
+	private Rocket decodeRocket(boolean compact, ByteBuffer buffer)
+			throws IOException {
+		Rocket rocket;
+		try {
+			if (launchPad.isLazyDecoding()) {
+				return new Rocket().index(this, buffer, compact);
+			}
+			if (compact) {
+				rocket = new Rocket().parseCompact(this, buffer);
+			} else {
+				rocket = new Rocket().parse(this, buffer);
+			}
+		} catch (IOException e) {
+			launchPad.getBufferPool().release(buffer);
+			throw e;
+		} catch (RuntimeException e) {
+			launchPad.getBufferPool().release(buffer);
+			throw new IOException("Malformed Rocket", e);
+		}
+		launchPad.getBufferPool().release(buffer);
+		return rocket;
+	}
+
+	/**
+	 * Handles a request or a reply. A request is landed like any other
+	 * Rocket, remembering its ID so it can be replied to; a reply completes
+	 * the request it answers, and is dropped if that request has already
+	 * timed out.
+	 * 
+	 * @param reply
+	 *            whether the frame is a reply.
+	 * @param buffer
+	 *            the frame.
+	 * @throws IOException
+	 */
+	private void landCorrelated(boolean reply, ByteBuffer buffer)
+			throws IOException {
+		int id;
+		byte type;
+		try {
+			id = RocketValue.getVarint(buffer);
+			type = buffer.get();
+		} catch (RuntimeException e) {
+			launchPad.getBufferPool().release(buffer);
+			throw new IOException("Malformed Rocket", e);
+		}
+		if (type != Rocket.HEADER_BYTE_TYPE
+				&& type != Rocket.HEADER_BYTE_TYPE_COMPACT) {
+			launchPad.getBufferPool().release(buffer);
+			throw new IOException("Malformed Rocket");
+		}
+		Rocket rocket = decodeRocket(type == Rocket.HEADER_BYTE_TYPE_COMPACT,
+				buffer);
+		if (!reply) {
+			rocket.setRequestId(id);
+			launchPad.land(rocket);
+			return;
+		}
+		CompletableFuture<Rocket> future = pendingRequests.remove(id);
+		if (future != null) {
+			complete(future, rocket, null);
+		}
+	}
+
+	/**
+	 * Sends a Rocket as a request, using the LaunchPad's request timeout. The
+	 * other side answers with {@link Rocket#reply(Rocket)}. Any number of
+	 * requests may be outstanding at once, and replies may arrive in any
+	 * order.
+	 * 
+	 * @param rocket
+	 *            the request.
+	 * @return a future completed with the reply on the LaunchPad's dispatch
+	 *         Executor, or completed exceptionally with a TimeoutException if
+	 *         no reply arrives in time, or an IOException if this LandingZone
+	 *         goes offline first.
+	 */
+	public CompletableFuture<Rocket> request(Rocket rocket) {
+		return request(rocket, launchPad.getRequestTimeoutNanos(),
+				TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sends a Rocket as a request. The other side answers with
+	 * {@link Rocket#reply(Rocket)}.
+	 * 
+	 * @param rocket
+	 *            the request.
+	 * @param timeout
+	 *            how long to wait for the reply, or zero to wait for as long
+	 *            as this LandingZone is online.
+	 * @param unit
+	 *            the unit of the timeout.
+	 * @return a future completed with the reply on the LaunchPad's dispatch
+	 *         Executor, or completed exceptionally with a TimeoutException if
+	 *         no reply arrives in time, or an IOException if this LandingZone
+	 *         goes offline first.
+	 */
+	public CompletableFuture<Rocket> request(Rocket rocket, long timeout,
+			TimeUnit unit) {
+		CompletableFuture<Rocket> future = new CompletableFuture<Rocket>();
+		if (!key.isValid()) {
+			future.completeExceptionally(new IOException(
+					"LandingZone is offline."));
+			return future;
+		}
+		int id;
+		do {
+			id = nextRequestId.incrementAndGet() & Integer.MAX_VALUE;
+		} while (id == 0 || pendingRequests.putIfAbsent(id, future) != null);
+		if (!key.isValid() && pendingRequests.remove(id) != null) {
+			/* Went offline after failRequests had already run. */
+			future.completeExceptionally(new IOException(
+					"LandingZone is offline."));
+			return future;
+		}
+		if (timeout > 0) {
+			scheduleTimeout(id, future, unit.toNanos(timeout));
+		}
+		rocket.launchAs(this, Rocket.HEADER_BYTE_TYPE_REQUEST, id);
+		return future;
+	}
+
+	/**
+	 * Fails a request if no reply has arrived in time. The timeout is
+	 * cancelled as soon as the request completes, so a busy connection does
+	 * not keep one timeout per request it has ever sent.
+	 */
+	private void scheduleTimeout(final int id,
+			CompletableFuture<Rocket> future, long nanos) {
+		final Timeout timeout = reactor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				CompletableFuture<Rocket> future = pendingRequests.remove(id);
+				if (future != null) {
+					complete(future, null, new TimeoutException(
+							"No reply to request " + id + "."));
+				}
+			}
+		}, nanos);
+		future.whenComplete(new BiConsumer<Rocket, Throwable>() {
+			@Override
+			public void accept(Rocket reply, Throwable cause) {
+				timeout.cancel();
+			}
+		});
+	}
+
+	/**
+	 * Fails every request still waiting for a reply. Called once this
+	 * LandingZone has gone offline.
+	 * 
+	 * @param cause
+	 *            the reason the requests failed.
+	 */
+	protected void failRequests(Throwable cause) {
+		for (Integer id : pendingRequests.keySet()) {
+			CompletableFuture<Rocket> future = pendingRequests.remove(id);
+			if (future != null) {
+				complete(future, null, cause);
+			}
+		}
+	}
+
+	/**
+	 * Completes a request's future on the dispatch Executor, so that
+	 * callbacks chained onto it never run on a Reactor thread. If the
+	 * Executor rejects it, the future is completed here instead, since it has
+	 * already been forgotten and nothing else would complete it.
+	 */
+	protected void complete(final CompletableFuture<Rocket> future,
+			final Rocket reply, final Throwable cause) {
+		launchPad.dispatchOrRun(new Runnable() {
+			@Override
+			public void run() {
+				if (cause != null) {
+					future.completeExceptionally(cause);
+				} else {
+					future.complete(reply);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Decompresses the rest of a compressed frame, and releases it.
+	 * 
+	 * @param codec
+	 *            the codec named by the frame, or null if it is unknown.
+	 * @param type
+	 *            the type of the frame that was compressed.
+	 * @param buffer
+	 *            the compressed frame, positioned at the inner frame's length.
+	 * @return the inner frame's payload, from the LaunchPad's BufferPool.
+	 * @throws IOException
+	 *             if the codec is unknown or the data is corrupt.
+	 */
+	private ByteBuffer decompress(FrameCodec codec, byte type, ByteBuffer buffer)
+			throws IOException {
+		BufferPool pool = launchPad.getBufferPool();
+		if (codec == null || type == HEADER_BYTE_TYPE_COMPRESSED) {
+			pool.release(buffer);
+			throw new IOException("Unsupported compressed frame.");
+		}
+		ByteBuffer inflated = null;
+		try {
+			int length = RocketValue.getVarint(buffer);
+			if (length < 0 || length > launchPad.getMaxFrameSize()) {
+				throw new IOException("Frame of " + length
+						+ " bytes is larger than the maximum frame size.");
+			}
+			inflated = pool.acquire(length);
+			codec.decompress(buffer, inflated);
+		} catch (IOException e) {
+			pool.release(inflated);
+			throw e;
+		} finally {
+			pool.release(buffer);
+		}
+		inflated.flip();
+		return inflated;
+	}
+
+	/**
+	 * Writes data to this LandingZone. Queued frames are gathered into batches
+	 * of up to the LaunchPad's write batch size, each sent with a single
+	 * gathering write.
 	 * 
 	 * @throws IOException
 	 */
 	protected void write() throws IOException {
 		if (!needsWrite()) {
-			key.interestOps(SelectionKey.OP_READ);
+			interest(SelectionKey.OP_READ);
 			return;
 		}
 		if (isDoneWritingCurrentBuffer()) {
-			getNewBufferFromQueue();
+			if (shouldLinger()) {
+				interest(SelectionKey.OP_READ);
+				return;
+			}
+			fillBatch();
 		}
 		if (!isDoneWritingCurrentBuffer()) {
-			channel.write(currentWriteBuffer);
+			writeCurrentBuffer();
 			if (needsWrite()) {
-				key.interestOps(SelectionKey.OP_WRITE);
+				interest(SelectionKey.OP_WRITE);
 			} else {
-				key.interestOps(SelectionKey.OP_READ);
+				interest(SelectionKey.OP_READ);
+			}
+		}
+	}
+
+	/**
+	 * @return the address of the other side, or "unconnected".
+	 */
+	public String getAddress() {
+		Object address = channel.socket().getRemoteSocketAddress();
+		return address == null ? "unconnected" : address.toString();
+	}
+
+	/**
+	 * Gets this LandingZone's metrics. They are also added to the LaunchPad's
+	 * metrics.
+	 * 
+	 * @return the metrics.
+	 */
+	public RocketMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Gets the LaunchPad this LandingZone is connected through.
+	 * 
+	 * @return the LaunchPad.
+	 */
+	protected LaunchPad getLaunchPad() {
+		return launchPad;
+	}
+
+	/**
+	 * Asks the Reactor to write whatever has been queued. Interest ops are
+	 * only changed on the Reactor's thread: other threads hand it a task, and
+	 * only the first of them since the Reactor last ran that task wakes the
+	 * selector.
+	 */
+	protected void requestWrite() {
+		if (reactor.inReactorThread()) {
+			if (key.isValid()) {
+				interest(SelectionKey.OP_WRITE);
 			}
+		} else if (writeRequested.compareAndSet(false, true)) {
+			reactor.execute(enableWrite);
 		}
 	}
 
 	protected void sendBuffer(RocketBuffer buffer) {
+		queueBuffer(buffer);
+		requestWrite();
+	}
+
+	/**
+	 * Queues a frame without asking the Reactor to write it; see
+	 * requestWrite.
+	 * 
+	 * @param buffer
+	 *            the frame.
+	 */
+	protected void queueBuffer(RocketBuffer buffer) {
 		writeBuffers.offer(buffer);
-		key.interestOps(SelectionKey.OP_WRITE);
-		launchPad.getSelector().wakeup();
+		metrics.framesQueued(1);
+		if (offline && writeBuffers.remove(buffer)) {
+			metrics.framesQueued(-1);
+			requeue(buffer, null);
+		}
+	}
+
+	/**
+	 * Marks this LandingZone as offline, before its queues are drained.
+	 * Rockets and streams queued on it by other threads from then on are
+	 * moved to its PooledLandingZone, or dropped if it has none. Each queue
+	 * method checks the flag after queueing, and the drain runs after it is
+	 * set, so nothing is left behind on a connection that is gone.
+	 */
+	protected void setOffline() {
+		offline = true;
+	}
+
+	/**
+	 * Moves a Rocket that was queued after this LandingZone went offline to
+	 * its PooledLandingZone. Other frames belong to this connection, and are
+	 * dropped.
+	 * 
+	 * @param buffer
+	 *            the frame.
+	 * @param ids
+	 *            the dictionary IDs it uses, if it is a compact Rocket.
+	 */
+	private void requeue(RocketBuffer buffer, int[] ids) {
+		PooledLandingZone pool = launchPad.getPool();
+		if (pool == null || !PooledLandingZone.isRocket(buffer)) {
+			buffer.written();
+			return;
+		}
+		if (ids != null) {
+			pool.queueRocket(buffer, ids);
+		} else {
+			pool.queueBuffer(buffer);
+		}
+		pool.requestWrite();
+	}
+
+	/**
+	 * Queues a Rocket in the compact encoding, first defining any of its
+	 * dictionary IDs that this LandingZone has not sent before. The Reactor is
+	 * not asked to write it; see requestWrite.
+	 * 
+	 * @param rocket
+	 *            the encoded Rocket.
+	 * @param ids
+	 *            the dictionary IDs it uses.
+	 */
+	protected void queueRocket(RocketBuffer rocket, int[] ids) {
+		RocketDictionary dictionary = launchPad.getDictionary();
+		/* A definition must be queued before any Rocket that uses it. */
+		int queued = 1;
+		synchronized (definedIds) {
+			for (int id : ids) {
+				if (id > 0 && !definedIds.get(id)) {
+					definedIds.set(id);
+					writeBuffers.offer(define(id, dictionary.get(id)));
+					queued++;
+				}
+			}
+			writeBuffers.offer(rocket);
+		}
+		metrics.framesQueued(queued);
+		if (offline && writeBuffers.remove(rocket)) {
+			metrics.framesQueued(-1);
+			requeue(rocket, ids);
+		}
+	}
+
+	private static RocketBuffer define(int id, String s) {
+		ByteBuffer buffer = ByteBuffer.allocate(RocketValue.varintSize(id)
+				+ RocketValue.utf8Length(s));
+		RocketValue.putVarint(buffer, id);
+		RocketValue.putUtf8(buffer, s);
+		buffer.flip();
+		return new RocketBuffer(HEADER_BYTE_TYPE_DEFINE, buffer);
+	}
+
+	/**
+	 * Gets the string the other side has defined for a dictionary ID.
+	 * 
+	 * @param id
+	 *            the ID.
+	 * @return the string, or null if it has not been defined.
+	 */
+	protected String getDefinition(int id) {
+		return definitions.get(id);
 	}
 
 	protected void sendStream(RocketStream stream) {
+		queueStream(stream);
+		requestWrite();
+	}
+
+	/**
+	 * Queues a stream without asking the Reactor to write it; see
+	 * requestWrite.
+	 * 
+	 * @param stream
+	 *            the stream.
+	 */
+	protected void queueStream(RocketStream stream) {
+		stream.setLaunchPad(launchPad);
 		writeStreams.offer(stream);
-		key.interestOps(SelectionKey.OP_WRITE);
-		launchPad.getSelector().wakeup();
+		metrics.streamsQueued(1);
+		if (offline && writeStreams.remove(stream)) {
+			metrics.streamsQueued(-1);
+			PooledLandingZone pool = launchPad.getPool();
+			if (pool == null) {
+				stream.cancel();
+			} else {
+				pool.queueStream(stream);
+				pool.requestWrite();
+			}
+		}
+	}
+
+	/**
+	 * Queues a definition of every dictionary ID this LandingZone has not
+	 * defined yet, for compact Rockets that were encoded for another
+	 * connection. The Reactor is not asked to write them; see requestWrite.
+	 */
+	protected void defineAll() {
+		RocketDictionary dictionary = launchPad.getDictionary();
+		int queued = 0;
+		synchronized (definedIds) {
+			for (int id = 1, size = dictionary.size(); id <= size; id++) {
+				if (!definedIds.get(id)) {
+					definedIds.set(id);
+					writeBuffers.offer(define(id, dictionary.get(id)));
+					queued++;
+				}
+			}
+		}
+		metrics.framesQueued(queued);
+	}
+
+	/**
+	 * Takes every frame and stream that is still waiting to be sent off the
+	 * write queues, in the order they were queued. Frames in the batch being
+	 * written, and streams that have started sending, are left where they
+	 * are. Called on the Reactor's thread once this LandingZone has gone
+	 * offline.
+	 * 
+	 * @param frames
+	 *            receives the frames.
+	 * @param streams
+	 *            receives the streams.
+	 */
+	protected void drain(Collection<RocketBuffer> frames,
+			Collection<RocketStream> streams) {
+		RocketBuffer buffer;
+		while ((buffer = pollBuffer()) != null) {
+			frames.add(buffer);
+		}
+		RocketStream stream;
+		while ((stream = writeStreams.poll()) != null) {
+			metrics.streamsQueued(-1);
+			streams.add(stream);
+		}
+	}
+
+	/**
+	 * Gives up on everything still waiting to be written, once this
+	 * LandingZone has gone offline and anything worth moving elsewhere has
+	 * been drained. Frames are released as though they had been written, and
+	 * streams are cancelled, so that copies of a broadcast stream stop
+	 * waiting for this one and files are closed. Streams that had started
+	 * sending are reported to the ErrorListener. Called on the Reactor's
+	 * thread.
+	 */
+	protected void cancelWrites() {
+		for (int i = batchFramesWritten; i < batchFrameCount; i++) {
+			batchFrames[i].written();
+			batchFrames[i] = null;
+		}
+		Arrays.fill(writeBatch, 0, batchSlots, null);
+		batchSlots = batchOffset = batchFrameCount = batchFramesWritten = 0;
+		regionRemaining = 0;
+		RocketBuffer buffer;
+		while ((buffer = pollBuffer()) != null) {
+			buffer.written();
+		}
+		RocketStream stream;
+		while ((stream = writeStreams.poll()) != null) {
+			metrics.streamsQueued(-1);
+			stream.cancel();
+		}
+		for (RocketStream sending : sendingStreams.values()) {
+			/*
+			 * The other side has part of it and cannot be sent the rest, so
+			 * it is failed rather than silently lost.
+			 */
+			sending.cancel();
+			launchPad.error(new IOException("RocketStream "
+					+ sending.getUUID() + " was cut off when " + getAddress()
+					+ " went offline."));
+		}
+		sendingStreams.clear();
+		pausedStreams.clear();
+		activeStreams.clear();
+	}
+
+	/**
+	 * Sends the HELLO frame, advertising this side's features and the number
+	 * of bytes of each stream it is willing to buffer.
+	 */
+	protected void sendHello() {
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.putInt(FEATURE_FLOW_CONTROL | FEATURE_COMPACT_STREAMS
+				| FEATURE_COMPACT_ROCKETS | FEATURE_COMPRESSION);
+		buffer.putInt(launchPad.getStreamWindow());
+		buffer.flip();
+		sendBuffer(new RocketBuffer(HEADER_BYTE_TYPE_HELLO, buffer));
+	}
+
+	/**
+	 * Holds this connection back from its PooledLandingZone until the other
+	 * side's HELLO arrives, so that nothing is sent over it before the pool
+	 * knows which features the other side supports. An older peer never
+	 * sends one, so after HELLO_TIMEOUT_NANOS it joins the pool anyway,
+	 * supporting none of them. Called on the Reactor's thread.
+	 */
+	protected void awaitHello() {
+		awaitingHello = true;
+		reactor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				joinPool();
+			}
+		}, HELLO_TIMEOUT_NANOS);
+	}
+
+	private void joinPool() {
+		if (!awaitingHello || !key.isValid()) {
+			return;
+		}
+		awaitingHello = false;
+		launchPad.joinPool(key);
+	}
+
+	/**
+	 * Starts the LaunchPad's idle timeout and heartbeats for this connection,
+	 * if either is on. A single timer per connection checks both, so it costs
+	 * the same however busy the connection is.
+	 */
+	protected void startTimers() {
+		if (launchPad.getIdleTimeoutNanos() <= 0
+				&& launchPad.getHeartbeatNanos() <= 0) {
+			return;
+		}
+		lastRead = lastWrite = System.nanoTime();
+		reactor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				long next = checkIdle();
+				if (next > 0) {
+					reactor.schedule(this, next);
+				}
+			}
+		}, TimerWheel.TICK_NANOS);
+	}
+
+	/**
+	 * Drops this connection if nothing has been read from it for the idle
+	 * timeout, and sends a heartbeat if nothing has been written to it for
+	 * the heartbeat interval. Time spent with reading paused does not count
+	 * towards the idle timeout.
+	 * 
+	 * @return the time in nanoseconds until the next check, or zero if the
+	 *         connection is gone.
+	 */
+	private long checkIdle() {
+		if (!key.isValid()) {
+			return 0;
+		}
+		long idle = launchPad.getIdleTimeoutNanos();
+		long heartbeat = launchPad.getHeartbeatNanos();
+		long now = System.nanoTime();
+		if (readPaused) {
+			/* Nothing is being read on purpose, so the peer is not idle. */
+			lastRead = now;
+		}
+		if (idle > 0 && now - lastRead >= idle) {
+			launchPad.disconnect(key, new IOException("Nothing received from "
+					+ getAddress() + " for "
+					+ TimeUnit.NANOSECONDS.toMillis(now - lastRead) + "ms."));
+			return 0;
+		}
+		if (heartbeat > 0 && now - lastWrite >= heartbeat && !needsWrite()) {
+			sendBuffer(new RocketBuffer(HEADER_BYTE_TYPE_HEARTBEAT,
+					ByteBuffer.allocate(0)));
+			lastWrite = now;
+		}
+		long next = Long.MAX_VALUE;
+		if (idle > 0) {
+			next = lastRead + idle - now;
+		}
+		if (heartbeat > 0) {
+			next = Math.min(next, lastWrite + heartbeat - now);
+		}
+		return Math.max(next, TimerWheel.TICK_NANOS);
+	}
+
+	/**
+	 * @return the System.nanoTime() at which the connection was made.
+	 */
+	protected long getConnectedAt() {
+		return connectedAt;
+	}
+
+	/**
+	 * Gets the delay before reconnecting if this connection drops before it
+	 * has proved stable.
+	 * 
+	 * @return the delay in nanoseconds.
+	 */
+	protected long getReconnectDelay() {
+		return reconnectDelay;
+	}
+
+	/**
+	 * Sets the delay before reconnecting if this connection drops before it
+	 * has proved stable.
+	 * 
+	 * @param delay
+	 *            the delay in nanoseconds.
+	 */
+	protected void setReconnectDelay(long delay) {
+		reconnectDelay = delay;
+	}
+
+	/**
+	 * Whether the other side has said it supports a feature.
+	 * 
+	 * @param feature
+	 *            the feature flag.
+	 * @return whether it is supported.
+	 */
+	protected boolean peerSupports(int feature) {
+		return (peerFeatures & feature) != 0;
+	}
+
+	/**
+	 * Gets the codec to compress a frame for the other side with.
+	 * 
+	 * @param requested
+	 *            whether the Rocket or RocketStream asked for compression, or
+	 *            null to follow the LaunchPad's setting.
+	 * @return the codec, or null to send the frame uncompressed.
+	 */
+	protected FrameCodec getCompression(Boolean requested) {
+		if (!peerSupports(FEATURE_COMPRESSION)) {
+			return null;
+		}
+		return launchPad.getCompression(requested);
+	}
+
+	/**
+	 * Lets the other side send more of a stream.
+	 * 
+	 * @param uuid
+	 *            the stream's UUID.
+	 * @param bytes
+	 *            the number of bytes the other side may send.
+	 */
+	protected void sendCredit(UUID uuid, int bytes) {
+		ByteBuffer buffer = ByteBuffer.allocate(20);
+		buffer.putLong(uuid.getMostSignificantBits());
+		buffer.putLong(uuid.getLeastSignificantBits());
+		buffer.putInt(bytes);
+		buffer.flip();
+		sendBuffer(new RocketBuffer(RocketStream.HEADER_BYTE_TYPE_CREDIT,
+				buffer));
+	}
+
+	/**
+	 * Handles credit granted by the other side, resuming the stream if it was
+	 * paused for lack of credit.
+	 * 
+	 * @param uuid
+	 *            the stream's UUID.
+	 * @param bytes
+	 *            the credit.
+	 */
+	private void grantCredit(UUID uuid, int bytes) {
+		RocketStream stream = sendingStreams.get(uuid);
+		if (stream != null) {
+			stream.addCredit(bytes);
+			if (pausedStreams.containsKey(uuid) && stream.hasCredit()) {
+				resumeStream(stream);
+			}
+		}
+	}
+
+	/**
+	 * Stops sending a stream that the other side has abandoned, and closes
+	 * its source.
+	 * 
+	 * @param uuid
+	 *            the stream's UUID.
+	 */
+	private void resetStream(UUID uuid) {
+		RocketStream stream = sendingStreams.remove(uuid);
+		if (stream == null) {
+			return;
+		}
+		pausedStreams.remove(uuid);
+		activeStreams.remove(stream);
+		if (writeStreams.remove(stream)) {
+			metrics.streamsQueued(-1);
+		}
+		stream.cancel();
+		launchPad.error(new IOException("RocketStream " + uuid
+				+ " was abandoned by " + getAddress() + "."));
+	}
+
+	/**
+	 * Tells the other side to stop sending a stream that has been abandoned.
+	 * 
+	 * @param uuid
+	 *            the stream's UUID.
+	 */
+	private void sendReset(UUID uuid) {
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.putLong(uuid.getMostSignificantBits());
+		buffer.putLong(uuid.getLeastSignificantBits());
+		buffer.flip();
+		sendBuffer(new RocketBuffer(RocketStream.HEADER_BYTE_TYPE_RESET,
+				buffer));
 	}
 
+	/**
+	 * Puts a paused stream back in the write queue.
+	 * 
+	 * @param stream
+	 *            the stream.
+	 */
+	protected void resumeStream(final RocketStream stream) {
+		reactor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (pausedStreams.remove(stream.getUUID()) != null) {
+					writeStreams.offer(stream);
+					metrics.streamsQueued(1);
+					if (key.isValid()) {
+						interest(SelectionKey.OP_WRITE);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Registers a stream carried by a Rocket that has arrived, or finds the
+	 * stream with the same UUID if its chunks got here first. Streams stay
+	 * registered until both the Rocket and their last chunk have arrived; one
+	 * that is not opened in time is abandoned.
+	 * 
+	 * @param stream
+	 *            the stream.
+	 * @return the registered stream with the same UUID.
+	 */
 	protected RocketStream registerStream(RocketStream stream) {
-		if (readStreams.containsKey(stream.getUUID())) {
-			return readStreams.get(stream.getUUID());
+		RocketStream registered = streamFor(stream.getUUID());
+		synchronized (readStreams) {
+			registered.claim();
+			if (registered.hasLastChunk()) {
+				readStreams.remove(stream.getUUID());
+			}
+		}
+		return registered;
+	}
+
+	/**
+	 * Looks up an incoming stream by its UUID, registering it if it is new.
+	 * 
+	 * @param uuid
+	 *            the stream's UUID.
+	 * @return the registered stream.
+	 */
+	private RocketStream streamFor(UUID uuid) {
+		RocketStream stream;
+		synchronized (readStreams) {
+			stream = readStreams.get(uuid);
+			if (stream != null) {
+				return stream;
+			}
+			stream = new RocketStream(uuid);
+			stream.setBufferPool(launchPad.getBufferPool());
+			stream.receiveOn(this, launchPad.getStreamWindow());
+			readStreams.put(uuid, stream);
+		}
+		long timeout = launchPad.getStreamTimeoutNanos();
+		if (timeout > 0) {
+			scheduleAbandon(stream, timeout);
 		}
-		readStreams.put(stream.getUUID(), stream);
 		return stream;
 	}
 
-	private void getNewBufferFromQueue() {
-		if ((lastWriteWasStream || (writeStream == null && writeStreams
+	/**
+	 * Stops tracking a stream once its last chunk has arrived, unless the
+	 * Rocket carrying it has yet to arrive and find it.
+	 * 
+	 * @param stream
+	 *            the stream.
+	 */
+	private void lastChunk(RocketStream stream) {
+		synchronized (readStreams) {
+			if (stream.isClaimed()) {
+				readStreams.remove(stream.getUUID());
+			}
+		}
+	}
+
+	/**
+	 * Abandons an incoming stream once it has gone unopened, with nothing
+	 * arriving for it, for the LaunchPad's stream timeout, and tells the
+	 * sender to stop sending it. It stays registered for one more timeout,
+	 * so that chunks already on their way are recognised and dropped.
+	 */
+	private void scheduleAbandon(final RocketStream stream, final long timeout) {
+		reactor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				long remaining = stream.abandonIfIdle(timeout);
+				if (remaining > 0) {
+					reactor.schedule(this, remaining);
+				} else if (stream.getState() == RocketStream.State.ABANDONED) {
+					abandoned(stream, timeout);
+				}
+			}
+		}, timeout);
+	}
+
+	/**
+	 * Reports the failure of an incoming stream's StreamReader, and abandons
+	 * the rest of the stream. It stays registered for a while, so that chunks
+	 * already on their way are recognised and dropped. May be called from any
+	 * thread.
+	 * 
+	 * @param stream
+	 *            the stream.
+	 * @param cause
+	 *            what the reader threw.
+	 */
+	protected void readerFailed(final RocketStream stream,
+			RuntimeException cause) {
+		launchPad.error(cause);
+		if (stream.getState() != RocketStream.State.ABANDONED) {
+			return;
+		}
+		final long timeout = Math.max(launchPad.getStreamTimeoutNanos(),
+				RESET_GRACE_NANOS);
+		reactor.execute(new Runnable() {
+			@Override
+			public void run() {
+				abandoned(stream, timeout);
+			}
+		});
+	}
+
+	private void abandoned(final RocketStream stream, long timeout) {
+		if (!stream.hasLastChunk() && key.isValid()) {
+			sendReset(stream.getUUID());
+		}
+		readStreamIds.values().remove(stream);
+		reactor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				readStreams.remove(stream.getUUID(), stream);
+			}
+		}, timeout);
+	}
+
+	/**
+	 * Writes as much of the current batch as the socket will take. The
+	 * batch's buffers are written first, then the file region of its last
+	 * frame, if it has one, is transferred directly from the file. Frames are
+	 * released as soon as they have been written completely.
+	 * 
+	 * @throws IOException
+	 *             if the socket fails, or the file behind a file region was
+	 *             truncated after its stream was created.
+	 */
+	private void writeCurrentBuffer() throws IOException {
+		lastWrite = System.nanoTime();
+		if (batchOffset < batchSlots) {
+			metrics.bytesWritten(channel.write(writeBatch, batchOffset,
+					batchSlots - batchOffset));
+			while (batchOffset < batchSlots
+					&& !writeBatch[batchOffset].hasRemaining()) {
+				batchOffset++;
+			}
+		}
+		if (batchOffset == batchSlots && regionRemaining > 0) {
+			RocketBuffer last = batchFrames[batchFrameCount - 1];
+			FileChannel file = last.getFileChannel();
+			long transferred = file.transferTo(regionPosition,
+					regionRemaining, channel);
+			if (transferred == 0 && regionPosition >= file.size()) {
+				/*
+				 * The frame's length has already been sent, so it cannot be
+				 * finished, and the connection has to go.
+				 */
+				throw new IOException("File streamed to " + getAddress()
+						+ " was truncated while it was being sent.");
+			}
+			metrics.bytesWritten(transferred);
+			regionPosition += transferred;
+			regionRemaining -= transferred;
+		}
+		while (batchFramesWritten < batchFrameCount
+				&& batchFrameEnds[batchFramesWritten] <= batchOffset
+				&& (batchFramesWritten < batchFrameCount - 1 || regionRemaining == 0)) {
+			/* The frame's buffers may be reused as soon as it is released. */
+			RocketBuffer frame = batchFrames[batchFramesWritten];
+			batchFrames[batchFramesWritten++] = null;
+			metrics.frameWritten();
+			frame.written();
+		}
+		if (isDoneWritingCurrentBuffer()) {
+			Arrays.fill(writeBatch, 0, batchSlots, null);
+			batchSlots = batchOffset = batchFrameCount = batchFramesWritten = 0;
+		}
+	}
+
+	/**
+	 * Takes frames from the queues until the batch reaches the LaunchPad's
+	 * write batch size, or a frame with a file region is added.
+	 */
+	private void fillBatch() {
+		int budget = launchPad.getWriteBatchBytes();
+		long bytes = 0;
+		lingerStart = -1;
+		while (batchFrameCount < MAX_BATCH_FRAMES && bytes < budget) {
+			RocketBuffer frame = getNewBufferFromQueue();
+			if (frame == null) {
+				break;
+			}
+			addToBatch(frame);
+			bytes += 5 + frame.getLength();
+			if (frame.hasFileRegion()) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Lays out a frame's header and buffers at the end of the batch.
+	 * 
+	 * @param frame
+	 *            the frame.
+	 */
+	private void addToBatch(RocketBuffer frame) {
+		ByteBuffer header = frameHeaders[batchFrameCount];
+		if (header == null) {
+			header = frameHeaders[batchFrameCount] = ByteBuffer.allocate(5);
+		}
+		header.clear();
+		header.put(frame.getType());
+		header.putInt(frame.getLength());
+		header.flip();
+		writeBatch[batchSlots++] = header;
+		if (frame.getBuffer().hasRemaining()) {
+			writeBatch[batchSlots++] = frame.getBuffer();
+		}
+		if (frame.getBody() != null && frame.getBody().hasRemaining()) {
+			writeBatch[batchSlots++] = frame.getBody();
+		}
+		regionPosition = frame.getFilePosition();
+		regionRemaining = frame.getFileCount();
+		batchFrames[batchFrameCount] = frame;
+		batchFrameEnds[batchFrameCount++] = batchSlots;
+	}
+
+	private RocketBuffer getNewBufferFromQueue() {
+		if ((lastWriteWasStream || (activeStreams.isEmpty() && writeStreams
 				.isEmpty())) && !writeBuffers.isEmpty()) {
-			RocketBuffer buffer = writeBuffers.poll();
-			currentWriteBuffer[0].position(0);
-			currentWriteBuffer[0].put(buffer.getType());
-			currentWriteBuffer[0].putInt(buffer.getBuffer().limit());
-			currentWriteBuffer[0].flip();
-			currentWriteBuffer[1] = buffer.getBuffer();
 			lastWriteWasStream = false;
-		} else if (writeStream != null || !writeStreams.isEmpty()) {
-			if (writeStream == null) {
-				writeStream = writeStreams.poll();
-			}
-			RocketBuffer buffer = writeStream.getBuffer();
-			currentWriteBuffer[0].position(0);
-			currentWriteBuffer[0].put(buffer.getType());
-			currentWriteBuffer[0].putInt(buffer.getBuffer().limit());
-			currentWriteBuffer[0].flip();
-			currentWriteBuffer[1] = buffer.getBuffer();
-			if (writeStream.isFinishedWriting()) {
-				writeStream = null;
-			}
+			return pollBuffer();
+		}
+		RocketBuffer buffer = getNewStreamBuffer();
+		if (buffer != null) {
 			lastWriteWasStream = true;
+			return buffer;
 		}
+		lastWriteWasStream = false;
+		return pollBuffer();
 	}
 
-	private boolean isDoneWritingCurrentBuffer() {
-		if (currentWriteBuffer[1] == null) {
-			return true;
+	private RocketBuffer pollBuffer() {
+		RocketBuffer buffer = writeBuffers.poll();
+		if (buffer != null) {
+			metrics.framesQueued(-1);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Takes the next chunk from the active streams, interleaving them with
+	 * deficit round robin: each stream in turn may send up to its weight times
+	 * STREAM_QUANTUM bytes before the next one gets a turn, so a small stream
+	 * is not stuck behind a large one. Streams that have run out of credit, or
+	 * cannot produce a chunk yet, are paused until they can. A stream sent
+	 * under a short stream ID is announced before its first chunk.
+	 * 
+	 * @return the chunk, or null if no stream can send.
+	 */
+	private RocketBuffer getNewStreamBuffer() {
+		RocketStream stream;
+		while ((stream = writeStreams.poll()) != null) {
+			metrics.streamsQueued(-1);
+			stream.startSending(
+					peerSupports(FEATURE_FLOW_CONTROL) ? peerStreamWindow : 0,
+					peerSupports(FEATURE_COMPACT_STREAMS) ? ++nextStreamId : 0);
+			sendingStreams.put(stream.getUUID(), stream);
+			activeStreams.addLast(stream);
 		}
-		for (ByteBuffer buf : currentWriteBuffer) {
-			if (buf.hasRemaining()) {
-				return false;
+		while ((stream = activeStreams.peekFirst()) != null) {
+			if (stream.getDeficit() <= 0) {
+				/* Its turn is over; it gets a new quantum for its next one. */
+				activeStreams.pollFirst();
+				stream.addDeficit((long) stream.getWeight() * STREAM_QUANTUM);
+				activeStreams.addLast(stream);
+				continue;
 			}
+			RocketBuffer buffer = stream.announce();
+			if (buffer != null) {
+				return buffer;
+			}
+			if (stream.hasCredit()) {
+				buffer = stream.getBuffer(this);
+			}
+			if (buffer == null) {
+				activeStreams.pollFirst();
+				pausedStreams.put(stream.getUUID(), stream);
+				continue;
+			}
+			stream.addDeficit(-buffer.getLength());
+			if (stream.isFinishedWriting()) {
+				activeStreams.pollFirst();
+				sendingStreams.remove(stream.getUUID());
+			}
+			return buffer;
+		}
+		return null;
+	}
+
+	/**
+	 * Decides whether to hold back a small batch for the LaunchPad's linger
+	 * window, so that more Rockets can join it. Batches carrying stream data
+	 * are never held back. When holding back, a flush is scheduled for the end
+	 * of the window.
+	 * 
+	 * @return whether to hold back the batch.
+	 */
+	private boolean shouldLinger() {
+		long linger = launchPad.getWriteLingerNanos();
+		if (linger <= 0 || !activeStreams.isEmpty() || !writeStreams.isEmpty()) {
+			return false;
+		}
+		long now = System.nanoTime();
+		if (lingerStart < 0) {
+			lingerStart = now;
+		}
+		if (now - lingerStart >= linger
+				|| queuedBytes() >= launchPad.getWriteBatchBytes()) {
+			return false;
+		}
+		if (!flushScheduled) {
+			flushScheduled = true;
+			reactor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					flushScheduled = false;
+					if (key.isValid()) {
+						interest(SelectionKey.OP_WRITE);
+					}
+				}
+			}, lingerStart + linger - now);
 		}
 		return true;
 	}
 
+	/**
+	 * Counts the bytes waiting in the Rocket queue, stopping once the write
+	 * batch size is reached.
+	 * 
+	 * @return the number of bytes, capped at the write batch size.
+	 */
+	private long queuedBytes() {
+		int budget = launchPad.getWriteBatchBytes();
+		long bytes = 0;
+		for (RocketBuffer buffer : writeBuffers) {
+			bytes += 5 + buffer.getLength();
+			if (bytes >= budget) {
+				break;
+			}
+		}
+		return bytes;
+	}
+
+	private boolean isDoneWritingCurrentBuffer() {
+		return batchFramesWritten == batchFrameCount;
+	}
+
 	protected boolean needsWrite() {
 		return !isDoneWritingCurrentBuffer() || !writeBuffers.isEmpty()
-				|| !writeStreams.isEmpty()
-				|| (writeStream != null && !writeStream.isFinishedWriting());
+				|| !writeStreams.isEmpty() || !activeStreams.isEmpty();
 	}
 
-	protected static LandingZone wrap(LaunchPad pad, SelectionKey key) {
+	/**
+	 * Wraps a connection in a LandingZone.
+	 * 
+	 * @param pad
+	 *            the LaunchPad.
+	 * @param reactor
+	 *            the Reactor the connection is registered with.
+	 * @param key
+	 *            the connection's SelectionKey.
+	 * @param parent
+	 *            the metrics the LandingZone's metrics are added to.
+	 * @return the LandingZone.
+	 */
+	protected static LandingZone wrap(LaunchPad pad, Reactor reactor,
+			SelectionKey key, RocketMetrics parent) {
 		LandingZone zone = new LandingZone();
 		zone.key = key;
 		zone.channel = (SocketChannel) key.channel();
 		zone.launchPad = pad;
+		zone.reactor = reactor;
+		zone.metrics = new RocketMetrics(parent);
+		zone.connectedAt = System.nanoTime();
 		return zone;
 	}
+
+	/**
+	 * Sets up a LandingZone that has no connection of its own, such as a
+	 * PooledLandingZone.
+	 * 
+	 * @param pad
+	 *            the LaunchPad.
+	 */
+	protected LandingZone(LaunchPad pad) {
+		this();
+		launchPad = pad;
+		metrics = new RocketMetrics(pad.getMetrics());
+	}
+
+	/**
+	 * Picks the LandingZone that actually carries a Rocket launched at this
+	 * one.
+	 * 
+	 * @param rocket
+	 *            the Rocket.
+	 * @return this LandingZone.
+	 */
+	protected LandingZone select(Rocket rocket) {
+		return this;
+	}
 }
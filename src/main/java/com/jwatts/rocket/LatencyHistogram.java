@@ -0,0 +1,114 @@
+package com.jwatts.rocket;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * A histogram of latencies in nanoseconds, with one bucket per power of two.
+ * Recording a latency only touches LongAdders, so it can be done from any
+ * number of threads without locking; percentiles are accurate to within a
+ * factor of two, which is enough to tell a healthy connection from a stalled
+ * one.
+ *
+ * @author joeywatts
+ *
+ */
+public class LatencyHistogram {
+	private static final int BUCKETS = 64;
+
+	private final LongAdder[] buckets;
+	private final LongAdder count, total;
+	private final LongAccumulator max;
+
+	public LatencyHistogram() {
+		buckets = new LongAdder[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+		count = new LongAdder();
+		total = new LongAdder();
+		max = new LongAccumulator(new LongBinaryOperator() {
+			@Override
+			public long applyAsLong(long left, long right) {
+				return Math.max(left, right);
+			}
+		}, 0);
+	}
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param nanos
+	 *            the latency in nanoseconds. Negative values count as zero.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		/* Bucket i holds latencies of i bits, that is, below 2^i. */
+		buckets[BUCKETS - Long.numberOfLeadingZeros(nanos)].increment();
+		count.increment();
+		total.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	/**
+	 * @return the number of latencies recorded.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the mean latency in nanoseconds, or zero if none were recorded.
+	 */
+	public long getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : total.sum() / n;
+	}
+
+	/**
+	 * @return the largest latency recorded, in nanoseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Estimates a percentile.
+	 *
+	 * @param percentile
+	 *            the percentile, from 0 to 100.
+	 * @return an upper bound on the percentile in nanoseconds, or zero if no
+	 *         latencies were recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+			n += counts[i];
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(n * Math.min(100, percentile) / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= Math.max(1, rank)) {
+				return Math.min(i == BUCKETS - 1 ? Long.MAX_VALUE
+						: (1L << i) - 1, getMax());
+			}
+		}
+		return getMax();
+	}
+
+	@Override
+	public String toString() {
+		return "LatencyHistogram[count=" + getCount() + ", mean=" + getMean()
+				+ "ns, p50=" + getPercentile(50) + "ns, p99="
+				+ getPercentile(99) + "ns, max=" + getMax() + "ns]";
+	}
+}
@@ -1,16 +1,29 @@
 package com.jwatts.rocket;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.jwatts.rocket.TimerWheel.Timeout;
 
 /**
  * A LaunchPad is the object from which all your Rockets are launched. From the
@@ -36,16 +49,110 @@ public class LaunchPad {
 		public void onError(LaunchPad launchPad, Exception e);
 	}
 
-	private Thread thread;
-	private Selector selector;
+	private Reactor acceptor;
+	private Reactor[] reactors;
+	private AtomicInteger nextReactor;
 	private LZCommunicationListener lzListener;
 	private ErrorListener error;
-	private ArrayList<LandingZone> landingZones;
+	private List<LandingZone> landingZones;
 	private HashMap<String, LandingListener> landingListeners;
+	private Executor dispatcher;
+	private boolean ownsDispatcher;
+	private BufferPool bufferPool;
+	private int writeBatchBytes;
+	private long writeLingerNanos;
+	private int streamWindow;
+	private int streamChunkSize;
+	private RocketDictionary dictionary;
+	private FrameCodec[] codecs;
+	private FrameCodec compression;
+	private int compressionThreshold;
+	private boolean lazyDecoding;
+	private long requestTimeoutNanos;
+	private RocketMetrics metrics;
+	private String mbeanName;
+	private ConcurrentHashMap<LandingZone, ObjectName> zoneMBeans;
+	private PooledLandingZone pool;
+	private String reconnectHost;
+	private int reconnectPort;
+	private long reconnectDelayNanos, maxReconnectDelayNanos;
+	private int offlineQueueCapacity;
+	private long idleTimeoutNanos, heartbeatNanos;
+	private int maxFrameSize;
+	private long zoneInboundBudget, inboundBudget;
+	private long streamTimeoutNanos;
+	private AtomicLong inboundBytes;
+	private ConcurrentLinkedQueue<LandingZone> starvedZones;
+
+	/**
+	 * The default number of bytes a LandingZone gathers into a single write.
+	 */
+	public static final int DEFAULT_WRITE_BATCH_BYTES = 64 * 1024;
+
+	/**
+	 * The default size above which frames are compressed, when compression is
+	 * on.
+	 */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+
+	/**
+	 * The default number of bytes of each incoming stream that may be
+	 * buffered before the sender has to wait.
+	 */
+	public static final int DEFAULT_STREAM_WINDOW = 2 * 1024 * 1024;
+
+	/**
+	 * The default number of seconds a request waits for its reply.
+	 */
+	public static final long DEFAULT_REQUEST_TIMEOUT_SECONDS = 30;
+
+	/**
+	 * The default number of seconds an incoming stream may go unopened, with
+	 * nothing arriving for it, before it is abandoned.
+	 */
+	public static final long DEFAULT_STREAM_TIMEOUT_SECONDS = 60;
+
+	/**
+	 * The default number of Rockets, RocketStreams and requests a reconnecting
+	 * LaunchPad holds while its peer is unreachable.
+	 */
+	public static final int DEFAULT_OFFLINE_QUEUE_CAPACITY = 10000;
+
+	/**
+	 * The default size of the largest frame accepted from the other side.
+	 */
+	public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * The smallest maximum frame size, which still fits a stream chunk of
+	 * RocketStream.MAX_CHUNK_SIZE and its header.
+	 */
+	public static final int MIN_MAX_FRAME_SIZE = RocketStream.MAX_CHUNK_SIZE + 64;
 
 	protected LaunchPad() {
-		landingZones = new ArrayList<LandingZone>();
+		landingZones = new CopyOnWriteArrayList<LandingZone>();
+		nextReactor = new AtomicInteger();
 		landingListeners = new HashMap<String, LandingListener>();
+		dispatcher = Dispatchers.boundedPool();
+		ownsDispatcher = true;
+		bufferPool = BufferPool.heap();
+		writeBatchBytes = DEFAULT_WRITE_BATCH_BYTES;
+		streamWindow = DEFAULT_STREAM_WINDOW;
+		streamChunkSize = RocketStream.DEFAULT_CHUNK_SIZE;
+		dictionary = new RocketDictionary();
+		codecs = new FrameCodec[256];
+		registerCodec(new DeflateCodec());
+		compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+		requestTimeoutNanos = TimeUnit.SECONDS
+				.toNanos(DEFAULT_REQUEST_TIMEOUT_SECONDS);
+		metrics = new RocketMetrics(null);
+		zoneMBeans = new ConcurrentHashMap<LandingZone, ObjectName>();
+		offlineQueueCapacity = DEFAULT_OFFLINE_QUEUE_CAPACITY;
+		streamTimeoutNanos = TimeUnit.SECONDS
+				.toNanos(DEFAULT_STREAM_TIMEOUT_SECONDS);
+		maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+		inboundBytes = new AtomicLong();
+		starvedZones = new ConcurrentLinkedQueue<LandingZone>();
 	}
 
 	/**
@@ -60,6 +167,461 @@ public class LaunchPad {
 		return this;
 	}
 
+	/**
+	 * Sets the Executor used to deliver LandingListener and
+	 * LZCommunicationListener callbacks. See {@link Dispatchers} for the
+	 * built-in options. The caller remains responsible for shutting down the
+	 * given Executor.
+	 * 
+	 * @param executor
+	 *            the Executor.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad dispatchOn(Executor executor) {
+		Executor previous = dispatcher;
+		boolean ownedPrevious = ownsDispatcher;
+		dispatcher = executor;
+		ownsDispatcher = false;
+		if (ownedPrevious && previous instanceof ExecutorService) {
+			((ExecutorService) previous).shutdown();
+		}
+		return this;
+	}
+
+	/**
+	 * Sets the BufferPool that incoming frames are read into.
+	 * 
+	 * @param pool
+	 *            the BufferPool.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad bufferPool(BufferPool pool) {
+		bufferPool = pool;
+		return this;
+	}
+
+	/**
+	 * Gets the BufferPool that incoming frames are read into.
+	 * 
+	 * @return the BufferPool.
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Sets the number of bytes of queued frames that a LandingZone gathers
+	 * into a single write.
+	 * 
+	 * @param bytes
+	 *            the write batch size.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad writeBatchBytes(int bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("bytes must be positive.");
+		}
+		writeBatchBytes = bytes;
+		return this;
+	}
+
+	/**
+	 * Sets how long a LandingZone may hold back a batch of Rockets smaller
+	 * than the write batch size, waiting for more Rockets to join it. Zero,
+	 * the default, sends every batch immediately.
+	 * 
+	 * @param linger
+	 *            the linger window.
+	 * @param unit
+	 *            the unit of the linger window.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad writeLinger(long linger, TimeUnit unit) {
+		writeLingerNanos = unit.toNanos(linger);
+		return this;
+	}
+
+	/**
+	 * Sets the number of bytes of each incoming stream that this LaunchPad is
+	 * willing to buffer. Senders that support flow control wait for the
+	 * stream to be read before sending more than this, so a slow or late
+	 * reader cannot make the heap grow without limit. Zero turns flow control
+	 * off. Only affects LandingZones connected afterwards.
+	 * 
+	 * @param bytes
+	 *            the stream window.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad streamWindow(int bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("bytes must not be negative.");
+		}
+		streamWindow = bytes;
+		return this;
+	}
+
+	protected int getStreamWindow() {
+		return streamWindow;
+	}
+
+	/**
+	 * Sets the largest number of bytes of an outgoing stream sent in one
+	 * frame, for streams that do not set their own chunk size. Chunks of
+	 * several megabytes cut the number of frames and system calls on fast
+	 * links, given a BufferPool whose size classes are large enough to pool
+	 * them; see {@link RocketStream#setChunkSize(int)}.
+	 * 
+	 * @param bytes
+	 *            the chunk size, from 1 to RocketStream.MAX_CHUNK_SIZE.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad streamChunkSize(int bytes) {
+		RocketStream.checkChunkSize(bytes);
+		streamChunkSize = bytes;
+		return this;
+	}
+
+	protected int getStreamChunkSize() {
+		return streamChunkSize;
+	}
+
+	/**
+	 * Sets how long an incoming stream may go unopened, with nothing arriving
+	 * for it, before it is abandoned: its cached chunks are returned to the
+	 * BufferPool, the sender is told to stop sending it, the rest of it is
+	 * dropped as it arrives, and opening it fails. Zero keeps unopened
+	 * streams for as long as their LandingZone is online.
+	 * 
+	 * @param timeout
+	 *            the timeout.
+	 * @param unit
+	 *            the unit of the timeout.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad streamTimeout(long timeout, TimeUnit unit) {
+		streamTimeoutNanos = unit.toNanos(timeout);
+		return this;
+	}
+
+	protected long getStreamTimeoutNanos() {
+		return streamTimeoutNanos;
+	}
+
+	protected RocketDictionary getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * @return the PooledLandingZone this LaunchPad's connections belong to,
+	 *         or null if it has a single connection or is a server.
+	 */
+	protected PooledLandingZone getPool() {
+		return pool;
+	}
+
+	/**
+	 * Compresses every outgoing frame larger than the compression threshold
+	 * with a codec, unless its Rocket or RocketStream turns compression off.
+	 * Frames that do not get smaller are sent uncompressed, and only peers
+	 * that support compression are sent compressed frames. The codec is also
+	 * registered for decompressing incoming frames.
+	 * 
+	 * @param codec
+	 *            the codec, such as a {@link DeflateCodec}, or null to only
+	 *            compress Rockets and RocketStreams that ask for it.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad compression(FrameCodec codec) {
+		if (codec != null) {
+			registerCodec(codec);
+		}
+		compression = codec;
+		return this;
+	}
+
+	/**
+	 * Sets the size of frame above which frames are compressed.
+	 * 
+	 * @param bytes
+	 *            the threshold.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad compressionThreshold(int bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("bytes must not be negative.");
+		}
+		compressionThreshold = bytes;
+		return this;
+	}
+
+	/**
+	 * Registers a codec for decompressing incoming frames. A DeflateCodec is
+	 * registered by default.
+	 * 
+	 * @param codec
+	 *            the codec, replacing any registered codec with the same ID.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad registerCodec(FrameCodec codec) {
+		codecs[codec.getId() & 0xFF] = codec;
+		return this;
+	}
+
+	protected FrameCodec getCodec(byte id) {
+		return codecs[id & 0xFF];
+	}
+
+	/**
+	 * Gets the codec to compress a frame with.
+	 * 
+	 * @param requested
+	 *            whether the Rocket or RocketStream asked for compression, or
+	 *            null to follow the LaunchPad's setting.
+	 * @return the codec, or null to send the frame uncompressed.
+	 */
+	protected FrameCodec getCompression(Boolean requested) {
+		if (requested == null) {
+			return compression;
+		}
+		if (!requested) {
+			return null;
+		}
+		return compression != null ? compression : getCodec(DeflateCodec.ID);
+	}
+
+	protected int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Sets whether landed Rockets are decoded lazily. A lazily decoded Rocket
+	 * keeps the frame it arrived in and only decodes a value when it is read;
+	 * its typed getters read primitives straight from the frame, and
+	 * getByteBuffer returns a slice of it. This suits listeners that only look
+	 * at a few fields of each Rocket. The frame is not returned to the
+	 * BufferPool, since the Rocket may outlive the callback.
+	 * 
+	 * @param lazy
+	 *            whether to decode lazily.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad lazyDecoding(boolean lazy) {
+		lazyDecoding = lazy;
+		return this;
+	}
+
+	protected boolean isLazyDecoding() {
+		return lazyDecoding;
+	}
+
+	/**
+	 * Sets how long {@link LandingZone#request(Rocket)} waits for a reply
+	 * before failing with a TimeoutException. Zero waits for as long as the
+	 * LandingZone is online.
+	 * 
+	 * @param timeout
+	 *            the timeout.
+	 * @param unit
+	 *            the unit of the timeout.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad requestTimeout(long timeout, TimeUnit unit) {
+		requestTimeoutNanos = unit.toNanos(timeout);
+		return this;
+	}
+
+	protected long getRequestTimeoutNanos() {
+		return requestTimeoutNanos;
+	}
+
+	/**
+	 * Sets how many Rockets, RocketStreams and requests a reconnecting
+	 * LaunchPad holds while its peer is unreachable. Launching more fails with
+	 * an IllegalStateException until the connection comes back.
+	 * 
+	 * @param capacity
+	 *            the capacity.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad offlineQueueCapacity(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException(
+					"capacity must not be negative.");
+		}
+		offlineQueueCapacity = capacity;
+		return this;
+	}
+
+	protected int getOfflineQueueCapacity() {
+		return offlineQueueCapacity;
+	}
+
+	/**
+	 * Drops connections that nothing has been received on for a while, such
+	 * as half-open connections whose other side has gone away without
+	 * closing them. Zero, the default, never drops a connection. Only affects
+	 * LandingZones connected afterwards.
+	 * 
+	 * @param timeout
+	 *            the idle timeout.
+	 * @param unit
+	 *            the unit of the idle timeout.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad idleTimeout(long timeout, TimeUnit unit) {
+		idleTimeoutNanos = unit.toNanos(timeout);
+		return this;
+	}
+
+	protected long getIdleTimeoutNanos() {
+		return idleTimeoutNanos;
+	}
+
+	/**
+	 * Sends a heartbeat on connections that nothing has been sent on for an
+	 * interval, so that a quiet connection is not dropped by the other side's
+	 * idle timeout. Set it well below the other side's idle timeout. Zero,
+	 * the default, sends no heartbeats. Only affects LandingZones connected
+	 * afterwards.
+	 * 
+	 * @param interval
+	 *            the heartbeat interval.
+	 * @param unit
+	 *            the unit of the interval.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad heartbeat(long interval, TimeUnit unit) {
+		heartbeatNanos = unit.toNanos(interval);
+		return this;
+	}
+
+	protected long getHeartbeatNanos() {
+		return heartbeatNanos;
+	}
+
+	/**
+	 * Sets the size of the largest frame accepted from the other side. A
+	 * connection that announces a larger frame, or a compressed frame that
+	 * would inflate to a larger one, is dropped before any memory is set
+	 * aside for it.
+	 * 
+	 * @param bytes
+	 *            the maximum frame size, at least MIN_MAX_FRAME_SIZE.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad maxFrameSize(int bytes) {
+		if (bytes < MIN_MAX_FRAME_SIZE) {
+			throw new IllegalArgumentException(
+					"bytes must be at least MIN_MAX_FRAME_SIZE.");
+		}
+		maxFrameSize = bytes;
+		return this;
+	}
+
+	protected int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/**
+	 * Limits the incoming data held for each LandingZone: the frame being
+	 * read, and stream data that has not been handed to its StreamReader yet.
+	 * Once a LandingZone's budget is used up, reading from it pauses until
+	 * its streams are read. Zero, the default, sets no limit.
+	 * 
+	 * @param bytes
+	 *            the budget per LandingZone.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad zoneInboundBudget(long bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("bytes must not be negative.");
+		}
+		zoneInboundBudget = bytes;
+		return this;
+	}
+
+	protected long getZoneInboundBudget() {
+		return zoneInboundBudget;
+	}
+
+	/**
+	 * Limits the incoming data held for all of this LaunchPad's LandingZones
+	 * together, as for {@link #zoneInboundBudget(long)}. Once it is used up,
+	 * every LandingZone that needs more memory pauses reading until some is
+	 * released. Zero, the default, sets no limit.
+	 * 
+	 * @param bytes
+	 *            the budget.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad inboundBudget(long bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("bytes must not be negative.");
+		}
+		inboundBudget = bytes;
+		return this;
+	}
+
+	/**
+	 * @return the number of bytes of incoming data held for all of this
+	 *         LaunchPad's LandingZones.
+	 */
+	public long getInboundBytes() {
+		return inboundBytes.get();
+	}
+
+	/**
+	 * Reserves inbound memory within the LaunchPad's budget. A LandingZone
+	 * that is refused is resumed once memory is released.
+	 * 
+	 * @param bytes
+	 *            the number of bytes.
+	 * @param zone
+	 *            the LandingZone asking.
+	 * @return whether the memory was reserved.
+	 */
+	protected boolean reserveInbound(long bytes, LandingZone zone) {
+		boolean queued = false;
+		while (true) {
+			long held = inboundBytes.get();
+			if (inboundBudget > 0 && held > 0 && held + bytes > inboundBudget) {
+				if (queued) {
+					return false;
+				}
+				/* Queued before looking again, so a release cannot be missed. */
+				starvedZones.offer(zone);
+				queued = true;
+			} else if (inboundBytes.compareAndSet(held, held + bytes)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Adds to or releases inbound memory without checking the budget.
+	 * Releasing memory resumes the LandingZones waiting for it.
+	 * 
+	 * @param delta
+	 *            the change in the number of bytes.
+	 */
+	protected void addInbound(long delta) {
+		inboundBytes.addAndGet(delta);
+		if (delta < 0) {
+			LandingZone zone;
+			while ((zone = starvedZones.poll()) != null) {
+				zone.resumeReading();
+			}
+		}
+	}
+
+	protected int getWriteBatchBytes() {
+		return writeBatchBytes;
+	}
+
+	protected long getWriteLingerNanos() {
+		return writeLingerNanos;
+	}
+
 	/**
 	 * Sets the Rocket landing listener.
 	 * 
@@ -126,6 +688,113 @@ public class LaunchPad {
 		return prepareForLaunch(Rocket.DEFAULT_TAG);
 	}
 
+	/**
+	 * Gets the metrics of all of this LaunchPad's LandingZones, including
+	 * those that have gone offline. See {@link LandingZone#getMetrics()} for
+	 * a single connection's.
+	 * 
+	 * @return the metrics.
+	 */
+	public RocketMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Registers this LaunchPad's metrics with the platform MBeanServer, as
+	 * com.jwatts.rocket:type=LaunchPad,name=<i>name</i>, along with the
+	 * metrics of each LandingZone while it is online, as
+	 * com.jwatts.rocket:type=LandingZone,launchPad=<i>name</i>,name=
+	 * <i>address</i>. They are unregistered when the LaunchPad shuts down.
+	 * 
+	 * @param name
+	 *            the name to register under, unique among the process's
+	 *            LaunchPads.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad registerMBeans(String name) {
+		mbeanName = ObjectName.quote(name);
+		registerMBean(metrics, "com.jwatts.rocket:type=LaunchPad,name="
+				+ mbeanName);
+		for (LandingZone lz : landingZones) {
+			registerMBean(lz);
+		}
+		return this;
+	}
+
+	private void registerMBean(LandingZone lz) {
+		ObjectName name = registerMBean(lz.getMetrics(),
+				"com.jwatts.rocket:type=LandingZone,launchPad=" + mbeanName
+						+ ",name=" + ObjectName.quote(lz.getAddress()));
+		if (name != null) {
+			zoneMBeans.put(lz, name);
+		}
+	}
+
+	private ObjectName registerMBean(RocketMetrics mbean, String name) {
+		try {
+			ObjectName objectName = new ObjectName(name);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean,
+					objectName);
+			return objectName;
+		} catch (JMException e) {
+			error(e);
+			return null;
+		}
+	}
+
+	private void unregisterMBean(ObjectName name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			error(e);
+		}
+	}
+
+	/**
+	 * Launches a Rocket at every available LandingZone. The Rocket is only
+	 * encoded once, however many LandingZones there are.
+	 * 
+	 * @param rocket
+	 *            the Rocket.
+	 */
+	public void broadcast(Rocket rocket) {
+		rocket.launch(landingZones);
+	}
+
+	/**
+	 * Makes a LaunchPad connected with several connections send every Rocket
+	 * that has the same value for a key over the same connection, so that
+	 * they arrive in the order they were launched. Rockets without the key
+	 * are sent round-robin. Has no effect on other LaunchPads.
+	 * 
+	 * @param key
+	 *            the key, or null to send every Rocket round-robin.
+	 * @return your LaunchPad.
+	 */
+	public LaunchPad stripeBy(String key) {
+		if (pool != null) {
+			pool.stripeBy(key);
+		}
+		return this;
+	}
+
+	/**
+	 * Launches several Rockets at a LandingZone, in order. They are all
+	 * queued before the LandingZone's Reactor is asked to write them, so the
+	 * whole batch costs at most one selector wakeup.
+	 * 
+	 * @param rockets
+	 *            the Rockets.
+	 * @param zone
+	 *            the LandingZone.
+	 */
+	public void launchAll(Collection<Rocket> rockets, LandingZone zone) {
+		for (Rocket rocket : rockets) {
+			rocket.queue(zone, Rocket.HEADER_BYTE_TYPE, 0);
+		}
+		zone.requestWrite();
+	}
+
 	/**
 	 * Gets a List of all available LandingZones.
 	 * 
@@ -139,13 +808,31 @@ public class LaunchPad {
 	 * Shutdown the LaunchPad.
 	 */
 	public void shutdown() {
-		stopThread();
-		try {
-			selector.close();
-		} catch (IOException e) {
-			error(e);
+		if (acceptor != null) {
+			acceptor.stop();
+		}
+		for (Reactor reactor : reactors) {
+			reactor.stop();
+		}
+		if (pool != null) {
+			pool.discard(new IOException("LaunchPad shut down."));
+		}
+		if (ownsDispatcher && dispatcher instanceof ExecutorService) {
+			((ExecutorService) dispatcher).shutdown();
+		}
+		if (mbeanName != null) {
+			for (ObjectName name : zoneMBeans.values()) {
+				unregisterMBean(name);
+			}
+			zoneMBeans.clear();
+			try {
+				unregisterMBean(new ObjectName(
+						"com.jwatts.rocket:type=LaunchPad,name=" + mbeanName));
+			} catch (JMException e) {
+				error(e);
+			}
+			mbeanName = null;
 		}
-		selector = null;
 	}
 
 	/**
@@ -158,16 +845,98 @@ public class LaunchPad {
 	 * @return your LaunchPad
 	 */
 	public static LaunchPad connect(String hostname, int port) {
+		return connect(hostname, port, 1);
+	}
+
+	/**
+	 * Connects with another LandingZone over several connections, which are
+	 * used together as one {@link PooledLandingZone}. Rockets are spread
+	 * across the connections, so that a high-bandwidth, high-latency link is
+	 * not limited to what one TCP connection can carry. The connections are
+	 * spread across up to one I/O thread per available processor.
+	 * 
+	 * @param hostname
+	 *            the LZ's hostname
+	 * @param port
+	 *            the LZ's port number
+	 * @param connections
+	 *            the number of connections to open.
+	 * @return your LaunchPad
+	 */
+	public static LaunchPad connect(String hostname, int port, int connections) {
+		return connect(hostname, port, connections, 0, 0, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Connects with another LandingZone, and keeps reconnecting whenever a
+	 * connection is lost or cannot be made. Each failed attempt doubles the
+	 * delay before the next one, up to the maximum, and every delay is
+	 * randomly shortened by up to half so that many clients do not retry in
+	 * step. A connection that is lost counts as a failed attempt unless it
+	 * stayed up for at least the maximum delay, so a server that accepts
+	 * connections and then drops them is not retried in a tight loop.
+	 * 
+	 * The connections are used as one {@link PooledLandingZone}, which goes
+	 * online when the first connection is made and then stays online. While
+	 * the other side is unreachable, Rockets launched at it are held, up to
+	 * the offline queue capacity, and sent in one batch once it is back.
+	 * 
+	 * @param hostname
+	 *            the LZ's hostname, resolved again for every attempt.
+	 * @param port
+	 *            the LZ's port number
+	 * @param connections
+	 *            the number of connections to open.
+	 * @param reconnectDelay
+	 *            the delay before reconnecting, or zero never to reconnect.
+	 * @param maxReconnectDelay
+	 *            the longest delay between attempts.
+	 * @param unit
+	 *            the unit of the delays.
+	 * @return your LaunchPad
+	 */
+	public static LaunchPad connect(String hostname, int port,
+			int connections, long reconnectDelay, long maxReconnectDelay,
+			TimeUnit unit) {
+		if (connections < 1) {
+			throw new IllegalArgumentException("connections must be positive.");
+		}
+		if (reconnectDelay < 0 || maxReconnectDelay < reconnectDelay) {
+			throw new IllegalArgumentException(
+					"maxReconnectDelay must be at least reconnectDelay.");
+		}
 		InetSocketAddress addr = new InetSocketAddress(hostname, port);
 		LaunchPad pad = new LaunchPad();
 		try {
-			pad.selector = Selector.open();
+			pad.createReactors(Math.min(connections, Runtime.getRuntime()
+					.availableProcessors()));
+			if (reconnectDelay > 0) {
+				pad.reconnectHost = hostname;
+				pad.reconnectPort = port;
+				pad.reconnectDelayNanos = unit.toNanos(reconnectDelay);
+				pad.maxReconnectDelayNanos = unit.toNanos(maxReconnectDelay);
+				pad.pool = new PooledLandingZone(pad, true);
+				for (int i = 0; i < connections; i++) {
+					Reactor reactor = pad.reactors[i % pad.reactors.length];
+					reactor.execute(pad.new Reconnect(reactor,
+							pad.reconnectDelayNanos));
+				}
+				pad.startReactors();
+				return pad;
+			}
+			if (connections > 1) {
+				pad.pool = new PooledLandingZone(pad);
+			}
 
-			SocketChannel channel = SocketChannel.open();
-			channel.configureBlocking(false);
-			channel.register(pad.selector, SelectionKey.OP_CONNECT);
-			channel.connect(addr);
-			pad.startThread();
+			for (int i = 0; i < connections; i++) {
+				SocketChannel channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.register(
+						pad.reactors[i % pad.reactors.length].getSelector(),
+						SelectionKey.OP_CONNECT);
+				channel.connect(addr);
+			}
+			pad.startReactors();
 			return pad;
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -176,25 +945,44 @@ public class LaunchPad {
 	}
 
 	/**
-	 * Serves a LandingZone.
+	 * Serves a LandingZone, with one I/O thread per available processor.
 	 * 
 	 * @param port
 	 *            the port number.
 	 * @return your LaunchPad.
 	 */
 	public static LaunchPad serve(int port) {
+		return serve(port, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Serves a LandingZone. A dedicated thread accepts connections and hands
+	 * each one to one of the I/O threads, which run their own select loops.
+	 * 
+	 * @param port
+	 *            the port number.
+	 * @param ioThreads
+	 *            the number of I/O threads.
+	 * @return your LaunchPad.
+	 */
+	public static LaunchPad serve(int port, int ioThreads) {
+		if (ioThreads < 1) {
+			throw new IllegalArgumentException("ioThreads must be positive.");
+		}
 		LaunchPad pad = new LaunchPad();
 		try {
-			pad.selector = Selector.open();
+			pad.createReactors(ioThreads);
+			pad.startReactors();
+			pad.acceptor = new Reactor(pad);
 
 			ServerSocketChannel channel = ServerSocketChannel.open();
 			channel.configureBlocking(false);
 			channel.socket().bind(new InetSocketAddress(port));
-			SelectionKey key = channel.register(pad.selector,
+			SelectionKey key = channel.register(pad.acceptor.getSelector(),
 					SelectionKey.OP_ACCEPT);
 			key.attach(pad);
 
-			pad.startThread();
+			pad.acceptor.start("rocket-acceptor-" + port);
 			return pad;
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -202,54 +990,40 @@ public class LaunchPad {
 		return null;
 	}
 
-	private Runnable background = new Runnable() {
-		@Override
-		public void run() {
-			while (!Thread.interrupted() && selector.isOpen()) {
-				try {
-					selector.select();
-				} catch (IOException e1) {
-					error(e1);
-					try {
-						selector.close();
-					} catch (IOException e) {
-						error(e);
-					}
-					continue;
-				}
-				Set<SelectionKey> keys = selector.selectedKeys();
-				Iterator<SelectionKey> iter = keys.iterator();
-				while (iter.hasNext()) {
-					SelectionKey key = iter.next();
-					iter.remove();
-					if (!key.isValid()) {
-						removeLandingZone(key);
-						continue;
-					}
-					if (key.isAcceptable()) {
-						if (handleAcceptConnection(key)) {
-							continue;
-						}
-
-					} else {
-						if (key.isConnectable()) {
-							if (handleConnect(key)) {
-								continue;
-							}
-						}
-						// if (key.isReadable()) {
-						if (handleRead(key)) {
-							continue;
-						}
-						// }
-						if (handleWrite(key)) {
-							continue;
-						}
-					}
+	/**
+	 * Handles a selected key on one of this LaunchPad's Reactors. Listeners
+	 * may run on the Reactor's thread, with {@link Dispatchers#inline()}, so
+	 * a RuntimeException thrown while handling a connection is reported to
+	 * the ErrorListener and drops only that connection.
+	 * 
+	 * @param reactor
+	 *            the Reactor that selected the key.
+	 * @param key
+	 *            the SelectionKey.
+	 */
+	protected void handleKey(Reactor reactor, SelectionKey key) {
+		if (!key.isValid()) {
+			removeLandingZone(key);
+			return;
+		}
+		if (key.isAcceptable()) {
+			handleAcceptConnection(key);
+			return;
+		}
+		try {
+			if (key.isConnectable()) {
+				if (handleConnect(reactor, key)) {
+					return;
 				}
 			}
+			if (handleRead(reactor, key)) {
+				return;
+			}
+			handleWrite(reactor, key);
+		} catch (RuntimeException e) {
+			disconnect(key, e);
 		}
-	};
+	}
 
 	/**
 	 * Accepts a connection from another LandingZone.
@@ -260,15 +1034,25 @@ public class LaunchPad {
 	private boolean handleAcceptConnection(SelectionKey key) {
 		/* We must accept connection from server. */
 		ServerSocketChannel channel = (ServerSocketChannel) key.channel();
-		SocketChannel client;
 		try {
-			client = channel.accept();
+			final SocketChannel client = channel.accept();
 			if (client != null) {
 				client.configureBlocking(false);
 				client.socket().setTcpNoDelay(true);
-				SelectionKey clientKey = client.register(selector,
-						SelectionKey.OP_READ);
-				addLandingZone(clientKey);
+				final Reactor reactor = nextReactor();
+				/* Channels can only be registered while their selector is idle. */
+				reactor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							SelectionKey clientKey = client.register(
+									reactor.getSelector(), SelectionKey.OP_READ);
+							addLandingZone(reactor, clientKey);
+						} catch (IOException e) {
+							error(e);
+						}
+					}
+				});
 			}
 		} catch (IOException e) {
 			error(e);
@@ -284,19 +1068,19 @@ public class LaunchPad {
 	 * @param key
 	 *            the SelectionKey for the LandingZone.
 	 */
-	private boolean handleConnect(SelectionKey key) {
+	private boolean handleConnect(Reactor reactor, SelectionKey key) {
 		SocketChannel channel = (SocketChannel) key.channel();
 		try {
 			channel.configureBlocking(false);
 			channel.finishConnect();
 			key.interestOps(SelectionKey.OP_READ);
-			addLandingZone(key);
+			addLandingZone(reactor, key);
 		} catch (IOException e) {
 			error(e);
 			removeLandingZone(key);
 			return true;
 		}
-		return false;
+		return !key.isValid();
 	}
 
 	/**
@@ -305,10 +1089,13 @@ public class LaunchPad {
 	 * @param key
 	 *            the SelectionKey for the LandingZone.
 	 */
-	private boolean handleRead(SelectionKey key) {
+	private boolean handleRead(Reactor reactor, SelectionKey key) {
 		Object attachment = key.attachment();
 		if (!(attachment instanceof LandingZone)) {
-			addLandingZone(key);
+			addLandingZone(reactor, key);
+			if (!key.isValid()) {
+				return true;
+			}
 		}
 		LandingZone lz = (LandingZone) key.attachment();
 		try {
@@ -327,10 +1114,13 @@ public class LaunchPad {
 	 * @param key
 	 *            the SelectionKey for the LandingZone.
 	 */
-	private boolean handleWrite(SelectionKey key) {
+	private boolean handleWrite(Reactor reactor, SelectionKey key) {
 		Object attachment = key.attachment();
 		if (!(attachment instanceof LandingZone)) {
-			addLandingZone(key);
+			addLandingZone(reactor, key);
+			if (!key.isValid()) {
+				return true;
+			}
 		}
 		LandingZone lz = (LandingZone) key.attachment();
 		try {
@@ -345,71 +1135,265 @@ public class LaunchPad {
 
 	/**
 	 * Adds a LandingZone to the list of the LandingZones and dispatches the
-	 * onLZOnline event.
+	 * onLZOnline event. A connection in a pool first waits for the other
+	 * side's HELLO; see {@link #joinPool(SelectionKey)}.
 	 * 
+	 * @param reactor
+	 *            the Reactor that the connection is registered with.
 	 * @param key
 	 *            the SelectionKey for the LandingZone's connection.
 	 */
-	private void addLandingZone(SelectionKey key) {
-		final LandingZone lz = LandingZone.wrap(LaunchPad.this, key);
+	private void addLandingZone(Reactor reactor, SelectionKey key) {
+		LandingZone connection = LandingZone.wrap(LaunchPad.this, reactor, key,
+				pool != null ? pool.getMetrics() : metrics);
+		Object a = key.attachment();
+		connection.setReconnectDelay(a instanceof Reconnect ? ((Reconnect) a)
+				.nextDelay : reconnectDelayNanos);
+		connection.sendHello();
+		connection.startTimers();
+		key.attach(connection);
+		if (pool != null) {
+			connection.awaitHello();
+		} else {
+			online(key, connection);
+		}
+	}
+
+	/**
+	 * Adds a connection to the pool once the other side's HELLO has arrived,
+	 * firing the onLZOnline event if the pool has just come online. See
+	 * {@link LandingZone#awaitHello()}.
+	 * 
+	 * @param key
+	 *            the SelectionKey for the connection.
+	 */
+	protected void joinPool(SelectionKey key) {
+		if (pool.addConnection((LandingZone) key.attachment())) {
+			online(key, pool);
+		}
+	}
+
+	private void online(SelectionKey key, final LandingZone lz) {
 		landingZones.add(lz);
+		if (mbeanName != null) {
+			registerMBean(lz);
+		}
 		if (lzListener != null) {
-			new Thread(new Runnable() {
-				@Override
-				public void run() {
-					lzListener.onLZOnline(LaunchPad.this, lz);
-				}
-			}).start();
+			try {
+				dispatch(new Runnable() {
+					@Override
+					public void run() {
+						lzListener.onLZOnline(LaunchPad.this, lz);
+					}
+				});
+			} catch (RuntimeException e) {
+				disconnect(key, e);
+			}
 		}
-		key.attach(lz);
 	}
 
 	private void removeLandingZone(SelectionKey key) {
 		Object a = key.attachment();
-		if (a instanceof LandingZone) {
-			final LandingZone lz = (LandingZone) a;
-			landingZones.remove(lz);
-			if (lzListener != null) {
-				new Thread(new Runnable() {
-					@Override
-					public void run() {
-						lzListener.onLZOffline(LaunchPad.this, lz);
+		if (a instanceof Reconnect) {
+			close(key);
+			((Reconnect) a).retry();
+		} else if (a instanceof LandingZone) {
+			/* Detached first, so that it is only removed once. */
+			key.attach(null);
+			close(key);
+			LandingZone connection = (LandingZone) a;
+			connection.setOffline();
+			connection.failRequests(new IOException("LandingZone went offline."));
+			boolean offline = pool == null || pool.removeConnection(connection);
+			connection.cancelWrites();
+			connection.getMetrics().retire();
+			connection.releaseInbound();
+			if (reconnectDelayNanos > 0) {
+				/*
+				 * A connection that drops sooner than the longest delay has
+				 * not proved the other side is back, so the backoff carries
+				 * on from where it was rather than starting over.
+				 */
+				long delay = connection.getReconnectDelay();
+				if (System.nanoTime() - connection.getConnectedAt()
+						>= maxReconnectDelayNanos) {
+					delay = reconnectDelayNanos;
+				}
+				reconnect(nextReactor(), delay);
+			} else if (offline) {
+				/* Otherwise, other connections in the pool are still online. */
+				final LandingZone lz = pool != null ? pool : connection;
+				landingZones.remove(lz);
+				ObjectName name = zoneMBeans.remove(lz);
+				if (name != null) {
+					unregisterMBean(name);
+				}
+				if (lzListener != null) {
+					try {
+						dispatch(new Runnable() {
+							@Override
+							public void run() {
+								lzListener.onLZOffline(LaunchPad.this, lz);
+							}
+						});
+					} catch (RuntimeException e) {
+						error(e);
 					}
-				}).start();
+				}
 			}
+		} else {
+			key.cancel();
 		}
+	}
+
+
+	/**
+	 * Drops a connection, as though it had failed. Must be called on the
+	 * connection's Reactor thread.
+	 * 
+	 * @param key
+	 *            the connection's SelectionKey.
+	 * @param cause
+	 *            the reason, reported to the ErrorListener.
+	 */
+	protected void disconnect(SelectionKey key, Exception cause) {
+		error(cause);
+		removeLandingZone(key);
+	}
+
+	/**
+	 * Cancels a key and closes its channel.
+	 * 
+	 * @param key
+	 *            the SelectionKey.
+	 */
+	private void close(SelectionKey key) {
 		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			error(e);
+		}
 	}
 
 	/**
-	 * Gets the LaunchPad's selector.
+	 * Schedules a connection attempt after a randomly shortened delay.
 	 * 
-	 * @return the selector.
+	 * @param reactor
+	 *            the Reactor to register the new connection with.
+	 * @param delay
+	 *            the delay in nanoseconds.
 	 */
-	protected Selector getSelector() {
-		return selector;
+	private void reconnect(Reactor reactor, long delay) {
+		long jittered = delay / 2
+				+ ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+		reactor.schedule(new Reconnect(reactor, Math.min(delay * 2,
+				maxReconnectDelayNanos)), jittered);
 	}
 
 	/**
-	 * Starts the LaunchPad's background thread.
+	 * Runs a task on one of this LaunchPad's Reactors once a delay has
+	 * passed.
+	 * 
+	 * @param task
+	 *            the task.
+	 * @param delayNanos
+	 *            the delay in nanoseconds.
+	 * @return a Timeout that can be cancelled.
 	 */
-	private void startThread() {
-		thread = new Thread(background);
-		thread.start();
+	protected Timeout schedule(Runnable task, long delayNanos) {
+		return nextReactor().schedule(task, delayNanos);
 	}
 
 	/**
-	 * Stops this LaunchPad's background thread.
+	 * One attempt to open a connection for a reconnecting LaunchPad. Runs on
+	 * the Reactor the connection is registered with, and is attached to its
+	 * key until the connection is made.
 	 */
-	private void stopThread() {
-		if (thread != null && thread.isAlive()) {
-			thread.interrupt();
+	private class Reconnect implements Runnable {
+		private final Reactor reactor;
+		private final long nextDelay;
+
+		/**
+		 * @param reactor
+		 *            the Reactor to register the connection with.
+		 * @param nextDelay
+		 *            the delay before the next attempt, if this one fails.
+		 */
+		private Reconnect(Reactor reactor, long nextDelay) {
+			this.reactor = reactor;
+			this.nextDelay = nextDelay;
+		}
+
+		@Override
+		public void run() {
+			InetSocketAddress addr = new InetSocketAddress(reconnectHost,
+					reconnectPort);
+			SocketChannel channel = null;
 			try {
-				thread.join();
-			} catch (InterruptedException e) {
+				if (addr.isUnresolved()) {
+					throw new IOException("Cannot resolve " + reconnectHost);
+				}
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				SelectionKey key = channel.register(reactor.getSelector(),
+						SelectionKey.OP_CONNECT, this);
+				if (channel.connect(addr)) {
+					key.interestOps(SelectionKey.OP_READ);
+					addLandingZone(reactor, key);
+				}
+			} catch (IOException e) {
 				error(e);
+				if (channel != null) {
+					try {
+						channel.close();
+					} catch (IOException e1) {
+						error(e1);
+					}
+				}
+				retry();
 			}
 		}
+
+		/**
+		 * Schedules the next attempt after this one has failed.
+		 */
+		private void retry() {
+			reconnect(reactor, nextDelay);
+		}
+	}
+
+	/**
+	 * Creates this LaunchPad's I/O Reactors.
+	 * 
+	 * @param count
+	 *            the number of Reactors.
+	 * @throws IOException
+	 */
+	private void createReactors(int count) throws IOException {
+		reactors = new Reactor[count];
+		for (int i = 0; i < count; i++) {
+			reactors[i] = new Reactor(this);
+		}
+	}
+
+	/**
+	 * Starts this LaunchPad's I/O Reactors.
+	 */
+	private void startReactors() {
+		for (int i = 0; i < reactors.length; i++) {
+			reactors[i].start("rocket-reactor-" + i);
+		}
+	}
+
+	/**
+	 * Picks the Reactor that will serve the next accepted connection.
+	 * 
+	 * @return the Reactor.
+	 */
+	private Reactor nextReactor() {
+		int index = nextReactor.getAndIncrement() & Integer.MAX_VALUE;
+		return reactors[index % reactors.length];
 	}
 
 	/**
@@ -418,12 +1402,43 @@ public class LaunchPad {
 	 * @param e
 	 *            the Exception thrown
 	 */
-	private void error(Exception e) {
+	protected void error(Exception e) {
 		if (error != null) {
 			error.onError(this, e);
 		}
 	}
 
+	/**
+	 * Hands a listener callback to the dispatch Executor. Callbacks rejected
+	 * by a saturated Executor are reported to the ErrorListener.
+	 * 
+	 * @param callback
+	 *            the callback.
+	 */
+	protected void dispatch(Runnable callback) {
+		try {
+			dispatcher.execute(callback);
+		} catch (RejectedExecutionException e) {
+			error(e);
+		}
+	}
+
+	/**
+	 * Hands a task to the dispatch Executor, or runs it on the calling thread
+	 * if the Executor rejects it, for tasks that must not be lost, such as
+	 * completing a request's future.
+	 * 
+	 * @param task
+	 *            the task.
+	 */
+	protected void dispatchOrRun(Runnable task) {
+		try {
+			dispatcher.execute(task);
+		} catch (RejectedExecutionException e) {
+			task.run();
+		}
+	}
+
 	/**
 	 * Notifies listeners that a Rocket has impacted this LZ.
 	 * 
@@ -431,22 +1446,23 @@ public class LaunchPad {
 	 *            the Rocket
 	 */
 	protected void land(final Rocket rocket) {
+		final RocketMetrics zoneMetrics = rocket.getOrigin().getMetrics();
+		zoneMetrics.rocketLanded();
+		final LandingListener i;
 		if (landingListeners.containsKey(rocket.getTag())) {
-			final LandingListener i = landingListeners.get(rocket.getTag());
-			new Thread(new Runnable() {
-				@Override
-				public void run() {
-					i.onLanding(LaunchPad.this, rocket);
-				}
-			}).start();
+			i = landingListeners.get(rocket.getTag());
 		} else if (landingListeners.containsKey(Rocket.DEFAULT_TAG)) {
-			final LandingListener i = landingListeners.get(Rocket.DEFAULT_TAG);
-			new Thread(new Runnable() {
-				@Override
-				public void run() {
-					i.onLanding(LaunchPad.this, rocket);
-				}
-			}).start();
+			i = landingListeners.get(Rocket.DEFAULT_TAG);
+		} else {
+			return;
 		}
+		final long landed = System.nanoTime();
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				zoneMetrics.dispatched(System.nanoTime() - landed);
+				i.onLanding(LaunchPad.this, rocket);
+			}
+		});
 	}
 }
@@ -0,0 +1,543 @@
+package com.jwatts.rocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Several connections to the same peer, used as one LandingZone. See
+ * {@link LaunchPad#connect(String, int, int)}.
+ *
+ * Each Rocket is sent over one of the connections, together with its
+ * RocketStreams. By default the connections take turns; with
+ * {@link LaunchPad#stripeBy(String)}, Rockets with the same value for the
+ * stripe key always share a connection, so they keep their order. Rockets
+ * sent over different connections may arrive in any order. Replies to
+ * requests come back over the connection the request went out on.
+ *
+ * The pool is online while at least one of its connections is. When a
+ * connection drops, Rockets are spread over the rest, so Rockets with the
+ * same stripe key may move to another connection, along with the Rockets
+ * and RocketStreams that were still queued on the one that dropped.
+ *
+ * A pool that reconnects (see
+ * {@link LaunchPad#connect(String, int, int, long, long, TimeUnit)}) stays
+ * available while all of its connections are down. Rockets, RocketStreams and
+ * requests launched at it in the meantime are held, up to the LaunchPad's
+ * offline queue capacity, and sent in one batch over the first connection to
+ * come back. Requests that were already sent when a connection dropped are
+ * failed rather than resent, since the other side may have acted on them.
+ * So are RocketStreams that had started sending: their data has been read
+ * from its source and cannot be sent again, so each one is closed and
+ * reported to the ErrorListener, and the other side abandons its half.
+ *
+ * @author joeywatts
+ *
+ */
+public class PooledLandingZone extends LandingZone {
+	private final CopyOnWriteArrayList<LandingZone> connections;
+	private final AtomicInteger next;
+	private volatile String stripeKey;
+	private final boolean holdWhileOffline;
+	private final ArrayDeque<Object> held;
+	private boolean needsDefinitions;
+	private boolean online;
+
+	protected PooledLandingZone(LaunchPad pad) {
+		this(pad, false);
+	}
+
+	/**
+	 * @param pad
+	 *            the LaunchPad.
+	 * @param holdWhileOffline
+	 *            whether the pool stays online, holding what is launched at
+	 *            it, while it has no connections.
+	 */
+	protected PooledLandingZone(LaunchPad pad, boolean holdWhileOffline) {
+		super(pad);
+		connections = new CopyOnWriteArrayList<LandingZone>();
+		next = new AtomicInteger();
+		this.holdWhileOffline = holdWhileOffline;
+		held = new ArrayDeque<Object>();
+	}
+
+	/**
+	 * Adds a connection once the other side's HELLO has arrived, and sends it
+	 * everything the pool is holding. See {@link LandingZone#awaitHello()}.
+	 *
+	 * @param connection
+	 *            the connection.
+	 * @return whether the pool has just come online.
+	 */
+	protected synchronized boolean addConnection(LandingZone connection) {
+		connections.add(connection);
+		if (!held.isEmpty()) {
+			flush(connection);
+		}
+		if (online) {
+			return false;
+		}
+		online = true;
+		return true;
+	}
+
+	/**
+	 * Removes a connection that has gone offline. The Rockets and
+	 * RocketStreams still queued on it are moved to another connection, or
+	 * held until one comes back.
+	 *
+	 * @param connection
+	 *            the connection.
+	 * @return whether the pool has just gone offline.
+	 */
+	protected synchronized boolean removeConnection(LandingZone connection) {
+		if (!connections.remove(connection)) {
+			return false;
+		}
+		if (holdWhileOffline || !connections.isEmpty()) {
+			salvage(connection);
+			return false;
+		}
+		online = false;
+		return true;
+	}
+
+	/**
+	 * @return the connections that are online.
+	 */
+	public List<LandingZone> getConnections() {
+		return Collections.unmodifiableList(connections);
+	}
+
+	protected void stripeBy(String key) {
+		stripeKey = key;
+	}
+
+	/**
+	 * Picks a connection without taking the pool's lock. A Rocket queued on
+	 * a connection that drops in the meantime is handed back to the pool;
+	 * see {@link LandingZone#setOffline()}.
+	 */
+	@Override
+	protected LandingZone select(Rocket rocket) {
+		Object[] online = connections.toArray();
+		if (online.length == 0) {
+			if (holdWhileOffline) {
+				return this;
+			}
+			throw new IllegalStateException("LandingZone is offline.");
+		}
+		String key = stripeKey;
+		Object value = key == null ? null : rocket.get(key);
+		int index;
+		if (value == null) {
+			index = next.getAndIncrement();
+		} else if (value instanceof byte[]) {
+			index = spread(Arrays.hashCode((byte[]) value));
+		} else {
+			index = spread(value.hashCode());
+		}
+		return (LandingZone) online[(index & Integer.MAX_VALUE) % online.length];
+	}
+
+	/**
+	 * Mixes the bits of a hash code, so that keys whose hash codes only differ
+	 * in their high bits still land on different connections.
+	 */
+	private static int spread(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		return h ^ (h >>> 13);
+	}
+
+	@Override
+	public CompletableFuture<Rocket> request(Rocket rocket, long timeout,
+			TimeUnit unit) {
+		LandingZone connection = select(rocket);
+		if (connection != this) {
+			return connection.request(rocket, timeout, unit);
+		}
+		HeldRequest request;
+		synchronized (this) {
+			connection = first();
+			if (connection != null) {
+				return connection.request(rocket, timeout, unit);
+			}
+			long nanos = unit.toNanos(timeout);
+			request = new HeldRequest(rocket, nanos > 0 ? System.nanoTime()
+					+ nanos : 0);
+			hold(request);
+		}
+		if (request.deadline != 0) {
+			scheduleTimeout(request, unit.toNanos(timeout));
+		}
+		return request.future;
+	}
+
+	/**
+	 * Fails a held request once its timeout has passed, unless it has been
+	 * sent by then.
+	 */
+	private void scheduleTimeout(final HeldRequest request, long nanos) {
+		getLaunchPad().schedule(new Runnable() {
+			@Override
+			public void run() {
+				boolean removed;
+				synchronized (PooledLandingZone.this) {
+					removed = held.remove(request);
+				}
+				if (removed) {
+					complete(request.future, null, new TimeoutException(
+							"No reply to request."));
+				}
+			}
+		}, nanos);
+	}
+
+	@Override
+	protected synchronized void queueBuffer(RocketBuffer buffer) {
+		LandingZone connection = first();
+		if (connection != null) {
+			buffer = readableBy(connection, buffer);
+			if (buffer != null) {
+				connection.queueBuffer(buffer);
+			}
+		} else {
+			holdFrame(buffer);
+		}
+	}
+
+	@Override
+	protected synchronized void queueRocket(RocketBuffer rocket, int[] ids) {
+		LandingZone connection = first();
+		if (connection != null) {
+			rocket = readableBy(connection, rocket);
+			if (rocket == null) {
+				return;
+			} else if (typeOf(rocket) == Rocket.HEADER_BYTE_TYPE_COMPACT) {
+				connection.queueRocket(rocket, ids);
+			} else {
+				connection.queueBuffer(rocket);
+			}
+		} else {
+			holdFrame(rocket);
+			needsDefinitions = true;
+		}
+	}
+
+	@Override
+	protected synchronized void queueStream(RocketStream stream) {
+		stream.setLaunchPad(getLaunchPad());
+		LandingZone connection = first();
+		if (connection != null) {
+			connection.queueStream(stream);
+		} else {
+			try {
+				hold(stream);
+			} catch (IllegalStateException e) {
+				stream.cancel();
+				throw e;
+			}
+			getMetrics().streamsQueued(1);
+		}
+	}
+
+	private void holdFrame(RocketBuffer buffer) {
+		try {
+			hold(buffer);
+		} catch (IllegalStateException e) {
+			buffer.written();
+			throw e;
+		}
+		getMetrics().framesQueued(1);
+	}
+
+	private void hold(Object item) {
+		if (!holdWhileOffline && connections.isEmpty()) {
+			throw new IllegalStateException("LandingZone is offline.");
+		}
+		if (held.size() >= getLaunchPad().getOfflineQueueCapacity()) {
+			throw new IllegalStateException("Outbound queue is full.");
+		}
+		held.add(item);
+	}
+
+	/**
+	 * @return the first connection that is online, or null.
+	 */
+	private LandingZone first() {
+		Iterator<LandingZone> iter = connections.iterator();
+		return iter.hasNext() ? iter.next() : null;
+	}
+
+	/**
+	 * Moves the Rockets and RocketStreams still queued on a connection that
+	 * has gone offline into the held queue, and sends them on if another
+	 * connection is online. Other frames belong to the connection, and are
+	 * dropped, as are requests, whose futures have already been failed.
+	 *
+	 * @param connection
+	 *            the connection.
+	 */
+	private void salvage(LandingZone connection) {
+		List<RocketBuffer> frames = new ArrayList<RocketBuffer>();
+		List<RocketStream> streams = new ArrayList<RocketStream>();
+		connection.drain(frames, streams);
+		int dropped = 0;
+		for (RocketBuffer frame : frames) {
+			boolean rocket = isRocket(frame);
+			if (rocket
+					&& held.size() < getLaunchPad().getOfflineQueueCapacity()) {
+				held.add(frame);
+				getMetrics().framesQueued(1);
+				needsDefinitions |= typeOf(frame)
+						== Rocket.HEADER_BYTE_TYPE_COMPACT;
+			} else {
+				if (rocket) {
+					dropped++;
+				}
+				frame.written();
+			}
+		}
+		for (RocketStream stream : streams) {
+			if (held.size() < getLaunchPad().getOfflineQueueCapacity()) {
+				held.add(stream);
+				getMetrics().streamsQueued(1);
+			} else {
+				stream.cancel();
+				dropped++;
+			}
+		}
+		if (dropped > 0) {
+			getLaunchPad().error(new IOException("Outbound queue is full; "
+					+ dropped + " Rockets and RocketStreams were dropped."));
+		}
+		LandingZone other = first();
+		if (other != null && !held.isEmpty()) {
+			flush(other);
+		}
+	}
+
+	/**
+	 * Whether a frame is a Rocket, rather than a frame that only means
+	 * something on the connection it was queued on.
+	 * 
+	 * @param frame
+	 *            the frame.
+	 * @return whether it can be sent over another connection.
+	 */
+	protected static boolean isRocket(RocketBuffer frame) {
+		byte type = typeOf(frame);
+		return type == Rocket.HEADER_BYTE_TYPE
+				|| type == Rocket.HEADER_BYTE_TYPE_COMPACT;
+	}
+
+	/**
+	 * @return the type of a frame, or of the frame it wraps if it is
+	 *         compressed.
+	 */
+	private static byte typeOf(RocketBuffer frame) {
+		byte type = frame.getType();
+		if (type == HEADER_BYTE_TYPE_COMPRESSED) {
+			/* The codec ID, then the type of the frame it wraps. */
+			type = frame.getBuffer().get(frame.getBuffer().position() + 1);
+		}
+		return type;
+	}
+
+	/**
+	 * Makes a Rocket readable by the other side of the connection it is about
+	 * to be sent over. Rockets moved from a connection that dropped were
+	 * encoded for whatever was on the other end of that one; if the new peer
+	 * does not support compression or the compact encoding, the Rocket is
+	 * decoded and encoded again without them.
+	 *
+	 * @param connection
+	 *            the connection.
+	 * @param frame
+	 *            the Rocket.
+	 * @return the frame to send, or null if it could not be decoded.
+	 */
+	private RocketBuffer readableBy(LandingZone connection, RocketBuffer frame) {
+		byte type = frame.getType();
+		boolean compressed = type == HEADER_BYTE_TYPE_COMPRESSED;
+		boolean compact = typeOf(frame) == Rocket.HEADER_BYTE_TYPE_COMPACT;
+		if ((!compressed || connection.peerSupports(FEATURE_COMPRESSION))
+				&& (!compact || connection.peerSupports(FEATURE_COMPACT_ROCKETS))) {
+			return frame;
+		}
+		ByteBuffer bytes = ByteBuffer.allocate(frame.getLength());
+		bytes.put(frame.getBuffer().duplicate());
+		if (frame.getBody() != null) {
+			bytes.put(frame.getBody().duplicate());
+		}
+		bytes.flip();
+		frame.written();
+		try {
+			if (compressed) {
+				FrameCodec codec = getLaunchPad().getCodec(bytes.get());
+				type = bytes.get();
+				ByteBuffer inflated = ByteBuffer.allocate(RocketValue
+						.getVarint(bytes));
+				codec.decompress(bytes, inflated);
+				inflated.flip();
+				bytes = inflated;
+			}
+			if (compact && !connection.peerSupports(FEATURE_COMPACT_ROCKETS)) {
+				return new Rocket().parseCompact(this, bytes).toRocketBuffer(
+						getLaunchPad().getBufferPool());
+			}
+		} catch (IOException e) {
+			getLaunchPad().error(e);
+			return null;
+		}
+		return new RocketBuffer(type, bytes);
+	}
+
+	/**
+	 * Looks up a dictionary ID of a compact Rocket being encoded again by
+	 * readableBy. The pool receives nothing itself, so its IDs are this
+	 * LaunchPad's own.
+	 */
+	@Override
+	protected String getDefinition(int id) {
+		return getLaunchPad().getDictionary().get(id);
+	}
+
+	/**
+	 * Streams in a Rocket being encoded again by readableBy are being sent,
+	 * not received, so they are left as they are.
+	 */
+	@Override
+	protected RocketStream registerStream(RocketStream stream) {
+		return stream;
+	}
+
+	/**
+	 * Queues everything held on a connection, in order, and asks it to write
+	 * them all at once. Compact Rockets encoded for another connection need
+	 * the dictionary to be defined again first, unless the other side does
+	 * not support them and they are encoded again.
+	 *
+	 * @param connection
+	 *            the connection.
+	 */
+	private void flush(LandingZone connection) {
+		if (needsDefinitions
+				&& connection.peerSupports(FEATURE_COMPACT_ROCKETS)) {
+			connection.defineAll();
+		}
+		needsDefinitions = false;
+		int frames = 0, streams = 0;
+		Object item;
+		while ((item = held.poll()) != null) {
+			if (item instanceof RocketBuffer) {
+				RocketBuffer frame = readableBy(connection, (RocketBuffer) item);
+				if (frame != null) {
+					connection.queueBuffer(frame);
+				}
+				frames++;
+			} else if (item instanceof RocketStream) {
+				connection.queueStream((RocketStream) item);
+				streams++;
+			} else {
+				send((HeldRequest) item, connection);
+			}
+		}
+		getMetrics().framesQueued(-frames);
+		getMetrics().streamsQueued(-streams);
+		connection.requestWrite();
+	}
+
+	private void send(final HeldRequest request, LandingZone connection) {
+		long remaining = request.deadline - System.nanoTime();
+		if (request.deadline != 0 && remaining <= 0) {
+			complete(request.future, null, new TimeoutException(
+					"No reply to request."));
+			return;
+		}
+		connection.request(request.rocket,
+				request.deadline == 0 ? 0 : remaining, TimeUnit.NANOSECONDS)
+				.whenComplete(new BiConsumer<Rocket, Throwable>() {
+					@Override
+					public void accept(Rocket reply, Throwable cause) {
+						if (cause != null) {
+							request.future.completeExceptionally(cause);
+						} else {
+							request.future.complete(reply);
+						}
+					}
+				});
+	}
+
+	/**
+	 * Drops everything held, failing held requests. Called when the LaunchPad
+	 * shuts down.
+	 *
+	 * @param cause
+	 *            the reason held requests fail.
+	 */
+	protected synchronized void discard(Throwable cause) {
+		int frames = 0, streams = 0;
+		Object item;
+		while ((item = held.poll()) != null) {
+			if (item instanceof RocketBuffer) {
+				((RocketBuffer) item).written();
+				frames++;
+			} else if (item instanceof RocketStream) {
+				((RocketStream) item).cancel();
+				streams++;
+			} else {
+				complete(((HeldRequest) item).future, null, cause);
+			}
+		}
+		getMetrics().framesQueued(-frames);
+		getMetrics().streamsQueued(-streams);
+	}
+
+	@Override
+	protected void requestWrite() {
+		for (LandingZone connection : connections) {
+			connection.requestWrite();
+		}
+	}
+
+	@Override
+	protected boolean peerSupports(int feature) {
+		Iterator<LandingZone> iter = connections.iterator();
+		return iter.hasNext() && iter.next().peerSupports(feature);
+	}
+
+	@Override
+	public String getAddress() {
+		Iterator<LandingZone> iter = connections.iterator();
+		return iter.hasNext() ? iter.next().getAddress() : "unconnected";
+	}
+
+	/**
+	 * A request launched while the pool had no connections.
+	 */
+	private static class HeldRequest {
+		private final Rocket rocket;
+		private final long deadline;
+		private final CompletableFuture<Rocket> future;
+
+		private HeldRequest(Rocket rocket, long deadline) {
+			this.rocket = rocket;
+			this.deadline = deadline;
+			this.future = new CompletableFuture<Rocket>();
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package com.jwatts.rocket;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.jwatts.rocket.TimerWheel.Timeout;
+
+/**
+ * A Reactor owns one Selector and the background thread that runs its select
+ * loop. A LaunchPad uses one Reactor per core so that the I/O for its
+ * LandingZones is spread across threads. Timers run on the same thread, from
+ * a {@link TimerWheel} that the select loop expires between selects.
+ *
+ * @author joeywatts
+ *
+ */
+class Reactor implements Runnable {
+	private final LaunchPad launchPad;
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+	private final TimerWheel timers;
+	private final ArrayList<Runnable> expired;
+	private Thread thread;
+
+	protected Reactor(LaunchPad launchPad) throws IOException {
+		this.launchPad = launchPad;
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.timers = new TimerWheel();
+		this.expired = new ArrayList<Runnable>();
+	}
+
+	/**
+	 * Gets this Reactor's selector.
+	 *
+	 * @return the selector.
+	 */
+	protected Selector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * @return whether the calling thread is this Reactor's thread.
+	 */
+	protected boolean inReactorThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Runs a task on this Reactor's thread, before its next select.
+	 *
+	 * @param task
+	 *            the task.
+	 */
+	protected void execute(Runnable task) {
+		tasks.offer(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs a task on this Reactor's thread once a delay has passed, give or
+	 * take a tick of the TimerWheel. May be called from any thread.
+	 *
+	 * @param task
+	 *            the task.
+	 * @param delayNanos
+	 *            the delay in nanoseconds.
+	 * @return a Timeout that can be cancelled.
+	 */
+	protected Timeout schedule(Runnable task, long delayNanos) {
+		final Timeout timeout = new Timeout(task, System.nanoTime()
+				+ delayNanos);
+		if (inReactorThread()) {
+			timers.add(timeout);
+		} else {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					timers.add(timeout);
+				}
+			});
+		}
+		return timeout;
+	}
+
+	/**
+	 * Starts this Reactor's background thread.
+	 *
+	 * @param name
+	 *            the name of the thread.
+	 */
+	protected void start(String name) {
+		thread = new Thread(this, name);
+		thread.start();
+	}
+
+	/**
+	 * Stops this Reactor's background thread and closes its selector.
+	 */
+	protected void stop() {
+		if (thread != null && thread.isAlive()
+				&& thread != Thread.currentThread()) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				launchPad.error(e);
+			}
+		}
+		try {
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+		} catch (IOException e) {
+			launchPad.error(e);
+		}
+	}
+
+	@Override
+	public void run() {
+		while (!Thread.interrupted() && selector.isOpen()) {
+			try {
+				long delay = timers.nanosUntilNext(System.nanoTime());
+				if (delay < 0) {
+					selector.select();
+				} else {
+					/* select(0) would block forever, so wait at least 1ms. */
+					selector.select(Math.max(1, (delay + 999999) / 1000000));
+				}
+			} catch (IOException e1) {
+				launchPad.error(e1);
+				try {
+					selector.close();
+				} catch (IOException e) {
+					launchPad.error(e);
+				}
+				continue;
+			}
+			runTasks();
+			Set<SelectionKey> keys = selector.selectedKeys();
+			Iterator<SelectionKey> iter = keys.iterator();
+			while (iter.hasNext()) {
+				SelectionKey key = iter.next();
+				iter.remove();
+				launchPad.handleKey(this, key);
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			run(task);
+		}
+		timers.expire(System.nanoTime(), expired);
+		for (int i = 0; i < expired.size(); i++) {
+			run(expired.get(i));
+		}
+		expired.clear();
+	}
+
+	/**
+	 * Runs a task or timer. One that throws is reported to the LaunchPad's
+	 * ErrorListener, rather than stopping this Reactor and stranding every
+	 * connection it serves.
+	 * 
+	 * @param task
+	 *            the task.
+	 */
+	private void run(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			launchPad.error(e);
+		}
+	}
+}
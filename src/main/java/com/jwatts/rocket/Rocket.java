@@ -1,18 +1,67 @@
 package com.jwatts.rocket;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
 public class Rocket {
 	public static final byte HEADER_BYTE_TYPE = 0;
+
+	/*
+	 * A Rocket in the compact encoding, sent to peers that support it: tag and
+	 * keys are varint dictionary IDs (or zero followed by the string), values
+	 * have no length unless they are Strings or byte arrays.
+	 */
+	protected static final byte HEADER_BYTE_TYPE_COMPACT = 8;
+
+	/*
+	 * A request or a reply: a varint correlation ID and the type of the
+	 * Rocket frame that follows.
+	 */
+	protected static final byte HEADER_BYTE_TYPE_REQUEST = 11;
+	protected static final byte HEADER_BYTE_TYPE_REPLY = 12;
 	public static final String DEFAULT_TAG = "default";
 	private String tag;
 	private HashMap<String, Object> data;
 	private LandingZone origin;
+	private Boolean compress;
+	private int requestId;
+
+	/*
+	 * A lazily decoded Rocket keeps its frame, and indexes where each field's
+	 * key and data are in it. Values are decoded the first time they are
+	 * read; the frame is dropped once the Rocket is changed or iterated, and
+	 * returned to the BufferPool unless slices of it have been handed out.
+	 * Until then, launching it again reuses the frame's bytes.
+	 */
+	private static final int FIELD_STRIDE = 5, KEY_OFFSET = 0, KEY_LENGTH = 1,
+			VALUE_TYPE = 2, DATA_OFFSET = 3, DATA_LENGTH = 4;
+	private ByteBuffer frame;
+	private int frameStart, frameEnd;
+	private boolean frameCompact;
+	/* The pool the frame is returned to once it is dropped, unless shared. */
+	private BufferPool framePool;
+	private boolean frameShared;
+	private int fieldCount;
+	private int[] fields;
+	private String[] fieldKeys;
+	private Object[] fieldValues;
+
+	/*
+	 * Primitive values attached with attachInt and friends are kept unboxed,
+	 * as their type and raw bits, and are written straight into the frame.
+	 */
+	private int primitiveCount;
+	private String[] primitiveKeys;
+	private byte[] primitiveTypes;
+	private long[] primitiveBits;
 
 	protected Rocket(String tag) {
 		this.tag = tag;
@@ -34,11 +83,176 @@ public class Rocket {
 	 */
 	public Rocket attach(String key, Object value) {
 		/* TODO: type check value. */
+		materialize();
+		removePrimitive(key);
 		data.put(key, value);
 		return this;
 	}
 
+	/**
+	 * Attaches an int without boxing it.
+	 * 
+	 * @param key
+	 *            the unique key for this value.
+	 * @param value
+	 *            the value.
+	 * @return this Rocket.
+	 */
+	public Rocket attachInt(String key, int value) {
+		return attachPrimitive(key, RocketValue.TYPE_INT, value);
+	}
+
+	/**
+	 * Attaches a long without boxing it.
+	 * 
+	 * @param key
+	 *            the unique key for this value.
+	 * @param value
+	 *            the value.
+	 * @return this Rocket.
+	 */
+	public Rocket attachLong(String key, long value) {
+		return attachPrimitive(key, RocketValue.TYPE_LONG, value);
+	}
+
+	/**
+	 * Attaches a double without boxing it.
+	 * 
+	 * @param key
+	 *            the unique key for this value.
+	 * @param value
+	 *            the value.
+	 * @return this Rocket.
+	 */
+	public Rocket attachDouble(String key, double value) {
+		return attachPrimitive(key, RocketValue.TYPE_DOUBLE,
+				Double.doubleToRawLongBits(value));
+	}
+
+	/**
+	 * Attaches a float without boxing it.
+	 * 
+	 * @param key
+	 *            the unique key for this value.
+	 * @param value
+	 *            the value.
+	 * @return this Rocket.
+	 */
+	public Rocket attachFloat(String key, float value) {
+		return attachPrimitive(key, RocketValue.TYPE_FLOAT,
+				Float.floatToRawIntBits(value));
+	}
+
+	/**
+	 * Attaches a short without boxing it.
+	 * 
+	 * @param key
+	 *            the unique key for this value.
+	 * @param value
+	 *            the value.
+	 * @return this Rocket.
+	 */
+	public Rocket attachShort(String key, short value) {
+		return attachPrimitive(key, RocketValue.TYPE_SHORT, value);
+	}
+
+	/**
+	 * Attaches a byte without boxing it.
+	 * 
+	 * @param key
+	 *            the unique key for this value.
+	 * @param value
+	 *            the value.
+	 * @return this Rocket.
+	 */
+	public Rocket attachByte(String key, byte value) {
+		return attachPrimitive(key, RocketValue.TYPE_BYTE, value);
+	}
+
+	private Rocket attachPrimitive(String key, byte type, long bits) {
+		materialize();
+		if (!data.isEmpty()) {
+			data.remove(key);
+		}
+		int index = findPrimitive(key);
+		if (index < 0) {
+			if (primitiveKeys == null) {
+				primitiveKeys = new String[8];
+				primitiveTypes = new byte[8];
+				primitiveBits = new long[8];
+			} else if (primitiveCount == primitiveKeys.length) {
+				primitiveKeys = Arrays.copyOf(primitiveKeys, primitiveCount * 2);
+				primitiveTypes = Arrays.copyOf(primitiveTypes,
+						primitiveCount * 2);
+				primitiveBits = Arrays.copyOf(primitiveBits, primitiveCount * 2);
+			}
+			index = primitiveCount++;
+			primitiveKeys[index] = key;
+		}
+		primitiveTypes[index] = type;
+		primitiveBits[index] = bits;
+		return this;
+	}
+
+	private int findPrimitive(String key) {
+		for (int i = 0; i < primitiveCount; i++) {
+			if (primitiveKeys[i].equals(key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds an unboxed primitive of a given type.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @param type
+	 *            the value type the caller can read.
+	 * @return its index, or -1 if there is no such primitive of that type.
+	 */
+	private int findPrimitive(String key, byte type) {
+		int index = findPrimitive(key);
+		if (index < 0 || primitiveTypes[index] != type) {
+			return -1;
+		}
+		return index;
+	}
+
+	private void removePrimitive(String key) {
+		int index = findPrimitive(key);
+		if (index >= 0) {
+			primitiveCount--;
+			primitiveKeys[index] = primitiveKeys[primitiveCount];
+			primitiveTypes[index] = primitiveTypes[primitiveCount];
+			primitiveBits[index] = primitiveBits[primitiveCount];
+			primitiveKeys[primitiveCount] = null;
+		}
+	}
+
+	/**
+	 * Moves the unboxed primitives into the map, for callers that need to see
+	 * every value as an Object.
+	 */
+	private void boxPrimitives() {
+		for (int i = 0; i < primitiveCount; i++) {
+			data.put(primitiveKeys[i],
+					RocketValue.box(primitiveTypes[i], primitiveBits[i]));
+			primitiveKeys[i] = null;
+		}
+		primitiveCount = 0;
+	}
+
 	public Object get(String key) {
+		if (frame != null) {
+			int field = findField(key);
+			return field < 0 ? null : fieldValue(field);
+		}
+		int index = findPrimitive(key);
+		if (index >= 0) {
+			return RocketValue.box(primitiveTypes[index], primitiveBits[index]);
+		}
 		return data.get(key);
 	}
 
@@ -47,26 +261,74 @@ public class Rocket {
 	}
 
 	public int getInt(String key) {
+		int field = findField(key, RocketValue.TYPE_INT);
+		if (field >= 0) {
+			return frame.getInt(dataOffset(field));
+		}
+		int index = findPrimitive(key, RocketValue.TYPE_INT);
+		if (index >= 0) {
+			return (int) primitiveBits[index];
+		}
 		return (int) get(key);
 	}
 
 	public short getShort(String key) {
+		int field = findField(key, RocketValue.TYPE_SHORT);
+		if (field >= 0) {
+			return frame.getShort(dataOffset(field));
+		}
+		int index = findPrimitive(key, RocketValue.TYPE_SHORT);
+		if (index >= 0) {
+			return (short) primitiveBits[index];
+		}
 		return (short) get(key);
 	}
 
 	public long getLong(String key) {
+		int field = findField(key, RocketValue.TYPE_LONG);
+		if (field >= 0) {
+			return frame.getLong(dataOffset(field));
+		}
+		int index = findPrimitive(key, RocketValue.TYPE_LONG);
+		if (index >= 0) {
+			return primitiveBits[index];
+		}
 		return (long) get(key);
 	}
 
 	public float getFloat(String key) {
+		int field = findField(key, RocketValue.TYPE_FLOAT);
+		if (field >= 0) {
+			return frame.getFloat(dataOffset(field));
+		}
+		int index = findPrimitive(key, RocketValue.TYPE_FLOAT);
+		if (index >= 0) {
+			return Float.intBitsToFloat((int) primitiveBits[index]);
+		}
 		return (float) get(key);
 	}
 
 	public double getDouble(String key) {
+		int field = findField(key, RocketValue.TYPE_DOUBLE);
+		if (field >= 0) {
+			return frame.getDouble(dataOffset(field));
+		}
+		int index = findPrimitive(key, RocketValue.TYPE_DOUBLE);
+		if (index >= 0) {
+			return Double.longBitsToDouble(primitiveBits[index]);
+		}
 		return (double) get(key);
 	}
 
 	public byte getByte(String key) {
+		int field = findField(key, RocketValue.TYPE_BYTE);
+		if (field >= 0) {
+			return frame.get(dataOffset(field));
+		}
+		int index = findPrimitive(key, RocketValue.TYPE_BYTE);
+		if (index >= 0) {
+			return (byte) primitiveBits[index];
+		}
 		return (byte) get(key);
 	}
 
@@ -74,32 +336,69 @@ public class Rocket {
 		return (byte[]) get(key);
 	}
 
+	/**
+	 * Gets a byte array value as a ByteBuffer. For a lazily decoded Rocket
+	 * this is a read-only slice of the frame it arrived in, rather than a
+	 * copy.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @return the ByteBuffer, or null if there is no such value.
+	 */
+	public ByteBuffer getByteBuffer(String key) {
+		int field = findField(key, RocketValue.TYPE_BYTE_ARRAY);
+		if (field >= 0) {
+			int offset = dataOffset(field);
+			ByteBuffer slice = frame.duplicate();
+			frameShared = true;
+			slice.limit(offset + fields[field * FIELD_STRIDE + DATA_LENGTH]);
+			slice.position(offset);
+			return slice.slice().asReadOnlyBuffer();
+		}
+		byte[] bytes = getBytes(key);
+		return bytes == null ? null : ByteBuffer.wrap(bytes);
+	}
+
 	public RocketStream getRocketStream(String key) {
 		return (RocketStream) get(key);
 	}
 
 	public Set<Map.Entry<String, Object>> entrySet() {
+		materialize();
+		boxPrimitives();
 		return data.entrySet();
 	}
 
 	public Collection<Object> values() {
+		materialize();
+		boxPrimitives();
 		return data.values();
 	}
 
 	public Set<String> keySet() {
+		materialize();
+		boxPrimitives();
 		return data.keySet();
 	}
 	
 	public boolean containsKey(String key) {
-		return data.containsKey(key);
+		if (frame != null) {
+			return findField(key) >= 0;
+		}
+		return findPrimitive(key) >= 0 || data.containsKey(key);
 	}
 	
 	public boolean containsValue(Object val) {
+		materialize();
+		boxPrimitives();
 		return data.containsValue(val);
 	}
 	
 	public int size() {
-		return data.size();
+		if (frame != null) {
+			return fieldCount;
+		}
+		return data.size() + primitiveCount;
 	}
 
 	public String getTag() {
@@ -113,46 +412,487 @@ public class Rocket {
 	 *            the LandingZone.
 	 */
 	public void launch(LandingZone zone) {
-		RocketBuffer rb = toRocketBuffer();
-		zone.sendBuffer(rb.readOnlyClone());
-		for (Object o : values()) {
+		launchAs(zone, HEADER_BYTE_TYPE, 0);
+	}
+
+	/**
+	 * Launch this Rocket at a LandingZone, either plainly or wrapped in a
+	 * request or reply frame.
+	 * 
+	 * @param zone
+	 *            the LandingZone.
+	 * @param type
+	 *            HEADER_BYTE_TYPE, HEADER_BYTE_TYPE_REQUEST or
+	 *            HEADER_BYTE_TYPE_REPLY.
+	 * @param correlationId
+	 *            the request's ID, for requests and replies.
+	 */
+	protected void launchAs(LandingZone zone, byte type, int correlationId) {
+		queue(zone, type, correlationId);
+		zone.requestWrite();
+	}
+
+	/**
+	 * Queues this Rocket, and any RocketStreams attached to it, on a
+	 * LandingZone without asking its Reactor to write them.
+	 * 
+	 * @param zone
+	 *            the LandingZone.
+	 * @param type
+	 *            HEADER_BYTE_TYPE, HEADER_BYTE_TYPE_REQUEST or
+	 *            HEADER_BYTE_TYPE_REPLY.
+	 * @param correlationId
+	 *            the request's ID, for requests and replies.
+	 */
+	protected void queue(LandingZone zone, byte type, int correlationId) {
+		zone = zone.select(this);
+		LaunchPad pad = zone.getLaunchPad();
+		int encoding = encodingFor(zone);
+		if (!canReuseFrame(encoding)) {
+			materialize();
+		}
+		int[] ids = null;
+		if ((encoding & LandingZone.FEATURE_COMPACT_ROCKETS) != 0) {
+			ids = dictionaryIds(pad.getDictionary());
+		}
+		RocketBuffer rb = encode(pad, encoding, ids);
+		if (type != HEADER_BYTE_TYPE) {
+			ByteBuffer header = ByteBuffer.allocate(RocketValue
+					.varintSize(correlationId) + 1);
+			RocketValue.putVarint(header, correlationId);
+			header.put(rb.getType());
+			header.flip();
+			rb = new RocketBuffer(type, header, rb);
+		}
+		queueFrame(zone, compress(pad, encoding, rb), ids);
+		for (Object o : data.values()) {
 			if (o instanceof RocketStream) {
-				zone.sendStream((RocketStream) o);
+				zone.queueStream((RocketStream) o);
 			}
 		}
 	}
 
 	/**
-	 * Converts this Rocket's data into a ByteBuffer.
+	 * Launch this Rocket at several LandingZones. The Rocket is encoded once
+	 * per encoding in use, and every LandingZone is sent a read-only view of
+	 * the same buffer. Attached RocketStreams are read once and their chunks
+	 * are shared by all the LandingZones.
 	 * 
-	 * @return the ByteBuffer.
+	 * @param zones
+	 *            the LandingZones.
 	 */
-	private RocketBuffer toRocketBuffer() {
-		int totalSize = 0;
-		RocketValue rocketTag = RocketValue.wrap(tag);
-		totalSize += rocketTag.getSize();
-		HashMap<RocketValue, RocketValue> values = new HashMap<RocketValue, RocketValue>();
-		for (Entry<String, Object> entry : data.entrySet()) {
-			String key = entry.getKey();
-			Object value = entry.getValue();
-			RocketValue rocketKey = RocketValue.wrap(key);
-			RocketValue rocketValue = RocketValue.wrap(value);
-			values.put(rocketKey, rocketValue);
-			totalSize += rocketKey.getSize() + rocketValue.getSize();
-		}
-		ByteBuffer buffer = ByteBuffer.allocate(totalSize);
-		rocketTag.write(buffer);
-		for (Entry<RocketValue, RocketValue> entry : values.entrySet()) {
-			RocketValue key = entry.getKey();
-			key.write(buffer);
-			RocketValue value = entry.getValue();
-			value.write(buffer);
+	public void launch(Collection<? extends LandingZone> zones) {
+		List<LandingZone> targets = new ArrayList<LandingZone>(zones.size());
+		for (LandingZone zone : zones) {
+			targets.add(zone.select(this));
+		}
+		if (targets.isEmpty()) {
+			return;
+		}
+		int count = targets.size();
+		LaunchPad pad = targets.get(0).getLaunchPad();
+		int[] encodings = new int[count];
+		HashMap<Integer, Integer> shares = new HashMap<Integer, Integer>();
+		for (int i = 0; i < count; i++) {
+			encodings[i] = encodingFor(targets.get(i));
+			Integer shared = shares.get(encodings[i]);
+			shares.put(encodings[i], shared == null ? 1 : shared + 1);
+		}
+		for (int encoding : shares.keySet()) {
+			if (!canReuseFrame(encoding)) {
+				materialize();
+			}
+		}
+		int[] ids = null;
+		HashMap<Integer, RocketBuffer> encoded = new HashMap<Integer, RocketBuffer>();
+		for (Entry<Integer, Integer> entry : shares.entrySet()) {
+			int encoding = entry.getKey();
+			if (ids == null
+					&& (encoding & LandingZone.FEATURE_COMPACT_ROCKETS) != 0) {
+				ids = dictionaryIds(pad.getDictionary());
+			}
+			encoded.put(encoding,
+					compress(pad, encoding, encode(pad, encoding, ids)).share(
+							entry.getValue()));
+		}
+		List<List<RocketStream>> streams = new ArrayList<List<RocketStream>>();
+		for (Object o : data.values()) {
+			if (o instanceof RocketStream) {
+				streams.add(((RocketStream) o).fanOut(count));
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			LandingZone zone = targets.get(i);
+			int encoding = encodings[i];
+			queueFrame(zone, encoded.get(encoding).readOnlyClone(),
+					(encoding & LandingZone.FEATURE_COMPACT_ROCKETS) != 0 ? ids
+							: null);
+			for (List<RocketStream> copies : streams) {
+				zone.queueStream(copies.get(i));
+			}
+			zone.requestWrite();
+		}
+	}
+
+	/**
+	 * Sends a reply to this Rocket, if it arrived as a request made with
+	 * {@link LandingZone#request(Rocket)}. The reply completes the request's
+	 * future on the other side.
+	 * 
+	 * @param reply
+	 *            the reply.
+	 * @throws IllegalStateException
+	 *             if this Rocket is not a request.
+	 */
+	public void reply(Rocket reply) {
+		if (origin == null || requestId == 0) {
+			throw new IllegalStateException("This Rocket is not a request.");
+		}
+		reply.launchAs(origin, HEADER_BYTE_TYPE_REPLY, requestId);
+	}
+
+	/**
+	 * @return whether this Rocket arrived as a request that expects a reply.
+	 */
+	public boolean isRequest() {
+		return requestId != 0;
+	}
+
+	protected void setRequestId(int id) {
+		requestId = id;
+	}
+
+	/**
+	 * Sets whether this Rocket is compressed, overriding the LaunchPad's
+	 * setting. Rockets smaller than the LaunchPad's compression threshold are
+	 * never compressed.
+	 * 
+	 * @param compress
+	 *            whether to compress this Rocket.
+	 * @return this Rocket.
+	 */
+	public Rocket compress(boolean compress) {
+		this.compress = compress;
+		return this;
+	}
+
+	/**
+	 * Works out which of the optional encodings a LandingZone is sent.
+	 * 
+	 * @param zone
+	 *            the LandingZone.
+	 * @return the LandingZone features used in encoding this Rocket for it.
+	 */
+	private int encodingFor(LandingZone zone) {
+		int encoding = 0;
+		if (zone.peerSupports(LandingZone.FEATURE_COMPACT_ROCKETS)) {
+			encoding |= LandingZone.FEATURE_COMPACT_ROCKETS;
+		}
+		if (zone.getCompression(compress) != null) {
+			encoding |= LandingZone.FEATURE_COMPRESSION;
+		}
+		return encoding;
+	}
+
+	/**
+	 * Encodes this Rocket.
+	 * 
+	 * @param pad
+	 *            the LaunchPad it is launched from.
+	 * @param encoding
+	 *            the encoding, from encodingFor.
+	 * @param ids
+	 *            the dictionary IDs, for the compact encoding.
+	 * @return the RocketBuffer.
+	 */
+	private RocketBuffer encode(LaunchPad pad, int encoding, int[] ids) {
+		if ((encoding & LandingZone.FEATURE_COMPACT_ROCKETS) != 0) {
+			if (frame != null) {
+				return reencodeCompact(pad.getBufferPool(), ids);
+			}
+			return toCompactRocketBuffer(pad.getBufferPool(), ids);
+		}
+		if (frame != null) {
+			ByteBuffer bytes = frame.duplicate();
+			frameShared = true;
+			bytes.limit(frameEnd).position(frameStart);
+			return new RocketBuffer(HEADER_BYTE_TYPE, bytes.slice()
+					.asReadOnlyBuffer());
+		}
+		return toRocketBuffer(pad.getBufferPool());
+	}
+
+	/**
+	 * Whether a lazily decoded Rocket can be launched in an encoding straight
+	 * from the frame it arrived in, without decoding its values. A frame in
+	 * the encoding the LandingZone is sent is resent as it is, except that
+	 * the dictionary IDs of a compact frame are those of the LandingZone it
+	 * came from, so its tag and keys are written again. Rockets carrying
+	 * RocketStreams are decoded, as before.
+	 * 
+	 * @param encoding
+	 *            the encoding, from encodingFor.
+	 * @return whether the frame can be reused.
+	 */
+	private boolean canReuseFrame(int encoding) {
+		boolean compact = (encoding & LandingZone.FEATURE_COMPACT_ROCKETS) != 0;
+		if (frame == null || frameCompact != compact) {
+			return false;
+		}
+		for (int i = 0; i < fieldCount; i++) {
+			if (fields[i * FIELD_STRIDE + VALUE_TYPE] == RocketValue.TYPE_ROCKET_STREAM) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Encodes a lazily decoded compact Rocket with this LaunchPad's
+	 * dictionary IDs. The encoded values are copied from the frame without
+	 * being decoded.
+	 * 
+	 * @param pool
+	 *            the BufferPool to take the buffer from.
+	 * @param ids
+	 *            the dictionary IDs of the tag and keys.
+	 * @return the RocketBuffer.
+	 */
+	private RocketBuffer reencodeCompact(BufferPool pool, int[] ids) {
+		int totalSize = referenceSize(tag, ids[0]);
+		for (int i = 0; i < fieldCount; i++) {
+			totalSize += referenceSize(fieldKey(i), ids[i + 1])
+					+ valueEnd(i) - valueStart(i);
+		}
+		ByteBuffer buffer = pool.acquire(totalSize);
+		putReference(buffer, tag, ids[0]);
+		ByteBuffer value = frame.duplicate();
+		for (int i = 0; i < fieldCount; i++) {
+			putReference(buffer, fieldKey(i), ids[i + 1]);
+			value.clear();
+			value.position(valueStart(i)).limit(valueEnd(i));
+			buffer.put(value);
 		}
 		buffer.flip();
-		RocketBuffer rb = new RocketBuffer(HEADER_BYTE_TYPE, buffer);
+		return new RocketBuffer(HEADER_BYTE_TYPE_COMPACT, buffer)
+				.releaseTo(pool);
+	}
+
+	/**
+	 * @return where a field's encoded value, starting with its type, begins
+	 *         in the frame.
+	 */
+	private int valueStart(int field) {
+		int base = field * FIELD_STRIDE;
+		return fields[base + KEY_OFFSET] + fields[base + KEY_LENGTH];
+	}
+
+	/**
+	 * @return where a field's encoded value ends in the frame.
+	 */
+	private int valueEnd(int field) {
+		int base = field * FIELD_STRIDE;
+		return fields[base + DATA_OFFSET] + fields[base + DATA_LENGTH];
+	}
+
+	/**
+	 * Compresses an encoded frame, if the encoding calls for it and the frame
+	 * is over the LaunchPad's threshold.
+	 * 
+	 * @param pad
+	 *            the LaunchPad it is launched from.
+	 * @param encoding
+	 *            the encoding, from encodingFor.
+	 * @param rb
+	 *            the frame.
+	 * @return the frame to send.
+	 */
+	private RocketBuffer compress(LaunchPad pad, int encoding, RocketBuffer rb) {
+		if ((encoding & LandingZone.FEATURE_COMPRESSION) != 0
+				&& rb.getLength() > pad.getCompressionThreshold()) {
+			return rb.compress(pad.getCompression(compress), pad.getBufferPool());
+		}
 		return rb;
 	}
 
+	private static void queueFrame(LandingZone zone, RocketBuffer rb,
+			int[] ids) {
+		zone.getMetrics().rocketLaunched();
+		if (ids != null) {
+			zone.queueRocket(rb, ids);
+		} else {
+			zone.queueBuffer(rb);
+		}
+	}
+
+	/**
+	 * Converts this Rocket's data into a ByteBuffer. The size of the frame is
+	 * computed first, then every value is written straight into a single
+	 * buffer from the pool, which is released once the frame has been sent.
+	 * 
+	 * @param pool
+	 *            the BufferPool to take the buffer from.
+	 * @return the RocketBuffer.
+	 */
+	protected RocketBuffer toRocketBuffer(BufferPool pool) {
+		int totalSize = RocketValue.sizeOf(tag);
+		for (Entry<String, Object> entry : data.entrySet()) {
+			totalSize += RocketValue.sizeOf(entry.getKey())
+					+ RocketValue.sizeOf(entry.getValue());
+		}
+		for (int i = 0; i < primitiveCount; i++) {
+			totalSize += RocketValue.sizeOf(primitiveKeys[i]) + 5
+					+ RocketValue.primitiveWidth(primitiveTypes[i]);
+		}
+		ByteBuffer buffer = pool.acquire(totalSize);
+		RocketValue.writeString(buffer, tag);
+		for (Entry<String, Object> entry : data.entrySet()) {
+			RocketValue.writeString(buffer, entry.getKey());
+			RocketValue.write(buffer, entry.getValue());
+		}
+		for (int i = 0; i < primitiveCount; i++) {
+			RocketValue.writeString(buffer, primitiveKeys[i]);
+			buffer.putInt(RocketValue.primitiveWidth(primitiveTypes[i]));
+			buffer.put(primitiveTypes[i]);
+			RocketValue.putPrimitive(buffer, primitiveTypes[i],
+					primitiveBits[i]);
+		}
+		buffer.flip();
+		return new RocketBuffer(HEADER_BYTE_TYPE, buffer).releaseTo(pool);
+	}
+
+	/**
+	 * Looks up the dictionary IDs of this Rocket's tag and keys, in the order
+	 * they are encoded.
+	 * 
+	 * @param dictionary
+	 *            the LaunchPad's dictionary.
+	 * @return the IDs, zero for strings that are sent inline.
+	 */
+	protected int[] dictionaryIds(RocketDictionary dictionary) {
+		int[] ids = new int[data.size() + primitiveCount + fieldCount + 1];
+		int i = 0;
+		ids[i++] = dictionary.idOf(tag);
+		for (int j = 0; j < fieldCount; j++) {
+			ids[i++] = dictionary.idOf(fieldKey(j));
+		}
+		for (String key : data.keySet()) {
+			ids[i++] = dictionary.idOf(key);
+		}
+		for (int j = 0; j < primitiveCount; j++) {
+			ids[i++] = dictionary.idOf(primitiveKeys[j]);
+		}
+		return ids;
+	}
+
+	/**
+	 * Converts this Rocket's data into a ByteBuffer in the compact encoding.
+	 * 
+	 * @param pool
+	 *            the BufferPool to take the buffer from.
+	 * @param ids
+	 *            the dictionary IDs of the tag and keys.
+	 * @return the RocketBuffer.
+	 */
+	protected RocketBuffer toCompactRocketBuffer(BufferPool pool, int[] ids) {
+		int totalSize = referenceSize(tag, ids[0]);
+		int i = 1;
+		for (Entry<String, Object> entry : data.entrySet()) {
+			totalSize += referenceSize(entry.getKey(), ids[i++])
+					+ RocketValue.compactSizeOf(entry.getValue());
+		}
+		for (int j = 0; j < primitiveCount; j++) {
+			totalSize += referenceSize(primitiveKeys[j], ids[i++]) + 1
+					+ RocketValue.primitiveWidth(primitiveTypes[j]);
+		}
+		ByteBuffer buffer = pool.acquire(totalSize);
+		putReference(buffer, tag, ids[0]);
+		i = 1;
+		for (Entry<String, Object> entry : data.entrySet()) {
+			putReference(buffer, entry.getKey(), ids[i++]);
+			RocketValue.writeCompact(buffer, entry.getValue());
+		}
+		for (int j = 0; j < primitiveCount; j++) {
+			putReference(buffer, primitiveKeys[j], ids[i++]);
+			buffer.put(primitiveTypes[j]);
+			RocketValue.putPrimitive(buffer, primitiveTypes[j],
+					primitiveBits[j]);
+		}
+		buffer.flip();
+		return new RocketBuffer(HEADER_BYTE_TYPE_COMPACT, buffer)
+				.releaseTo(pool);
+	}
+
+	private static int referenceSize(String s, int id) {
+		if (id > 0) {
+			return RocketValue.varintSize(id);
+		}
+		return 1 + RocketValue.compactStringSize(s);
+	}
+
+	private static void putReference(ByteBuffer buffer, String s, int id) {
+		RocketValue.putVarint(buffer, id);
+		if (id == 0) {
+			RocketValue.putCompactString(buffer, s);
+		}
+	}
+
+	private static String getReference(LandingZone zone, ByteBuffer buffer)
+			throws IOException {
+		int id = RocketValue.getVarint(buffer);
+		if (id == 0) {
+			return RocketValue.getCompactString(buffer);
+		}
+		return getDefinition(zone, id);
+	}
+
+	private static String getDefinition(LandingZone zone, int id)
+			throws IOException {
+		String s = zone.getDefinition(id);
+		if (s == null) {
+			throw new IOException("Undefined dictionary ID " + id);
+		}
+		return s;
+	}
+
+	/**
+	 * Parses a Rocket in the compact encoding.
+	 * 
+	 * @param zone
+	 *            the LandingZone it was received from.
+	 * @param buffer
+	 *            the frame.
+	 * @return this Rocket.
+	 * @throws IOException
+	 *             if the Rocket is malformed, or refers to a dictionary ID
+	 *             that the LandingZone has not defined.
+	 */
+	protected Rocket parseCompact(LandingZone zone, ByteBuffer buffer)
+			throws IOException {
+		origin = zone;
+		try {
+			tag = getReference(zone, buffer);
+			while (buffer.hasRemaining()) {
+				String key = getReference(zone, buffer);
+				byte type = buffer.get(buffer.position());
+				if (RocketValue.primitiveWidth(type) > 0) {
+					buffer.get();
+					attachPrimitive(key, type,
+							RocketValue.getPrimitive(buffer, type));
+					continue;
+				}
+				Object value = RocketValue.parseCompact(buffer);
+				if (value instanceof RocketStream) {
+					value = zone.registerStream((RocketStream) value);
+				}
+				attach(key, value);
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("Malformed Rocket", e);
+		}
+		return this;
+	}
+
 	public Rocket parse(LandingZone zone, ByteBuffer buffer) {
 		origin = zone;
 		tag = null;
@@ -161,6 +901,14 @@ public class Rocket {
 				tag = (String) RocketValue.parse(buffer);
 			} else {
 				String key = (String) RocketValue.parse(buffer);
+				byte type = buffer.get(buffer.position() + 4);
+				if (RocketValue.primitiveWidth(type) > 0) {
+					RocketValue.checkLength(type, buffer.getInt());
+					buffer.get();
+					attachPrimitive(key, type,
+							RocketValue.getPrimitive(buffer, type));
+					continue;
+				}
 				Object value = RocketValue.parse(buffer);
 				if (value instanceof RocketStream) {
 					value = zone.registerStream((RocketStream) value);
@@ -171,6 +919,173 @@ public class Rocket {
 		return this;
 	}
 
+	/**
+	 * Indexes a Rocket without decoding its values, keeping the frame. Only
+	 * the tag is decoded straight away, along with any RocketStreams, which
+	 * have to be registered before their chunks arrive.
+	 * 
+	 * @param zone
+	 *            the LandingZone it was received from.
+	 * @param buffer
+	 *            the frame, which the Rocket keeps.
+	 * @param compact
+	 *            whether the frame is in the compact encoding.
+	 * @return this Rocket.
+	 * @throws IOException
+	 *             if the Rocket is malformed, or refers to a dictionary ID
+	 *             that the LandingZone has not defined.
+	 */
+	protected Rocket index(LandingZone zone, ByteBuffer buffer, boolean compact)
+			throws IOException {
+		origin = zone;
+		frame = buffer;
+		if (zone != null) {
+			framePool = zone.getLaunchPad().getBufferPool();
+		}
+		frameStart = buffer.position();
+		frameEnd = buffer.limit();
+		frameCompact = compact;
+		fields = new int[8 * FIELD_STRIDE];
+		fieldKeys = new String[8];
+		fieldValues = new Object[8];
+		try {
+			tag = compact ? getReference(zone, buffer) : (String) RocketValue
+					.parse(buffer);
+			while (buffer.hasRemaining()) {
+				if (fieldCount == fieldKeys.length) {
+					fields = Arrays.copyOf(fields, fields.length * 2);
+					fieldKeys = Arrays.copyOf(fieldKeys, fieldKeys.length * 2);
+					fieldValues = Arrays.copyOf(fieldValues,
+							fieldValues.length * 2);
+				}
+				int base = fieldCount * FIELD_STRIDE;
+				int length;
+				if (compact) {
+					int id = RocketValue.getVarint(buffer);
+					if (id == 0) {
+						length = RocketValue.getVarint(buffer);
+					} else {
+						length = 0;
+						fieldKeys[fieldCount] = getDefinition(zone, id);
+					}
+				} else {
+					length = buffer.getInt();
+					buffer.get();
+				}
+				fields[base + KEY_OFFSET] = buffer.position();
+				fields[base + KEY_LENGTH] = length;
+				buffer.position(buffer.position() + length);
+				if (compact) {
+					byte type = buffer.get();
+					fields[base + VALUE_TYPE] = type;
+					length = RocketValue.compactDataLength(type, buffer);
+				} else {
+					length = buffer.getInt();
+					fields[base + VALUE_TYPE] = buffer.get();
+					RocketValue.checkLength((byte) fields[base + VALUE_TYPE],
+							length);
+				}
+				fields[base + DATA_OFFSET] = buffer.position();
+				fields[base + DATA_LENGTH] = length;
+				buffer.position(buffer.position() + length);
+				if (fields[base + VALUE_TYPE] == RocketValue.TYPE_ROCKET_STREAM) {
+					RocketStream stream = (RocketStream) fieldValue(fieldCount);
+					fieldValues[fieldCount] = zone.registerStream(stream);
+				}
+				fieldCount++;
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("Malformed Rocket", e);
+		}
+		return this;
+	}
+
+	/**
+	 * Finds a field of a lazily decoded Rocket. Later fields win, as they do
+	 * when a Rocket is decoded eagerly.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @return the field's index, or -1 if there is no such field.
+	 */
+	private int findField(String key) {
+		for (int i = fieldCount - 1; i >= 0; i--) {
+			if (fieldKeys[i] != null ? fieldKeys[i].equals(key) : RocketValue
+					.utf8Equals(frame, fields[i * FIELD_STRIDE + KEY_OFFSET],
+							fields[i * FIELD_STRIDE + KEY_LENGTH], key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds a field of a lazily decoded Rocket that can be read straight from
+	 * the frame.
+	 * 
+	 * @param key
+	 *            the key.
+	 * @param type
+	 *            the value type the caller can read.
+	 * @return the field's index, or -1 if the Rocket is not lazily decoded or
+	 *         the field is missing or of another type.
+	 */
+	private int findField(String key, byte type) {
+		if (frame == null) {
+			return -1;
+		}
+		int field = findField(key);
+		if (field < 0 || fields[field * FIELD_STRIDE + VALUE_TYPE] != type) {
+			return -1;
+		}
+		return field;
+	}
+
+	private int dataOffset(int field) {
+		return fields[field * FIELD_STRIDE + DATA_OFFSET];
+	}
+
+	private Object fieldValue(int field) {
+		if (fieldValues[field] == null) {
+			int base = field * FIELD_STRIDE;
+			fieldValues[field] = RocketValue.decode(frame,
+					(byte) fields[base + VALUE_TYPE], fields[base + DATA_OFFSET],
+					fields[base + DATA_LENGTH]);
+		}
+		return fieldValues[field];
+	}
+
+	private String fieldKey(int field) {
+		if (fieldKeys[field] == null) {
+			int base = field * FIELD_STRIDE;
+			fieldKeys[field] = RocketValue.decodeString(frame,
+					fields[base + KEY_OFFSET], fields[base + KEY_LENGTH]);
+		}
+		return fieldKeys[field];
+	}
+
+	/**
+	 * Decodes every field of a lazily decoded Rocket into its map, and drops
+	 * the frame, returning it to the BufferPool if nothing else refers to it.
+	 */
+	private void materialize() {
+		if (frame == null) {
+			return;
+		}
+		for (int i = 0; i < fieldCount; i++) {
+			data.put(fieldKey(i), fieldValue(i));
+		}
+		if (framePool != null && !frameShared) {
+			framePool.release(frame);
+		}
+		framePool = null;
+		frame = null;
+		fields = null;
+		fieldKeys = null;
+		fieldValues = null;
+		fieldCount = 0;
+	}
+
 	/**
 	 * Gets the origin of this Rocket.
 	 * 
@@ -1,25 +1,228 @@
 package com.jwatts.rocket;
 
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RocketBuffer {
 	private byte type;
-	private ByteBuffer buffer;
-	
+	private ByteBuffer buffer, body;
+	private FileChannel file;
+	private long filePosition, fileCount;
+	private Runnable onWritten;
+	private BufferPool pool;
+	private ByteBuffer pooledBuffer;
+	private AtomicInteger references;
+	private RocketBuffer payload;
+
 	public RocketBuffer(byte type, ByteBuffer buffer) {
 		this.type = type;
 		this.buffer = buffer;
 	}
-	
+
+	/**
+	 * Creates a RocketBuffer whose payload is the buffer followed by a body
+	 * buffer. The two are written with one gathering write, so the body does
+	 * not need to be copied next to the buffer first.
+	 *
+	 * @param type
+	 *            the frame type.
+	 * @param buffer
+	 *            the start of the payload.
+	 * @param body
+	 *            the rest of the payload.
+	 */
+	public RocketBuffer(byte type, ByteBuffer buffer, ByteBuffer body) {
+		this(type, buffer);
+		this.body = body;
+	}
+
+	/**
+	 * Creates a RocketBuffer whose payload is the buffer followed by a region
+	 * of a file. The region is transferred straight from the file to the
+	 * socket, without passing through the Java heap.
+	 *
+	 * @param type
+	 *            the frame type.
+	 * @param buffer
+	 *            the start of the payload.
+	 * @param file
+	 *            the file holding the rest of the payload.
+	 * @param position
+	 *            the position of the region in the file.
+	 * @param count
+	 *            the number of bytes in the region.
+	 */
+	public RocketBuffer(byte type, ByteBuffer buffer, FileChannel file,
+			long position, long count) {
+		this(type, buffer);
+		this.file = file;
+		this.filePosition = position;
+		this.fileCount = count;
+	}
+
+	/**
+	 * Creates a RocketBuffer that puts a header in front of the buffer and
+	 * file region of another RocketBuffer. The other RocketBuffer is treated
+	 * as written once this one is, so one payload can be shared between
+	 * frames with different headers.
+	 *
+	 * @param type
+	 *            the frame type.
+	 * @param header
+	 *            the start of the payload.
+	 * @param payload
+	 *            the RocketBuffer holding the rest of the payload.
+	 */
+	protected RocketBuffer(byte type, ByteBuffer header, RocketBuffer payload) {
+		this(type, header, payload.buffer);
+		this.file = payload.file;
+		this.filePosition = payload.filePosition;
+		this.fileCount = payload.fileCount;
+		this.payload = payload;
+	}
+
 	public byte getType() {
 		return type;
 	}
-	
+
 	public ByteBuffer getBuffer() {
 		return buffer;
 	}
-	
+
+	public ByteBuffer getBody() {
+		return body;
+	}
+
+	public boolean hasFileRegion() {
+		return file != null;
+	}
+
+	public FileChannel getFileChannel() {
+		return file;
+	}
+
+	public long getFilePosition() {
+		return filePosition;
+	}
+
+	public long getFileCount() {
+		return fileCount;
+	}
+
+	/**
+	 * Gets the length of the frame's payload.
+	 *
+	 * @return the number of bytes in the buffer, the body and the file
+	 *         region.
+	 */
+	public int getLength() {
+		int bodyLength = body == null ? 0 : body.remaining();
+		return (int) (buffer.remaining() + bodyLength + fileCount);
+	}
+
+	/**
+	 * Sets a callback to run once this buffer has been written out.
+	 *
+	 * @param callback
+	 *            the callback.
+	 * @return this RocketBuffer.
+	 */
+	protected RocketBuffer whenWritten(Runnable callback) {
+		onWritten = callback;
+		return this;
+	}
+
+	/**
+	 * Returns the buffer to a BufferPool once it has been written out.
+	 *
+	 * @param pool
+	 *            the BufferPool the buffer was acquired from.
+	 * @return this RocketBuffer.
+	 */
+	protected RocketBuffer releaseTo(BufferPool pool) {
+		this.pool = pool;
+		this.pooledBuffer = buffer;
+		return this;
+	}
+
+	/**
+	 * Prepares this buffer to be sent to several LandingZones through
+	 * read-only clones. The buffer is only released, and the written callback
+	 * only run, once every clone has been written out.
+	 *
+	 * @param count
+	 *            the number of clones that will be written.
+	 * @return this RocketBuffer.
+	 */
+	protected RocketBuffer share(int count) {
+		references = new AtomicInteger(count);
+		return this;
+	}
+
+	/**
+	 * Compresses this frame into a compressed frame, which holds the codec's
+	 * ID, this frame's type, its length as a varint and the compressed
+	 * payload. If the compressed frame is smaller, this frame's buffers are
+	 * released straight away. Frames with a file region are not compressed,
+	 * since that would mean reading the file onto the heap.
+	 *
+	 * @param codec
+	 *            the codec to compress with.
+	 * @param pool
+	 *            the BufferPool to take the compressed frame's buffer from.
+	 * @return the compressed frame, or this frame if it did not get smaller.
+	 */
+	protected RocketBuffer compress(FrameCodec codec, BufferPool pool) {
+		int length = getLength();
+		int prefix = 2 + RocketValue.varintSize(length);
+		if (file != null || length <= prefix) {
+			return this;
+		}
+		ByteBuffer compressed = pool.acquire(length - 1);
+		compressed.put(codec.getId()).put(type);
+		RocketValue.putVarint(compressed, length);
+		ByteBuffer[] sources = body == null ? new ByteBuffer[] { buffer }
+				: new ByteBuffer[] { buffer, body };
+		if (!codec.compress(sources, compressed)) {
+			pool.release(compressed);
+			return this;
+		}
+		compressed.flip();
+		written();
+		return new RocketBuffer(LandingZone.HEADER_BYTE_TYPE_COMPRESSED,
+				compressed).releaseTo(pool);
+	}
+
+	/**
+	 * Called by the LandingZone once this buffer has been written out.
+	 */
+	protected void written() {
+		if (references != null && references.decrementAndGet() > 0) {
+			return;
+		}
+		if (pool != null) {
+			pool.release(pooledBuffer);
+		}
+		if (onWritten != null) {
+			onWritten.run();
+		}
+		if (payload != null) {
+			payload.written();
+		}
+	}
+
 	public RocketBuffer readOnlyClone() {
-		return new RocketBuffer(type, buffer.asReadOnlyBuffer());
+		RocketBuffer clone = new RocketBuffer(type, buffer.asReadOnlyBuffer(),
+				file, filePosition, fileCount);
+		if (body != null) {
+			clone.body = body.asReadOnlyBuffer();
+		}
+		clone.onWritten = onWritten;
+		clone.pool = pool;
+		clone.pooledBuffer = pooledBuffer;
+		clone.references = references;
+		clone.payload = payload;
+		return clone;
 	}
 }
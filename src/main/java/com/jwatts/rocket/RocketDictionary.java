@@ -0,0 +1,85 @@
+package com.jwatts.rocket;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns small integer IDs to the tags and keys a LaunchPad sends, so that
+ * Rockets in the compact encoding can refer to them by ID. IDs are shared by
+ * all of the LaunchPad's LandingZones, so a Rocket broadcast to several of
+ * them is still encoded once; each LandingZone defines an ID to its peer the
+ * first time it sends a Rocket that uses it.
+ *
+ * The dictionary only grows up to CAPACITY entries, after which new strings
+ * are sent inline, so Rockets with ever-changing keys cannot make it grow
+ * without limit.
+ *
+ * @author joeywatts
+ *
+ */
+class RocketDictionary {
+	/**
+	 * The largest ID either side will assign or accept.
+	 */
+	protected static final int CAPACITY = 4096;
+
+	/**
+	 * Longer strings are always sent inline.
+	 */
+	protected static final int MAX_STRING_LENGTH = 256;
+
+	private final ConcurrentHashMap<String, Integer> ids;
+	private final String[] strings;
+	private int size;
+
+	protected RocketDictionary() {
+		ids = new ConcurrentHashMap<String, Integer>();
+		strings = new String[CAPACITY + 1];
+	}
+
+	/**
+	 * Gets the ID of a string, assigning it one if it has none yet.
+	 *
+	 * @param s
+	 *            the string.
+	 * @return the ID, or zero if the string has to be sent inline.
+	 */
+	protected int idOf(String s) {
+		Integer id = ids.get(s);
+		if (id != null) {
+			return id;
+		}
+		if (s.length() > MAX_STRING_LENGTH) {
+			return 0;
+		}
+		synchronized (this) {
+			id = ids.get(s);
+			if (id != null) {
+				return id;
+			}
+			if (size == CAPACITY) {
+				return 0;
+			}
+			strings[++size] = s;
+			ids.put(s, size);
+			return size;
+		}
+	}
+
+	/**
+	 * Gets the string an ID was assigned to.
+	 *
+	 * @param id
+	 *            an ID returned by idOf.
+	 * @return the string.
+	 */
+	protected String get(int id) {
+		return strings[id];
+	}
+
+	/**
+	 * @return the number of IDs assigned so far; they run from 1 to this.
+	 */
+	protected synchronized int size() {
+		return size;
+	}
+}
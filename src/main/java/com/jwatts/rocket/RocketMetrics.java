@@ -0,0 +1,238 @@
+package com.jwatts.rocket;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and latency histograms for a LandingZone, or for all of a
+ * LaunchPad's LandingZones together. A LandingZone's metrics add everything
+ * they record to their LaunchPad's as well, so the LaunchPad's totals include
+ * connections that have since gone offline.
+ *
+ * Everything is kept in LongAdders, so recording never locks, and metrics can
+ * be left on in production. Counters only ever grow; rates such as frames per
+ * second come from sampling them. Gauges, such as the number of queued frames,
+ * go up and down.
+ *
+ * @author joeywatts
+ *
+ */
+public class RocketMetrics implements RocketMetricsMXBean {
+	private final RocketMetrics parent;
+	private final LongAdder bytesRead, bytesWritten, framesRead,
+			framesWritten, rocketsLaunched, rocketsLanded;
+	private final LongAdder queuedFrames, queuedStreams, bufferedStreamBytes;
+	private final LatencyHistogram dispatchLatency;
+	private volatile boolean retired;
+
+	protected RocketMetrics(RocketMetrics parent) {
+		this.parent = parent;
+		bytesRead = new LongAdder();
+		bytesWritten = new LongAdder();
+		framesRead = new LongAdder();
+		framesWritten = new LongAdder();
+		rocketsLaunched = new LongAdder();
+		rocketsLanded = new LongAdder();
+		queuedFrames = new LongAdder();
+		queuedStreams = new LongAdder();
+		bufferedStreamBytes = new LongAdder();
+		dispatchLatency = new LatencyHistogram();
+	}
+
+	protected void bytesRead(long bytes) {
+		bytesRead.add(bytes);
+		if (parent != null) {
+			parent.bytesRead(bytes);
+		}
+	}
+
+	protected void bytesWritten(long bytes) {
+		bytesWritten.add(bytes);
+		if (parent != null) {
+			parent.bytesWritten(bytes);
+		}
+	}
+
+	protected void frameRead() {
+		framesRead.increment();
+		if (parent != null) {
+			parent.frameRead();
+		}
+	}
+
+	protected void frameWritten() {
+		framesWritten.increment();
+		if (parent != null) {
+			parent.frameWritten();
+		}
+	}
+
+	protected void rocketLaunched() {
+		rocketsLaunched.increment();
+		if (parent != null) {
+			parent.rocketLaunched();
+		}
+	}
+
+	protected void rocketLanded() {
+		rocketsLanded.increment();
+		if (parent != null) {
+			parent.rocketLanded();
+		}
+	}
+
+	protected void framesQueued(long delta) {
+		queuedFrames.add(delta);
+		if (parent != null && !retired) {
+			parent.framesQueued(delta);
+		}
+	}
+
+	protected void streamsQueued(long delta) {
+		queuedStreams.add(delta);
+		if (parent != null && !retired) {
+			parent.streamsQueued(delta);
+		}
+	}
+
+	protected void streamBytesBuffered(long delta) {
+		bufferedStreamBytes.add(delta);
+		if (parent != null && !retired) {
+			parent.streamBytesBuffered(delta);
+		}
+	}
+
+	protected void dispatched(long latencyNanos) {
+		dispatchLatency.record(latencyNanos);
+		if (parent != null) {
+			parent.dispatched(latencyNanos);
+		}
+	}
+
+	/**
+	 * Takes this LandingZone's gauges out of its LaunchPad's once it has gone
+	 * offline, since whatever was still queued will never be sent.
+	 */
+	protected void retire() {
+		retired = true;
+		if (parent != null) {
+			parent.framesQueued(-queuedFrames.sumThenReset());
+			parent.streamsQueued(-queuedStreams.sumThenReset());
+			parent.streamBytesBuffered(-bufferedStreamBytes.sumThenReset());
+		}
+	}
+
+	/**
+	 * @return the number of bytes read from the socket, frame headers
+	 *         included.
+	 */
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	/**
+	 * @return the number of bytes written to the socket, frame headers and
+	 *         file regions included.
+	 */
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	/**
+	 * @return the number of frames read, of every type.
+	 */
+	@Override
+	public long getFramesRead() {
+		return framesRead.sum();
+	}
+
+	/**
+	 * @return the number of frames written, of every type.
+	 */
+	@Override
+	public long getFramesWritten() {
+		return framesWritten.sum();
+	}
+
+	/**
+	 * @return the number of Rockets queued to be sent.
+	 */
+	@Override
+	public long getRocketsLaunched() {
+		return rocketsLaunched.sum();
+	}
+
+	/**
+	 * @return the number of Rockets received.
+	 */
+	@Override
+	public long getRocketsLanded() {
+		return rocketsLanded.sum();
+	}
+
+	/**
+	 * @return the number of frames waiting in the write queue.
+	 */
+	@Override
+	public long getQueuedFrames() {
+		return queuedFrames.sum();
+	}
+
+	/**
+	 * @return the number of RocketStreams waiting to start sending.
+	 */
+	@Override
+	public long getQueuedStreams() {
+		return queuedStreams.sum();
+	}
+
+	/**
+	 * @return the number of bytes of incoming RocketStreams received but not
+	 *         yet handed to a StreamReader.
+	 */
+	@Override
+	public long getBufferedStreamBytes() {
+		return bufferedStreamBytes.sum();
+	}
+
+	/**
+	 * @return the time from a Rocket landing to its LandingListener being
+	 *         called.
+	 */
+	public LatencyHistogram getDispatchLatency() {
+		return dispatchLatency;
+	}
+
+	@Override
+	public long getDispatchLatencyMean() {
+		return dispatchLatency.getMean();
+	}
+
+	@Override
+	public long getDispatchLatencyP50() {
+		return dispatchLatency.getPercentile(50);
+	}
+
+	@Override
+	public long getDispatchLatencyP99() {
+		return dispatchLatency.getPercentile(99);
+	}
+
+	@Override
+	public long getDispatchLatencyMax() {
+		return dispatchLatency.getMax();
+	}
+
+	@Override
+	public String toString() {
+		return "RocketMetrics[bytesRead=" + getBytesRead() + ", bytesWritten="
+				+ getBytesWritten() + ", framesRead=" + getFramesRead()
+				+ ", framesWritten=" + getFramesWritten()
+				+ ", rocketsLaunched=" + getRocketsLaunched()
+				+ ", rocketsLanded=" + getRocketsLanded() + ", queuedFrames="
+				+ getQueuedFrames() + ", queuedStreams=" + getQueuedStreams()
+				+ ", bufferedStreamBytes=" + getBufferedStreamBytes()
+				+ ", dispatchLatency=" + dispatchLatency + "]";
+	}
+}
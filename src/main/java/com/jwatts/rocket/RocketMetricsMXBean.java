@@ -0,0 +1,36 @@
+package com.jwatts.rocket;
+
+/**
+ * The JMX view of a {@link RocketMetrics}. See
+ * {@link LaunchPad#registerMBeans(String)}.
+ *
+ * @author joeywatts
+ *
+ */
+public interface RocketMetricsMXBean {
+	public long getBytesRead();
+
+	public long getBytesWritten();
+
+	public long getFramesRead();
+
+	public long getFramesWritten();
+
+	public long getRocketsLaunched();
+
+	public long getRocketsLanded();
+
+	public long getQueuedFrames();
+
+	public long getQueuedStreams();
+
+	public long getBufferedStreamBytes();
+
+	public long getDispatchLatencyMean();
+
+	public long getDispatchLatencyP50();
+
+	public long getDispatchLatencyP99();
+
+	public long getDispatchLatencyMax();
+}
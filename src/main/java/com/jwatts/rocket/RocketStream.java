@@ -4,15 +4,71 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RocketStream {
 
 	public static final byte HEADER_BYTE_TYPE = 1;
 	public static final byte HEADER_BYTE_TYPE_FINISHED = 2;
+	public static final byte HEADER_BYTE_TYPE_CREDIT = 3;
+
+	/*
+	 * Once a stream has been announced under a short stream ID, its chunks
+	 * name it by that ID instead of by its UUID. Stream IDs are assigned by
+	 * the sending LandingZone and are only meaningful on its connection.
+	 */
+	protected static final byte HEADER_BYTE_TYPE_ANNOUNCE = 5;
+	protected static final byte HEADER_BYTE_TYPE_COMPACT = 6;
+	protected static final byte HEADER_BYTE_TYPE_COMPACT_FINISHED = 7;
+
+	/**
+	 * Sent back to the sender of a stream that has been abandoned, so that it
+	 * stops sending it. Older peers ignore it.
+	 */
+	protected static final byte HEADER_BYTE_TYPE_RESET = 14;
+
+	/**
+	 * The default number of bytes of a stream sent in one frame.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+	/**
+	 * The largest number of bytes of a stream that may be sent in one frame.
+	 * Chunks are also kept small enough for the LaunchPad's BufferPool to
+	 * pool; see {@link #setChunkSize(int)}.
+	 */
+	public static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * The most bytes a chunk's frame carries besides the chunk itself: the
+	 * stream's UUID.
+	 */
+	private static final int MAX_CHUNK_HEADER = 16;
+
+	/*
+	 * The number of chunks in a row that may fail to get smaller before a
+	 * stream stops trying to compress them.
+	 */
+	private static final int MAX_COMPRESSION_MISSES = 8;
+
+	/*
+	 * The number of bytes of a fanned-out stream kept for copies that have
+	 * not sent them yet. A copy that would read past this waits for the
+	 * slowest copy to catch up.
+	 */
+	private static final int MAX_FANOUT_LEAD_BYTES = 4 * 1024 * 1024;
 
 	public static interface StreamData {
 		public ByteBuffer getBuffer();
@@ -20,87 +76,837 @@ public class RocketStream {
 		public boolean isFinished();
 	}
 
+	/**
+	 * The default size of the windows in which memory-mapped files are mapped.
+	 */
+	public static final int DEFAULT_MAP_WINDOW_SIZE = 64 * 1024 * 1024;
+
 	public static interface StreamReader {
+		/**
+		 * Called with each chunk of the stream, in order. The buffer is
+		 * returned to the LaunchPad's BufferPool when this method returns, so
+		 * it must be copied if it is needed afterwards. If it throws, the rest
+		 * of the stream is abandoned and the exception is reported to the
+		 * LaunchPad's ErrorListener.
+		 * 
+		 * @param data
+		 *            the chunk.
+		 */
 		public void onStreamData(ByteBuffer data);
 
 		public void onStreamClosed();
 	}
 
+	/**
+	 * The lifecycle of a stream being received.
+	 */
+	public static enum State {
+		/**
+		 * Its Rocket or first chunk has arrived, but it has not been opened;
+		 * chunks are cached until it is.
+		 */
+		ANNOUNCED,
+		/**
+		 * A StreamReader is receiving it.
+		 */
+		OPEN,
+		/**
+		 * Every chunk has been handed to its StreamReader, and the reader has
+		 * been closed.
+		 */
+		FINISHED,
+		/**
+		 * It was not opened before the LaunchPad's stream timeout, or its
+		 * StreamReader failed, so its cached chunks were released, the sender
+		 * was told to stop, and the rest of it is dropped.
+		 */
+		ABANDONED
+	}
+
 	/*
 	 * We must cache all the ByteBuffers that are received before the stream is
 	 * opened.
 	 */
-	private volatile boolean isOpened, isFinished;
-	private static final int STREAM_BUFFER_SIZE = 8192;
-	private ByteBuffer streamBuffer;
+	private volatile State state;
+	private volatile boolean isFinished;
+	private boolean claimed;
+	private long lastActivity;
 	private StreamReader reader;
 	private StreamData data;
+	private FileChannel file;
+	private long filePosition, fileSize;
+	private AtomicInteger fileUsers;
+	private boolean fileClosed;
+	private boolean sentLastChunk;
+	private boolean cancelled;
+	private Fanout fanout;
+	private long fanoutIndex;
+
+	/* Flow control and scheduling, on the sending side. */
+	private boolean sendingStarted, flowControlled;
+	private long credit;
+	private int weight = 1;
+	private long deficit;
+	private int chunkSize;
+	private Boolean compress;
+	private int compressionMisses;
+	private int streamId;
+	private boolean announced;
+
+	/* Where failures that cannot be thrown to the caller are reported. */
+	private LaunchPad launchPad;
+
+	/* Flow control, on the receiving side. */
+	private LandingZone zone;
+	private int window;
+	private int consumed;
+	private MappedByteBuffer mapWindow;
+	private int mapWindowSize;
+	private static final ByteBuffer EMPTY_CHUNK = ByteBuffer.allocate(0);
 	private ArrayList<ByteBuffer> bufferCache;
+	private BufferPool bufferPool;
 	private UUID uuid;
 
 	protected RocketStream(UUID uuid) {
 		this.uuid = uuid;
 		bufferCache = new ArrayList<ByteBuffer>();
-		isOpened = false;
+		state = State.ANNOUNCED;
 	}
 
 	private ByteBuffer currentWriteBuffer;
+	private int currentWriteEnd;
+
+	/**
+	 * Gets the next chunk of this stream to send to a LandingZone, and charges
+	 * it against the stream's credit.
+	 * 
+	 * @param zone
+	 *            the LandingZone the chunk will be sent to.
+	 * @return the RocketBuffer, or null if the stream has to wait before it
+	 *         can send another chunk.
+	 */
+	protected RocketBuffer getBuffer(LandingZone zone) {
+		BufferPool pool = zone.getLaunchPad().getBufferPool();
+		int size = chunkSize > 0 ? chunkSize : zone.getLaunchPad()
+				.getStreamChunkSize();
+		/* So that the chunk, and the frame it is read into, are pooled. */
+		size = Math.max(1, Math.min(size, pool.getMaxBufferSize()
+				- MAX_CHUNK_HEADER));
+		RocketBuffer chunk;
+		if (fanout != null) {
+			chunk = fanout.next(this, zone, size);
+			if (chunk == null) {
+				return null;
+			}
+			if (chunk.getType() == HEADER_BYTE_TYPE_FINISHED) {
+				sentLastChunk = true;
+			}
+		} else {
+			chunk = getChunk(pool, size);
+		}
+		if (flowControlled) {
+			credit -= chunk.getLength();
+		}
+		RocketBuffer frame = frame(chunk);
+		FrameCodec codec = zone.getCompression(compress);
+		if (codec != null && compressionMisses < MAX_COMPRESSION_MISSES
+				&& frame.getLength() > zone.getLaunchPad()
+						.getCompressionThreshold()) {
+			RocketBuffer compressed = frame.compress(codec, pool);
+			compressionMisses = compressed == frame ? compressionMisses + 1
+					: 0;
+			frame = compressed;
+		}
+		return frame;
+	}
+
+	/**
+	 * Puts the header that names this stream in front of a chunk. Streams
+	 * that have been announced to the LandingZone are named by their short
+	 * stream ID, others by their UUID.
+	 * 
+	 * @param chunk
+	 *            the chunk.
+	 * @return the frame.
+	 */
+	private RocketBuffer frame(RocketBuffer chunk) {
+		boolean finished = chunk.getType() == HEADER_BYTE_TYPE_FINISHED;
+		if (streamId > 0) {
+			ByteBuffer header = ByteBuffer.allocate(RocketValue
+					.varintSize(streamId));
+			RocketValue.putVarint(header, streamId);
+			header.flip();
+			return new RocketBuffer(finished ? HEADER_BYTE_TYPE_COMPACT_FINISHED
+					: HEADER_BYTE_TYPE_COMPACT, header, chunk);
+		}
+		ByteBuffer header = ByteBuffer.allocate(16);
+		header.putLong(uuid.getMostSignificantBits()).putLong(
+				uuid.getLeastSignificantBits());
+		header.flip();
+		return new RocketBuffer(chunk.getType(), header, chunk);
+	}
+
+	/**
+	 * Gets the frame that tells the LandingZone which stream ID this stream's
+	 * chunks will carry, the first time it is called after sending starts.
+	 * 
+	 * @return the frame, or null if there is nothing to announce.
+	 */
+	protected RocketBuffer announce() {
+		if (streamId <= 0 || announced) {
+			return null;
+		}
+		announced = true;
+		ByteBuffer buffer = ByteBuffer.allocate(16 + RocketValue
+				.varintSize(streamId));
+		buffer.putLong(uuid.getMostSignificantBits()).putLong(
+				uuid.getLeastSignificantBits());
+		RocketValue.putVarint(buffer, streamId);
+		buffer.flip();
+		return new RocketBuffer(HEADER_BYTE_TYPE_ANNOUNCE, buffer);
+	}
+
+	/**
+	 * Called when this stream starts sending to a LandingZone.
+	 * 
+	 * @param window
+	 *            the number of bytes the other side will buffer, or zero if
+	 *            it does not use flow control.
+	 * @param streamId
+	 *            the short ID to send the stream's chunks under, or zero to
+	 *            send them under its UUID.
+	 */
+	protected void startSending(int window, int streamId) {
+		if (!sendingStarted) {
+			sendingStarted = true;
+			flowControlled = window > 0;
+			credit = window;
+			this.streamId = streamId;
+		}
+	}
+
+	/**
+	 * Whether the other side is willing to take another chunk. The last chunk
+	 * sent may overshoot the credit by up to one chunk.
+	 * 
+	 * @return whether there is credit left.
+	 */
+	protected boolean hasCredit() {
+		return !flowControlled || credit > 0;
+	}
+
+	protected void addCredit(int bytes) {
+		credit += bytes;
+	}
+
+	/**
+	 * Sets this stream's share of the connection when it is sent alongside
+	 * other streams. A stream of weight 2 sends twice as many bytes per turn
+	 * as a stream of weight 1.
+	 * 
+	 * @param weight
+	 *            the weight, at least 1.
+	 * @return this RocketStream.
+	 */
+	public RocketStream setWeight(int weight) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("weight must be at least 1.");
+		}
+		this.weight = weight;
+		return this;
+	}
+
+	public int getWeight() {
+		return weight;
+	}
 
-	protected RocketBuffer getBuffer() {
-		if (streamBuffer == null) {
-			streamBuffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+	/**
+	 * Sets the largest number of bytes of this stream sent in one frame. Large
+	 * chunks mean fewer frames and system calls on fast links, but make the
+	 * receiver buffer more at a time, and may overshoot its stream window by
+	 * up to one chunk. By default the LaunchPad's stream chunk size is used.
+	 * Chunks are never larger than the LaunchPad's BufferPool can pool, less
+	 * 16 bytes for the chunk's header, so chunks over 1MB need a BufferPool
+	 * with larger size classes on both sides.
+	 * 
+	 * @param bytes
+	 *            the chunk size, from 1 to MAX_CHUNK_SIZE.
+	 * @return this RocketStream.
+	 */
+	public RocketStream setChunkSize(int bytes) {
+		checkChunkSize(bytes);
+		chunkSize = bytes;
+		return this;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Sets whether this stream's chunks are compressed, overriding the
+	 * LaunchPad's setting. A stream whose chunks keep failing to get smaller,
+	 * such as one that is already compressed, stops being compressed. Chunks
+	 * of file-backed streams created with createStreamFromFile are never
+	 * compressed, since they do not pass through the heap.
+	 * 
+	 * @param compress
+	 *            whether to compress this stream.
+	 * @return this RocketStream.
+	 */
+	public RocketStream setCompressed(boolean compress) {
+		this.compress = compress;
+		return this;
+	}
+
+	protected static void checkChunkSize(int bytes) {
+		if (bytes < 1 || bytes > MAX_CHUNK_SIZE) {
+			throw new IllegalArgumentException(
+					"bytes must be between 1 and MAX_CHUNK_SIZE.");
+		}
+	}
+
+	protected long getDeficit() {
+		return deficit;
+	}
+
+	protected void addDeficit(long bytes) {
+		deficit += bytes;
+	}
+
+	/**
+	 * Builds the payload of the next chunk of this stream; the header naming
+	 * the stream is added by frame. Chunks copied from StreamData are built in
+	 * buffers from the pool, and released once they are written, so several
+	 * chunks of the same stream can be in flight at once.
+	 * 
+	 * @param pool
+	 *            the BufferPool to take chunk buffers from.
+	 * @param size
+	 *            the largest number of bytes in the chunk.
+	 * @return the RocketBuffer.
+	 */
+	private RocketBuffer getChunk(BufferPool pool, int size) {
+		if (mapWindowSize > 0) {
+			return getMappedChunk(size);
+		}
+		if (file != null) {
+			return getFileRegion(size);
 		}
 		if (currentWriteBuffer == null
-				|| currentWriteBuffer.position() == currentWriteBuffer
-						.capacity()) {
+				|| currentWriteBuffer.position() == currentWriteEnd) {
 			currentWriteBuffer = data.getBuffer();
+			currentWriteEnd = currentWriteBuffer.limit();
 		}
-		streamBuffer.position(0);
-		streamBuffer.putLong(uuid.getMostSignificantBits()).putLong(
-				uuid.getLeastSignificantBits());
-		int length = Math.min(currentWriteBuffer.capacity()
-				- currentWriteBuffer.position(), streamBuffer.remaining());
+		int length = Math.min(currentWriteEnd - currentWriteBuffer.position(),
+				size);
+		ByteBuffer streamBuffer = pool.acquire(length);
 		currentWriteBuffer.limit(currentWriteBuffer.position() + length);
 		streamBuffer.put(currentWriteBuffer);
 		streamBuffer.flip();
-		if (currentWriteBuffer.limit() == currentWriteBuffer.capacity()
-				&& data.isFinished()) {
-			return new RocketBuffer(HEADER_BYTE_TYPE_FINISHED, streamBuffer);
+		if (currentWriteBuffer.limit() == currentWriteEnd && data.isFinished()) {
+			return new RocketBuffer(HEADER_BYTE_TYPE_FINISHED, streamBuffer)
+					.releaseTo(pool);
+		}
+		return new RocketBuffer(HEADER_BYTE_TYPE, streamBuffer)
+				.releaseTo(pool);
+	}
+
+	/**
+	 * Builds the next chunk of a file-backed stream. The chunk's data is left
+	 * in the file as a region that the LandingZone transfers directly to the
+	 * socket.
+	 * 
+	 * @param size
+	 *            the largest number of bytes in the chunk.
+	 * @return the RocketBuffer.
+	 */
+	private RocketBuffer getFileRegion(int size) {
+		long length = Math.min(fileSize - filePosition, size);
+		long position = filePosition;
+		filePosition += length;
+		if (filePosition == fileSize) {
+			sentLastChunk = true;
+			return new RocketBuffer(HEADER_BYTE_TYPE_FINISHED, EMPTY_CHUNK,
+					file, position, length).whenWritten(new Runnable() {
+				@Override
+				public void run() {
+					closeFile();
+				}
+			});
+		}
+		return new RocketBuffer(HEADER_BYTE_TYPE, EMPTY_CHUNK, file, position,
+				length);
+	}
+
+	/**
+	 * Builds the next chunk of a memory-mapped stream. The chunk's data is a
+	 * slice of the current mapped window, so it is written to the socket
+	 * without being copied onto the heap.
+	 * 
+	 * @param size
+	 *            the largest number of bytes in the chunk.
+	 * @return the RocketBuffer.
+	 */
+	private RocketBuffer getMappedChunk(int size) {
+		if ((mapWindow == null || !mapWindow.hasRemaining())
+				&& filePosition < fileSize) {
+			mapNextWindow();
+		} else if (fileSize == 0) {
+			/* An empty file has no window to map, so close it here. */
+			closeFile();
+		}
+		ByteBuffer chunk = EMPTY_CHUNK;
+		if (mapWindow != null) {
+			int length = Math.min(mapWindow.remaining(), size);
+			chunk = mapWindow.slice();
+			chunk.limit(length);
+			mapWindow.position(mapWindow.position() + length);
+			filePosition += length;
+		}
+		if (filePosition == fileSize) {
+			sentLastChunk = true;
+			mapWindow = null;
+			return new RocketBuffer(HEADER_BYTE_TYPE_FINISHED, chunk);
+		}
+		return new RocketBuffer(HEADER_BYTE_TYPE, chunk);
+	}
+
+	/**
+	 * Maps the window of the file that starts at the current position. The
+	 * file is closed once its last window is mapped; the mapping remains valid
+	 * until it is garbage collected.
+	 * 
+	 * @throws UncheckedIOException
+	 *             if the file cannot be mapped. The file is closed, and the
+	 *             LandingZone sending the stream is dropped, since the rest of
+	 *             the stream can never be sent.
+	 */
+	private void mapNextWindow() {
+		long size = Math.min(mapWindowSize, fileSize - filePosition);
+		try {
+			mapWindow = file.map(MapMode.READ_ONLY, filePosition, size);
+			if (filePosition + size == fileSize) {
+				closeFile();
+			}
+		} catch (IOException e) {
+			mapWindow = null;
+			closeFile();
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Closes the stream's file once every stream sharing it is done with it.
+	 * Each stream only lets go of the file once, however often it is called.
+	 */
+	private synchronized void closeFile() {
+		if (fileClosed) {
+			return;
+		}
+		fileClosed = true;
+		if (fileUsers != null && fileUsers.decrementAndGet() > 0) {
+			return;
+		}
+		try {
+			file.close();
+		} catch (IOException e) {
+			report(e);
+		}
+	}
+
+	/**
+	 * Sets the LaunchPad that this stream reports failures to. Called when the
+	 * stream is queued on, or received from, one of its LandingZones.
+	 * 
+	 * @param pad
+	 *            the LaunchPad.
+	 */
+	protected void setLaunchPad(LaunchPad pad) {
+		launchPad = pad;
+	}
+
+	/**
+	 * Reports a failure that cannot be thrown to whoever caused it to the
+	 * LaunchPad's ErrorListener.
+	 * 
+	 * @param e
+	 *            the failure.
+	 */
+	private void report(IOException e) {
+		if (launchPad == null) {
+			throw new UncheckedIOException(e);
+		}
+		launchPad.error(e);
+	}
+
+	/**
+	 * Splits this stream into copies that can each be sent to a different
+	 * LandingZone, while the stream's data is only read once. The copies of a
+	 * file-backed stream share its file and send it independently; the copies
+	 * of any other stream share every chunk read from its StreamData.
+	 * 
+	 * @param count
+	 *            the number of copies.
+	 * @return the copies.
+	 */
+	protected List<RocketStream> fanOut(int count) {
+		List<RocketStream> copies = new ArrayList<RocketStream>(count);
+		Fanout shared = file == null ? new Fanout(this, count) : null;
+		AtomicInteger users = new AtomicInteger(count);
+		for (int i = 0; i < count; i++) {
+			RocketStream copy = new RocketStream(uuid);
+			copy.launchPad = launchPad;
+			copy.weight = weight;
+			copy.chunkSize = chunkSize;
+			copy.compress = compress;
+			if (shared != null) {
+				copy.fanout = shared;
+			} else {
+				copy.file = file;
+				copy.fileSize = fileSize;
+				copy.mapWindowSize = mapWindowSize;
+				copy.fileUsers = users;
+			}
+			copies.add(copy);
+		}
+		return copies;
+	}
+
+	/**
+	 * Stops sending this stream, once the LandingZone it was queued on has
+	 * gone offline or the other side has reset it. A copy of a fanned-out
+	 * stream is detached from the others, so that they no longer wait for
+	 * it, and a file-backed stream lets go of its file.
+	 */
+	protected void cancel() {
+		if (cancelled) {
+			return;
+		}
+		cancelled = true;
+		if (fanout != null) {
+			fanout.detach(this);
+		} else if (file != null) {
+			closeFile();
+		}
+	}
+
+	/**
+	 * Hands the chunks of one stream to several copies of it. Each chunk is
+	 * read from the stream once, and kept until every copy has taken it or
+	 * been detached. A copy that gets more than MAX_FANOUT_LEAD_BYTES ahead
+	 * of the slowest one waits for it, so that the chunks kept stay bounded.
+	 */
+	private static class Fanout {
+		private final RocketStream source;
+		private int copies;
+		private final ArrayList<SharedChunk> chunks;
+		private final HashMap<RocketStream, LandingZone> waiting;
+		private long firstChunk;
+		private long keptBytes;
+
+		private Fanout(RocketStream source, int copies) {
+			this.source = source;
+			this.copies = copies;
+			this.chunks = new ArrayList<SharedChunk>();
+			this.waiting = new HashMap<RocketStream, LandingZone>();
+		}
+
+		private synchronized RocketBuffer next(RocketStream copy,
+				LandingZone zone, int size) {
+			int offset = (int) (copy.fanoutIndex - firstChunk);
+			if (offset == chunks.size()) {
+				if (keptBytes > 0 && keptBytes + size > MAX_FANOUT_LEAD_BYTES) {
+					waiting.put(copy, zone);
+					return null;
+				}
+				RocketBuffer buffer = source.getChunk(zone.getLaunchPad()
+						.getBufferPool(), size);
+				chunks.add(new SharedChunk(buffer.share(copies), copies));
+				keptBytes += buffer.getLength();
+			}
+			SharedChunk chunk = chunks.get(offset);
+			copy.fanoutIndex++;
+			chunk.remaining--;
+			if (chunk.remaining == 0 && offset == 0) {
+				trim();
+			}
+			return chunk.buffer.readOnlyClone();
+		}
+
+		/**
+		 * Detaches a copy that will not send the rest of the stream. Its
+		 * share of the chunks it has not taken is released, and copies that
+		 * were waiting for it carry on.
+		 * 
+		 * @param copy
+		 *            the copy.
+		 */
+		private synchronized void detach(RocketStream copy) {
+			copies--;
+			waiting.remove(copy);
+			int offset = (int) (copy.fanoutIndex - firstChunk);
+			for (int i = offset; i < chunks.size(); i++) {
+				SharedChunk chunk = chunks.get(i);
+				chunk.remaining--;
+				chunk.buffer.written();
+			}
+			trim();
+		}
+
+		/**
+		 * Drops the chunks every copy has taken from the front of the list,
+		 * and resumes the copies that were waiting for them.
+		 */
+		private void trim() {
+			if (chunks.isEmpty() || chunks.get(0).remaining > 0) {
+				return;
+			}
+			while (!chunks.isEmpty() && chunks.get(0).remaining == 0) {
+				keptBytes -= chunks.remove(0).length;
+				firstChunk++;
+			}
+			for (Map.Entry<RocketStream, LandingZone> entry : waiting
+					.entrySet()) {
+				entry.getValue().resumeStream(entry.getKey());
+			}
+			waiting.clear();
+		}
+	}
+
+	private static class SharedChunk {
+		private final RocketBuffer buffer;
+		private final int length;
+		private int remaining;
+
+		private SharedChunk(RocketBuffer buffer, int remaining) {
+			this.buffer = buffer;
+			this.length = buffer.getLength();
+			this.remaining = remaining;
 		}
-		return new RocketBuffer(HEADER_BYTE_TYPE, streamBuffer);
 	}
 
 	protected boolean isFinishedWriting() {
-		return (currentWriteBuffer == null || currentWriteBuffer.position() == currentWriteBuffer
-				.capacity()) && data.isFinished();
+		if (fanout != null) {
+			return sentLastChunk;
+		}
+		if (file != null) {
+			return sentLastChunk;
+		}
+		return (currentWriteBuffer == null || currentWriteBuffer.position() == currentWriteEnd)
+				&& data.isFinished();
 	}
 
-	protected void data(ByteBuffer buffer, boolean finished) {
-		bufferCache.add(buffer);
+	protected void setBufferPool(BufferPool pool) {
+		bufferPool = pool;
+	}
+
+	/**
+	 * Called when this stream is being received from a LandingZone.
+	 * 
+	 * @param zone
+	 *            the LandingZone sending the stream.
+	 * @param window
+	 *            the number of bytes this side buffers, or zero if it does
+	 *            not use flow control.
+	 */
+	protected void receiveOn(LandingZone zone, int window) {
+		this.zone = zone;
+		this.launchPad = zone.getLaunchPad();
+		this.window = window;
+		lastActivity = System.nanoTime();
+	}
+
+	/**
+	 * Marks a stream being received as claimed by the Rocket that carries it.
+	 * Until then, it stays registered with its LandingZone even after its
+	 * last chunk has arrived, so that the Rocket finds it. Guarded by the
+	 * LandingZone's map of incoming streams.
+	 */
+	protected void claim() {
+		claimed = true;
+	}
+
+	protected boolean isClaimed() {
+		return claimed;
+	}
+
+	/**
+	 * @return whether the last chunk of a stream being received has arrived.
+	 */
+	protected boolean hasLastChunk() {
+		return isFinished;
+	}
+
+	/**
+	 * Grants the sender more credit once the reader has consumed half of the
+	 * window.
+	 * 
+	 * @param bytes
+	 *            the number of bytes just consumed.
+	 */
+	private void consumed(int bytes) {
+		if (zone == null || window <= 0 || isFinished
+				|| !zone.peerSupports(LandingZone.FEATURE_FLOW_CONTROL)) {
+			return;
+		}
+		consumed += bytes;
+		if (consumed >= Math.max(1, window / 2)) {
+			zone.sendCredit(uuid, consumed);
+			consumed = 0;
+		}
+	}
+
+	protected synchronized void data(ByteBuffer buffer, boolean finished) {
 		isFinished = finished;
-		if (isOpened) {
-			Iterator<ByteBuffer> iter = bufferCache.iterator();
-			while (iter.hasNext()) {
-				reader.onStreamData(iter.next());
-				iter.remove();
+		lastActivity = System.nanoTime();
+		if (state == State.ABANDONED) {
+			if (bufferPool != null) {
+				bufferPool.release(buffer);
 			}
-			if (finished) {
-				reader.onStreamClosed();
+			return;
+		}
+		bufferCache.add(buffer);
+		if (zone != null) {
+			zone.streamBytesBuffered(buffer.remaining());
+		}
+		if (state == State.OPEN) {
+			deliverCachedBuffers();
+			if (finished && state == State.OPEN) {
+				close();
 			}
 		}
 	}
 
-	public void openStream(StreamReader reader) {
+	/**
+	 * Starts receiving this stream. Chunks that arrived before it was opened
+	 * are handed to the reader straight away.
+	 * 
+	 * @param reader
+	 *            the StreamReader.
+	 * @throws IllegalStateException
+	 *             if the stream was abandoned.
+	 */
+	public synchronized void openStream(StreamReader reader) {
+		if (state == State.ABANDONED) {
+			throw new IllegalStateException(
+					"RocketStream was abandoned before it was opened.");
+		}
 		this.reader = reader;
-		isOpened = true;
-		if (isFinished) {
-			Iterator<ByteBuffer> iter = bufferCache.iterator();
-			while (iter.hasNext()) {
-				ByteBuffer buffer = iter.next();
+		state = State.OPEN;
+		/*
+		 * Deliver what has been cached so far straight away; with flow control
+		 * the sender may be waiting for it to be read.
+		 */
+		deliverCachedBuffers();
+		if (isFinished && state == State.OPEN) {
+			close();
+		}
+	}
+
+	private void close() {
+		state = State.FINISHED;
+		try {
+			reader.onStreamClosed();
+		} catch (RuntimeException e) {
+			readerFailed(e);
+		}
+	}
+
+	/**
+	 * Abandons the rest of this stream once its StreamReader has thrown, and
+	 * reports the failure to the LaunchPad's ErrorListener. The sender is told
+	 * to stop sending it, unless it has all arrived already.
+	 * 
+	 * @param e
+	 *            what the reader threw.
+	 */
+	private void readerFailed(RuntimeException e) {
+		if (state == State.OPEN) {
+			state = State.ABANDONED;
+			long released = 0;
+			for (ByteBuffer buffer : bufferCache) {
+				released += buffer.remaining();
+				if (bufferPool != null) {
+					bufferPool.release(buffer);
+				}
+			}
+			bufferCache.clear();
+			if (zone != null) {
+				zone.streamBytesBuffered(-released);
+			}
+		}
+		if (zone == null) {
+			throw e;
+		}
+		zone.readerFailed(this, e);
+	}
+
+	/**
+	 * @return where this stream is in its lifecycle, on the receiving side.
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Abandons this stream if it has not been opened, and nothing has arrived
+	 * for it, for a timeout. Its cached chunks are returned to the BufferPool.
+	 * 
+	 * @param timeout
+	 *            the timeout in nanoseconds.
+	 * @return the time in nanoseconds until it could be abandoned, or zero if
+	 *         it has been opened or abandoned.
+	 */
+	protected synchronized long abandonIfIdle(long timeout) {
+		if (state != State.ANNOUNCED) {
+			return 0;
+		}
+		long remaining = lastActivity + timeout - System.nanoTime();
+		if (remaining > 0) {
+			return remaining;
+		}
+		state = State.ABANDONED;
+		long released = 0;
+		for (ByteBuffer buffer : bufferCache) {
+			released += buffer.remaining();
+			if (bufferPool != null) {
+				bufferPool.release(buffer);
+			}
+		}
+		bufferCache.clear();
+		if (zone != null) {
+			zone.streamBytesBuffered(-released);
+		}
+		return 0;
+	}
+
+	/**
+	 * Hands every cached chunk to the reader, returning each one to the
+	 * BufferPool afterwards.
+	 */
+	private void deliverCachedBuffers() {
+		Iterator<ByteBuffer> iter = bufferCache.iterator();
+		while (iter.hasNext()) {
+			ByteBuffer buffer = iter.next();
+			iter.remove();
+			int length = buffer.remaining();
+			if (zone != null) {
+				zone.streamBytesBuffered(-length);
+			}
+			try {
 				reader.onStreamData(buffer);
-				iter.remove();
+			} catch (RuntimeException e) {
+				if (bufferPool != null) {
+					bufferPool.release(buffer);
+				}
+				readerFailed(e);
+				return;
 			}
-			reader.onStreamClosed();
+			if (bufferPool != null) {
+				bufferPool.release(buffer);
+			}
+			consumed(length);
 		}
 	}
 
@@ -114,8 +920,168 @@ public class RocketStream {
 		return stream;
 	}
 
+	/**
+	 * Creates a stream that sends a file. The file's contents are transferred
+	 * from the file to the socket by the operating system, and never enter
+	 * the Java heap.
+	 * 
+	 * @param file
+	 *            the file.
+	 * @return the RocketStream.
+	 * @throws FileNotFoundException
+	 */
 	public static RocketStream createStreamFromFile(final File file)
 			throws FileNotFoundException {
+		RocketStream stream = new RocketStream(UUID.randomUUID());
+		stream.file = new FileInputStream(file).getChannel();
+		stream.fileSize = file.length();
+		return stream;
+	}
+
+	/**
+	 * Creates a stream that sends a memory-mapped file, one window at a time.
+	 * 
+	 * @param file
+	 *            the file.
+	 * @return the RocketStream.
+	 * @throws FileNotFoundException
+	 */
+	public static RocketStream createStreamFromMappedFile(File file)
+			throws FileNotFoundException {
+		return createStreamFromMappedFile(file, DEFAULT_MAP_WINDOW_SIZE);
+	}
+
+	/**
+	 * Creates a stream that sends a memory-mapped file, one window at a time.
+	 * Only the window being sent is mapped, so files larger than the address
+	 * space available to a single buffer can be sent.
+	 * 
+	 * @param file
+	 *            the file.
+	 * @param windowSize
+	 *            the number of bytes mapped at a time.
+	 * @return the RocketStream.
+	 * @throws FileNotFoundException
+	 */
+	public static RocketStream createStreamFromMappedFile(File file,
+			int windowSize) throws FileNotFoundException {
+		if (windowSize <= 0) {
+			throw new IllegalArgumentException("windowSize must be positive.");
+		}
+		RocketStream stream = new RocketStream(UUID.randomUUID());
+		stream.file = new FileInputStream(file).getChannel();
+		stream.fileSize = file.length();
+		stream.mapWindowSize = windowSize;
+		return stream;
+	}
+
+	/**
+	 * A StreamReader that writes a stream into a memory-mapped file. The file
+	 * is pre-sized to the expected length and mapped one window at a time; if
+	 * the stream turns out to be shorter, the file is truncated when the
+	 * stream closes. If the file cannot be written, an UncheckedIOException is
+	 * thrown, so the stream is abandoned and the failure reported.
+	 */
+	public static class MappedStreamReader implements StreamReader {
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		private final int windowSize;
+		private MappedByteBuffer window;
+		private long windowStart, written;
+
+		/**
+		 * Creates a MappedStreamReader.
+		 * 
+		 * @param destination
+		 *            the file to write.
+		 * @param expectedSize
+		 *            the expected length of the stream.
+		 * @throws IOException
+		 */
+		public MappedStreamReader(File destination, long expectedSize)
+				throws IOException {
+			this(destination, expectedSize, DEFAULT_MAP_WINDOW_SIZE);
+		}
+
+		/**
+		 * Creates a MappedStreamReader.
+		 * 
+		 * @param destination
+		 *            the file to write.
+		 * @param expectedSize
+		 *            the expected length of the stream.
+		 * @param windowSize
+		 *            the number of bytes mapped at a time.
+		 * @throws IOException
+		 */
+		public MappedStreamReader(File destination, long expectedSize,
+				int windowSize) throws IOException {
+			if (windowSize <= 0) {
+				throw new IllegalArgumentException(
+						"windowSize must be positive.");
+			}
+			this.raf = new RandomAccessFile(destination, "rw");
+			this.raf.setLength(expectedSize);
+			this.channel = raf.getChannel();
+			this.windowSize = windowSize;
+		}
+
+		@Override
+		public void onStreamData(ByteBuffer data) {
+			try {
+				while (data.hasRemaining()) {
+					if (window == null || !window.hasRemaining()) {
+						if (window != null) {
+							windowStart += window.capacity();
+						}
+						window = channel.map(MapMode.READ_WRITE, windowStart,
+								windowSize);
+					}
+					int length = Math.min(window.remaining(), data.remaining());
+					int limit = data.limit();
+					data.limit(data.position() + length);
+					window.put(data);
+					data.limit(limit);
+					written += length;
+				}
+			} catch (IOException e) {
+				window = null;
+				try {
+					raf.close();
+				} catch (IOException suppressed) {
+					e.addSuppressed(suppressed);
+				}
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public void onStreamClosed() {
+			try {
+				if (window != null) {
+					window.force();
+					window = null;
+				}
+				channel.truncate(written);
+				raf.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Creates a stream that reads a file through the Java heap, one buffer at
+	 * a time. If the file cannot be read, the LandingZone sending it is
+	 * dropped, and the failure reported to the LaunchPad's ErrorListener.
+	 * 
+	 * @param file
+	 *            the file.
+	 * @return the RocketStream.
+	 * @throws FileNotFoundException
+	 */
+	public static RocketStream createBufferedStreamFromFile(final File file)
+			throws FileNotFoundException {
 		StreamData data = new StreamData() {
 			ByteBuffer buffer = ByteBuffer.allocate(8192 * 4);
 			FileInputStream fis = new FileInputStream(file);
@@ -137,7 +1103,12 @@ public class RocketStream {
 						buffer.limit(bytesRead);
 					}
 				} catch (IOException e) {
-					e.printStackTrace();
+					try {
+						fis.close();
+					} catch (IOException suppressed) {
+						e.addSuppressed(suppressed);
+					}
+					throw new UncheckedIOException(e);
 				}
 				return buffer;
 			}
@@ -6,10 +6,11 @@ import java.util.Arrays;
 import java.util.UUID;
 
 public class RocketValue {
-	private static final byte TYPE_STRING = 'S', TYPE_BYTE = 'b',
+	protected static final byte TYPE_STRING = 'S', TYPE_BYTE = 'b',
 			TYPE_BYTE_ARRAY = 'B', TYPE_INT = 'I', TYPE_SHORT = 's',
 			TYPE_LONG = 'L', TYPE_FLOAT = 'F', TYPE_DOUBLE = 'D',
 			TYPE_ROCKET_STREAM = 'R';
+	protected static final Charset UTF_8 = Charset.forName("UTF-8");
 
 	private byte type;
 	private byte[] data;
@@ -57,7 +58,7 @@ public class RocketValue {
 	public static RocketValue wrap(String s) {
 		RocketValue val = new RocketValue();
 		val.type = TYPE_STRING;
-		val.data = s.getBytes(Charset.forName("UTF-8"));
+		val.data = s.getBytes(UTF_8);
 		return val;
 	}
 
@@ -123,18 +124,310 @@ public class RocketValue {
 		buffer.put(data);
 	}
 
+	/**
+	 * Gets the number of bytes an object takes once serialized, without
+	 * wrapping it in a RocketValue.
+	 * 
+	 * @param o
+	 *            the object.
+	 * @return the serialized size.
+	 * @throws IllegalArgumentException
+	 *             if the object's type cannot be sent in a Rocket.
+	 */
+	public static int sizeOf(Object o) {
+		return 1 + 4 + dataLength(o);
+	}
+
+	private static int dataLength(Object o) {
+		if (o instanceof String) {
+			return utf8Length((String) o);
+		} else if (o instanceof byte[]) {
+			return ((byte[]) o).length;
+		} else if (o instanceof Integer || o instanceof Float) {
+			return 4;
+		} else if (o instanceof Long || o instanceof Double) {
+			return 8;
+		} else if (o instanceof Short) {
+			return 2;
+		} else if (o instanceof Byte) {
+			return 1;
+		} else if (o instanceof RocketStream) {
+			return 16;
+		}
+		throw new IllegalArgumentException("Cannot send a value of type "
+				+ (o == null ? "null" : o.getClass().getName()));
+	}
+
+	/**
+	 * Serializes an object straight into a ByteBuffer, without wrapping it in
+	 * a RocketValue.
+	 * 
+	 * @precondition buffer has sizeOf(o) bytes remaining.
+	 * @param buffer
+	 *            the ByteBuffer to which the value will be written.
+	 * @param o
+	 *            the object.
+	 */
+	public static void write(ByteBuffer buffer, Object o) {
+		if (o instanceof String) {
+			writeString(buffer, (String) o);
+			return;
+		}
+		buffer.putInt(dataLength(o));
+		putData(buffer, o);
+	}
+
+	/**
+	 * Gets the number of bytes an object takes in the compact encoding, where
+	 * only Strings and byte arrays carry a length, as a varint.
+	 * 
+	 * @param o
+	 *            the object.
+	 * @return the serialized size.
+	 * @throws IllegalArgumentException
+	 *             if the object's type cannot be sent in a Rocket.
+	 */
+	protected static int compactSizeOf(Object o) {
+		int length = dataLength(o);
+		if (o instanceof String || o instanceof byte[]) {
+			return 1 + varintSize(length) + length;
+		}
+		return 1 + length;
+	}
+
+	/**
+	 * Serializes an object in the compact encoding.
+	 * 
+	 * @precondition buffer has compactSizeOf(o) bytes remaining.
+	 * @param buffer
+	 *            the ByteBuffer to which the value will be written.
+	 * @param o
+	 *            the object.
+	 */
+	protected static void writeCompact(ByteBuffer buffer, Object o) {
+		if (o instanceof String) {
+			buffer.put(TYPE_STRING);
+			putCompactString(buffer, (String) o);
+			return;
+		}
+		if (o instanceof byte[]) {
+			byte[] array = (byte[]) o;
+			buffer.put(TYPE_BYTE_ARRAY);
+			putVarint(buffer, array.length);
+			buffer.put(array);
+			return;
+		}
+		putData(buffer, o);
+	}
+
+	/**
+	 * Writes the type byte and the data of a value other than a String.
+	 */
+	private static void putData(ByteBuffer buffer, Object o) {
+		if (o instanceof byte[]) {
+			buffer.put(TYPE_BYTE_ARRAY).put((byte[]) o);
+		} else if (o instanceof Integer) {
+			buffer.put(TYPE_INT).putInt((Integer) o);
+		} else if (o instanceof Long) {
+			buffer.put(TYPE_LONG).putLong((Long) o);
+		} else if (o instanceof Double) {
+			buffer.put(TYPE_DOUBLE).putDouble((Double) o);
+		} else if (o instanceof Float) {
+			buffer.put(TYPE_FLOAT).putFloat((Float) o);
+		} else if (o instanceof Short) {
+			buffer.put(TYPE_SHORT).putShort((Short) o);
+		} else if (o instanceof Byte) {
+			buffer.put(TYPE_BYTE).put((Byte) o);
+		} else if (o instanceof RocketStream) {
+			UUID uuid = ((RocketStream) o).getUUID();
+			buffer.put(TYPE_ROCKET_STREAM)
+					.putLong(uuid.getMostSignificantBits())
+					.putLong(uuid.getLeastSignificantBits());
+		}
+	}
+
+	/**
+	 * Gets the number of bytes a String takes in the compact encoding,
+	 * without a type byte.
+	 * 
+	 * @param s
+	 *            the String.
+	 * @return the serialized size.
+	 */
+	protected static int compactStringSize(String s) {
+		int length = utf8Length(s);
+		return varintSize(length) + length;
+	}
+
+	/**
+	 * Writes a String as a varint length followed by its UTF-8 encoding.
+	 * 
+	 * @param buffer
+	 *            the ByteBuffer.
+	 * @param s
+	 *            the String.
+	 */
+	protected static void putCompactString(ByteBuffer buffer, String s) {
+		putVarint(buffer, utf8Length(s));
+		putUtf8(buffer, s);
+	}
+
+	/**
+	 * Reads a String written by putCompactString.
+	 * 
+	 * @param buffer
+	 *            the ByteBuffer.
+	 * @return the String.
+	 */
+	protected static String getCompactString(ByteBuffer buffer) {
+		byte[] data = new byte[getVarint(buffer)];
+		buffer.get(data);
+		return new String(data, UTF_8);
+	}
+
+	/**
+	 * Serializes a String straight into a ByteBuffer.
+	 * 
+	 * @param buffer
+	 *            the ByteBuffer.
+	 * @param s
+	 *            the String.
+	 */
+	public static void writeString(ByteBuffer buffer, String s) {
+		buffer.putInt(utf8Length(s));
+		buffer.put(TYPE_STRING);
+		putUtf8(buffer, s);
+	}
+
+	/**
+	 * Counts the bytes in the UTF-8 encoding of a String, without encoding
+	 * it. Unpaired surrogates count as the single '?' byte that
+	 * String.getBytes would replace them with.
+	 * 
+	 * @param s
+	 *            the String.
+	 * @return the number of bytes.
+	 */
+	protected static int utf8Length(String s) {
+		int length = s.length();
+		int bytes = length;
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				continue;
+			} else if (c < 0x800) {
+				bytes += 1;
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				/* Two chars become four bytes. */
+				bytes += 2;
+				i++;
+			} else if (!Character.isSurrogate(c)) {
+				bytes += 2;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Writes the UTF-8 encoding of a String, matching String.getBytes.
+	 * 
+	 * @param buffer
+	 *            the ByteBuffer.
+	 * @param s
+	 *            the String.
+	 */
+	protected static void putUtf8(ByteBuffer buffer, String s) {
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xC0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buffer.put((byte) (0xF0 | (cp >> 18)));
+				buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (cp & 0x3F)));
+			} else if (Character.isSurrogate(c)) {
+				buffer.put((byte) '?');
+			} else {
+				buffer.put((byte) (0xE0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	/**
+	 * Counts the bytes in the varint encoding of a non-negative int: seven
+	 * bits per byte, least significant first.
+	 *
+	 * @param value
+	 *            the int.
+	 * @return the number of bytes, from 1 to 5.
+	 */
+	protected static int varintSize(int value) {
+		int bytes = 1;
+		while ((value >>>= 7) != 0) {
+			bytes++;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Writes an int as a varint.
+	 *
+	 * @param buffer
+	 *            the ByteBuffer.
+	 * @param value
+	 *            the int.
+	 */
+	protected static void putVarint(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	/**
+	 * Reads a varint written by putVarint.
+	 *
+	 * @param buffer
+	 *            the ByteBuffer.
+	 * @return the int.
+	 */
+	protected static int getVarint(ByteBuffer buffer) {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint.");
+	}
+
 	/**
 	 * Parse the value from the ByteBuffer.
 	 * 
 	 * @param buffer
 	 *            the ByteBuffer
-	 * @param length
-	 *            the length of the value in bytes
 	 * @return the object parsed
+	 * @throws IllegalArgumentException
+	 *             if the value's declared length does not fit its type. A
+	 *             LandingZone reports this as a malformed Rocket.
 	 */
 	public static Object parse(ByteBuffer buffer) {
 		int length = buffer.getInt();
 		byte type = buffer.get();
+		checkLength(type, length);
 		byte[] data;
 		switch (type) {
 		case TYPE_ROCKET_STREAM:
@@ -158,7 +451,7 @@ public class RocketValue {
 		case TYPE_STRING:
 			data = new byte[length];
 			buffer.get(data);
-			return new String(data, Charset.forName("UTF-8"));
+			return new String(data, UTF_8);
 		case TYPE_BYTE_ARRAY:
 		default:
 			data = new byte[length];
@@ -167,6 +460,302 @@ public class RocketValue {
 		}
 	}
 
+	/**
+	 * Parse a value written by writeCompact.
+	 * 
+	 * @param buffer
+	 *            the ByteBuffer
+	 * @return the object parsed
+	 */
+	protected static Object parseCompact(ByteBuffer buffer) {
+		byte type = buffer.get();
+		switch (type) {
+		case TYPE_ROCKET_STREAM:
+			return new RocketStream(new UUID(buffer.getLong(),
+					buffer.getLong()));
+		case TYPE_INT:
+			return buffer.getInt();
+		case TYPE_BYTE:
+			return buffer.get();
+		case TYPE_DOUBLE:
+			return buffer.getDouble();
+		case TYPE_FLOAT:
+			return buffer.getFloat();
+		case TYPE_SHORT:
+			return buffer.getShort();
+		case TYPE_LONG:
+			return buffer.getLong();
+		case TYPE_STRING:
+			return getCompactString(buffer);
+		case TYPE_BYTE_ARRAY:
+			byte[] data = new byte[getVarint(buffer)];
+			buffer.get(data);
+			return data;
+		default:
+			throw new IllegalArgumentException("Unknown value type " + type);
+		}
+	}
+
+	/**
+	 * Gets the number of bytes of a primitive type.
+	 * 
+	 * @param type
+	 *            the value type.
+	 * @return the width, or zero if the type is not a primitive.
+	 */
+	protected static int primitiveWidth(byte type) {
+		switch (type) {
+		case TYPE_INT:
+		case TYPE_FLOAT:
+			return 4;
+		case TYPE_LONG:
+		case TYPE_DOUBLE:
+			return 8;
+		case TYPE_SHORT:
+			return 2;
+		case TYPE_BYTE:
+			return 1;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Writes a primitive kept as its raw bits: the value itself for integral
+	 * types, and Float.floatToRawIntBits or Double.doubleToRawLongBits for
+	 * floating point ones.
+	 * 
+	 * @param buffer
+	 *            the ByteBuffer.
+	 * @param type
+	 *            the value type.
+	 * @param bits
+	 *            the raw bits.
+	 */
+	protected static void putPrimitive(ByteBuffer buffer, byte type, long bits) {
+		switch (type) {
+		case TYPE_INT:
+		case TYPE_FLOAT:
+			buffer.putInt((int) bits);
+			break;
+		case TYPE_LONG:
+		case TYPE_DOUBLE:
+			buffer.putLong(bits);
+			break;
+		case TYPE_SHORT:
+			buffer.putShort((short) bits);
+			break;
+		case TYPE_BYTE:
+			buffer.put((byte) bits);
+			break;
+		default:
+			throw new IllegalArgumentException("Not a primitive type " + type);
+		}
+	}
+
+	/**
+	 * Reads a primitive written by putPrimitive.
+	 * 
+	 * @param buffer
+	 *            the ByteBuffer.
+	 * @param type
+	 *            the value type.
+	 * @return the raw bits.
+	 */
+	protected static long getPrimitive(ByteBuffer buffer, byte type) {
+		switch (type) {
+		case TYPE_INT:
+		case TYPE_FLOAT:
+			return buffer.getInt();
+		case TYPE_LONG:
+		case TYPE_DOUBLE:
+			return buffer.getLong();
+		case TYPE_SHORT:
+			return buffer.getShort();
+		case TYPE_BYTE:
+			return buffer.get();
+		default:
+			throw new IllegalArgumentException("Not a primitive type " + type);
+		}
+	}
+
+	/**
+	 * Boxes a primitive kept as its raw bits.
+	 * 
+	 * @param type
+	 *            the value type.
+	 * @param bits
+	 *            the raw bits.
+	 * @return the boxed value.
+	 */
+	protected static Object box(byte type, long bits) {
+		switch (type) {
+		case TYPE_INT:
+			return (int) bits;
+		case TYPE_FLOAT:
+			return Float.intBitsToFloat((int) bits);
+		case TYPE_LONG:
+			return bits;
+		case TYPE_DOUBLE:
+			return Double.longBitsToDouble(bits);
+		case TYPE_SHORT:
+			return (short) bits;
+		case TYPE_BYTE:
+			return (byte) bits;
+		default:
+			throw new IllegalArgumentException("Not a primitive type " + type);
+		}
+	}
+
+	/**
+	 * Checks the length a value's data is declared to have, so that a value
+	 * of the wrong length is not read into the field after it.
+	 * 
+	 * @param type
+	 *            the value's type.
+	 * @param length
+	 *            the declared length of the value's data.
+	 * @throws IllegalArgumentException
+	 *             if the length is negative, or not the width of a type with
+	 *             a fixed width.
+	 */
+	protected static void checkLength(byte type, int length) {
+		int width = type == TYPE_ROCKET_STREAM ? 16 : primitiveWidth(type);
+		if (length < 0 || width > 0 && length != width) {
+			throw new IllegalArgumentException("Value of type " + type
+					+ " has length " + length);
+		}
+	}
+
+	/**
+	 * Gets the length of a value's data in the compact encoding, reading it
+	 * from the buffer if the type has no fixed length.
+	 * 
+	 * @param type
+	 *            the value's type.
+	 * @param buffer
+	 *            the ByteBuffer, positioned after the type.
+	 * @return the number of bytes of data.
+	 */
+	protected static int compactDataLength(byte type, ByteBuffer buffer) {
+		switch (type) {
+		case TYPE_STRING:
+		case TYPE_BYTE_ARRAY:
+			return getVarint(buffer);
+		case TYPE_INT:
+		case TYPE_FLOAT:
+			return 4;
+		case TYPE_LONG:
+		case TYPE_DOUBLE:
+			return 8;
+		case TYPE_SHORT:
+			return 2;
+		case TYPE_BYTE:
+			return 1;
+		case TYPE_ROCKET_STREAM:
+			return 16;
+		default:
+			throw new IllegalArgumentException("Unknown value type " + type);
+		}
+	}
+
+	/**
+	 * Decodes a value whose data is at a known place in a buffer, without
+	 * moving the buffer's position.
+	 * 
+	 * @param buffer
+	 *            the ByteBuffer.
+	 * @param type
+	 *            the value's type.
+	 * @param offset
+	 *            the index of the value's data.
+	 * @param length
+	 *            the length of the value's data.
+	 * @return the object decoded
+	 */
+	protected static Object decode(ByteBuffer buffer, byte type, int offset,
+			int length) {
+		switch (type) {
+		case TYPE_ROCKET_STREAM:
+			return new RocketStream(new UUID(buffer.getLong(offset),
+					buffer.getLong(offset + 8)));
+		case TYPE_INT:
+			return buffer.getInt(offset);
+		case TYPE_BYTE:
+			return buffer.get(offset);
+		case TYPE_DOUBLE:
+			return buffer.getDouble(offset);
+		case TYPE_FLOAT:
+			return buffer.getFloat(offset);
+		case TYPE_SHORT:
+			return buffer.getShort(offset);
+		case TYPE_LONG:
+			return buffer.getLong(offset);
+		case TYPE_STRING:
+			return decodeString(buffer, offset, length);
+		case TYPE_BYTE_ARRAY:
+		default:
+			return copy(buffer, offset, length);
+		}
+	}
+
+	/**
+	 * Decodes UTF-8 at a known place in a buffer, without moving the buffer's
+	 * position.
+	 * 
+	 * @param buffer
+	 *            the ByteBuffer.
+	 * @param offset
+	 *            the index of the first byte.
+	 * @param length
+	 *            the number of bytes.
+	 * @return the String.
+	 */
+	protected static String decodeString(ByteBuffer buffer, int offset,
+			int length) {
+		return new String(copy(buffer, offset, length), UTF_8);
+	}
+
+	private static byte[] copy(ByteBuffer buffer, int offset, int length) {
+		byte[] data = new byte[length];
+		ByteBuffer source = buffer.duplicate();
+		source.position(offset);
+		source.get(data);
+		return data;
+	}
+
+	/**
+	 * Compares UTF-8 at a known place in a buffer with a String, without
+	 * decoding it unless the String has characters outside ASCII.
+	 * 
+	 * @param buffer
+	 *            the ByteBuffer.
+	 * @param offset
+	 *            the index of the first byte.
+	 * @param length
+	 *            the number of bytes.
+	 * @param s
+	 *            the String.
+	 * @return whether they are equal.
+	 */
+	protected static boolean utf8Equals(ByteBuffer buffer, int offset,
+			int length, String s) {
+		int chars = s.length();
+		if (chars > length) {
+			return false;
+		}
+		for (int i = 0; i < chars; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x80) {
+				return s.equals(decodeString(buffer, offset, length));
+			}
+			if (buffer.get(offset + i) != c) {
+				return false;
+			}
+		}
+		return chars == length;
+	}
+
 	@Override
 	public int hashCode() {
 		return Arrays.hashCode(data);
@@ -0,0 +1,160 @@
+package com.jwatts.rocket;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel, driven by a Reactor's select loop. Timeouts are kept
+ * in one of SLOTS buckets by the tick they expire on, so scheduling and
+ * cancelling cost the same however many timeouts are pending, and a Reactor
+ * can keep idle, heartbeat and request timeouts for a great many connections.
+ * Timeouts fire on the first tick at or after their deadline, so they are
+ * accurate to TICK_NANOS.
+ *
+ * Only the Reactor's thread touches the wheel; see {@link Reactor#schedule}.
+ *
+ * @author joeywatts
+ *
+ */
+class TimerWheel {
+	/**
+	 * The resolution of the wheel.
+	 */
+	protected static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * The number of buckets, so a timeout less than SLOTS ticks away is only
+	 * looked at when it expires, and a later one once per turn of the wheel.
+	 */
+	protected static final int SLOTS = 4096;
+
+	private final Timeout[] slots;
+	private final BitSet occupied;
+	private final long start;
+	private long tick;
+	private int size;
+
+	protected TimerWheel() {
+		slots = new Timeout[SLOTS];
+		occupied = new BitSet(SLOTS);
+		start = System.nanoTime();
+	}
+
+	/**
+	 * Adds a timeout to the wheel.
+	 *
+	 * @param timeout
+	 *            the timeout.
+	 */
+	protected void add(Timeout timeout) {
+		long nanos = timeout.deadline - start;
+		/* Round up, and never into a tick that has already been expired. */
+		timeout.tick = Math.max((nanos + TICK_NANOS - 1) / TICK_NANOS,
+				tick + 1);
+		int slot = (int) (timeout.tick & (SLOTS - 1));
+		timeout.next = slots[slot];
+		if (timeout.next != null) {
+			timeout.next.prev = timeout;
+		}
+		slots[slot] = timeout;
+		occupied.set(slot);
+		size++;
+	}
+
+	private void remove(Timeout timeout, int slot) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			slots[slot] = timeout.next;
+			if (timeout.next == null) {
+				occupied.clear(slot);
+			}
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = timeout.next = null;
+		size--;
+	}
+
+	/**
+	 * Takes every timeout whose tick has come off the wheel, and drops
+	 * cancelled ones from the buckets it passes. Their tasks are left to the
+	 * caller to run, so that a task that throws cannot leave the wheel half
+	 * expired.
+	 *
+	 * @param now
+	 *            the current System.nanoTime().
+	 * @param expired
+	 *            receives the tasks of the timeouts that have expired, in the
+	 *            order their buckets were passed.
+	 */
+	protected void expire(long now, Collection<Runnable> expired) {
+		long current = (now - start) / TICK_NANOS;
+		/* Each bucket only needs to be looked at once, however late we are. */
+		long from = Math.max(tick + 1, current - SLOTS + 1);
+		tick = current;
+		for (long t = from; t <= current && size > 0; t++) {
+			int slot = (int) (t & (SLOTS - 1));
+			Timeout timeout = slots[slot];
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.cancelled) {
+					remove(timeout, slot);
+				} else if (timeout.tick <= current) {
+					remove(timeout, slot);
+					expired.add(timeout.task);
+				}
+				timeout = next;
+			}
+		}
+	}
+
+	/**
+	 * Gets how long the select loop may block before the wheel needs to
+	 * expire timeouts again.
+	 *
+	 * @param now
+	 *            the current System.nanoTime().
+	 * @return the time in nanoseconds until the next bucket that holds a
+	 *         timeout comes round, or -1 if there are no timeouts.
+	 */
+	protected long nanosUntilNext(long now) {
+		if (size == 0) {
+			return -1;
+		}
+		int from = (int) ((tick + 1) & (SLOTS - 1));
+		int slot = occupied.nextSetBit(from);
+		if (slot < 0) {
+			slot = occupied.nextSetBit(0);
+		}
+		long ticks = (slot - from + SLOTS) % SLOTS + 1;
+		return Math.max(0, start + (tick + ticks) * TICK_NANOS - now);
+	}
+
+	/**
+	 * A task scheduled on a Reactor. See {@link Reactor#schedule}.
+	 */
+	protected static class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private volatile boolean cancelled;
+		private long tick;
+		private Timeout prev, next;
+
+		protected Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Stops the task from running, if it has not run yet. Safe to call
+		 * from any thread; the timeout is dropped from the wheel the next time
+		 * its bucket comes round.
+		 */
+		protected void cancel() {
+			cancelled = true;
+		}
+	}
+}
@@ -0,0 +1,385 @@
+package com.jwatts.rocket.sample;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+
+import com.jwatts.rocket.LandingZone;
+import com.jwatts.rocket.LaunchPad;
+import com.jwatts.rocket.Rocket;
+import com.jwatts.rocket.RocketStream;
+import com.jwatts.rocket.RocketStream.StreamData;
+
+/**
+ * Opens a number of connections to a {@link SampleServer} and sends it
+ * requests at a fixed rate, reporting throughput and round-trip latency as it
+ * goes. Each connection can also keep a number of RocketStreams going at the
+ * same time. Run it for long enough, with enough connections, to find where a
+ * box stops keeping up.
+ *
+ * Latency is measured from when a request was due to be sent, not from when
+ * it was sent, so a stall in the sender shows up in the percentiles instead
+ * of hiding them.
+ *
+ * <pre>
+ * LoadGenerator [host] [port] [--clients N] [--rate ROCKETS_PER_SECOND]
+ *               [--size BYTES] [--tags TAG:WEIGHT,...] [--streams N]
+ *               [--stream-size BYTES] [--duration SECONDS] [--report SECONDS]
+ * </pre>
+ *
+ * @author joeywatts
+ *
+ */
+public class LoadGenerator {
+	private String host = "127.0.0.1";
+	private int port = 1234;
+	private int clients = 10;
+	private int rate = 10000;
+	private int size = 256;
+	private String[] tags = { "load" };
+	private int[] tagWeights = { 1 };
+	private int streams = 0;
+	private int streamSize = 1 << 20;
+	private int duration = 60;
+	private int report = 5;
+
+	private final List<LaunchPad> launchPads = new ArrayList<LaunchPad>();
+	private final List<LandingZone> zones = new ArrayList<LandingZone>();
+	private final Recorder latency = new Recorder();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong streamsCompleted = new AtomicLong();
+	private final AtomicLong streamBytes = new AtomicLong();
+	private volatile boolean running = true;
+
+	public static void main(String[] args) throws InterruptedException {
+		LoadGenerator generator = new LoadGenerator();
+		try {
+			generator.parseArguments(args);
+		} catch (RuntimeException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: LoadGenerator [host] [port] [--clients N] [--rate ROCKETS_PER_SECOND] [--size BYTES] [--tags TAG:WEIGHT,...] [--streams N] [--stream-size BYTES] [--duration SECONDS] [--report SECONDS]");
+			System.exit(1);
+		}
+		generator.run();
+		System.exit(0);
+	}
+
+	private void parseArguments(String[] args) {
+		int positional = 0;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (!arg.startsWith("--")) {
+				if (positional++ == 0) {
+					host = arg;
+				} else {
+					port = Integer.parseInt(arg);
+				}
+				continue;
+			}
+			if (i + 1 == args.length) {
+				throw new IllegalArgumentException("Missing value for " + arg);
+			}
+			String value = args[++i];
+			if (arg.equals("--clients")) {
+				clients = Integer.parseInt(value);
+			} else if (arg.equals("--rate")) {
+				rate = Integer.parseInt(value);
+			} else if (arg.equals("--size")) {
+				size = Integer.parseInt(value);
+			} else if (arg.equals("--tags")) {
+				String[] mix = value.split(",");
+				tags = new String[mix.length];
+				tagWeights = new int[mix.length];
+				for (int j = 0; j < mix.length; j++) {
+					String[] pair = mix[j].split(":");
+					tags[j] = pair[0];
+					tagWeights[j] = pair.length > 1 ? Integer.parseInt(pair[1]) : 1;
+				}
+			} else if (arg.equals("--streams")) {
+				streams = Integer.parseInt(value);
+			} else if (arg.equals("--stream-size")) {
+				streamSize = Integer.parseInt(value);
+			} else if (arg.equals("--duration")) {
+				duration = Integer.parseInt(value);
+			} else if (arg.equals("--report")) {
+				report = Integer.parseInt(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+		if (clients <= 0 || rate <= 0 || size < 0 || report <= 0) {
+			throw new IllegalArgumentException("Invalid option value.");
+		}
+	}
+
+	private void run() throws InterruptedException {
+		System.out.println("Connecting " + clients + " clients to " + host + ":" + port);
+		for (int i = 0; i < clients; i++) {
+			launchPads.add(LaunchPad.connect(host, port));
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		for (LaunchPad launchPad : launchPads) {
+			while (launchPad.getAvailableLandingZones().isEmpty()) {
+				if (System.nanoTime() > deadline) {
+					System.err.println("Timed out connecting.");
+					return;
+				}
+				Thread.sleep(10);
+			}
+			zones.add(launchPad.getAvailableLandingZones().get(0));
+		}
+		for (int i = 0; i < zones.size(); i++) {
+			for (int j = 0; j < streams; j++) {
+				sendStream(launchPads.get(i), zones.get(i));
+			}
+		}
+		System.out.println("Sending " + rate + " rockets/s of " + size + " bytes for " + duration + "s");
+		Thread reporter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				report();
+			}
+		}, "load-reporter");
+		reporter.setDaemon(true);
+		reporter.start();
+		generate();
+		running = false;
+		/* Give the last replies a moment to arrive. */
+		Thread.sleep(1000);
+		reporter.interrupt();
+		reporter.join();
+		printSummary();
+		for (LaunchPad launchPad : launchPads) {
+			launchPad.shutdown();
+		}
+	}
+
+	/**
+	 * Sends requests round-robin over the connections, keeping up with the
+	 * target rate.
+	 */
+	private void generate() throws InterruptedException {
+		Random random = new Random();
+		byte[] payload = new byte[size];
+		random.nextBytes(payload);
+		int totalWeight = 0;
+		for (int weight : tagWeights) {
+			totalWeight += weight;
+		}
+		double interval = 1e9 / rate;
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(duration);
+		long count = 0;
+		while (true) {
+			long now = System.nanoTime();
+			if (now >= end) {
+				break;
+			}
+			long due = (long) ((now - start) / interval);
+			for (; count <= due; count++) {
+				final long intended = start + (long) (count * interval);
+				LandingZone zone = zones.get((int) (count % zones.size()));
+				Rocket rocket = launchPads.get((int) (count % zones.size()))
+						.prepareForLaunch(pickTag(random, totalWeight))
+						.attachLong("sent", intended).attach("payload", payload);
+				sent.incrementAndGet();
+				zone.request(rocket).whenComplete(new BiConsumer<Rocket, Throwable>() {
+					@Override
+					public void accept(Rocket reply, Throwable error) {
+						if (error != null) {
+							failed.incrementAndGet();
+							return;
+						}
+						latency.record(System.nanoTime() - intended);
+						completed.incrementAndGet();
+					}
+				});
+			}
+			Thread.sleep(0, 100000);
+		}
+	}
+
+	private String pickTag(Random random, int totalWeight) {
+		int pick = random.nextInt(totalWeight);
+		for (int i = 0; i < tags.length; i++) {
+			pick -= tagWeights[i];
+			if (pick < 0) {
+				return tags[i];
+			}
+		}
+		return tags[0];
+	}
+
+	/**
+	 * Sends a stream of streamSize bytes as a request, which the server
+	 * replies to once it has read the whole stream. Another stream is started
+	 * as soon as the reply arrives.
+	 */
+	private void sendStream(final LaunchPad launchPad, final LandingZone zone) {
+		if (!running) {
+			return;
+		}
+		final byte[] chunk = new byte[64 * 1024];
+		RocketStream stream = RocketStream.createStream(new StreamData() {
+			private int remaining = streamSize;
+
+			@Override
+			public ByteBuffer getBuffer() {
+				int length = Math.min(chunk.length, remaining);
+				remaining -= length;
+				return ByteBuffer.wrap(chunk, 0, length);
+			}
+
+			@Override
+			public boolean isFinished() {
+				return remaining == 0;
+			}
+		});
+		CompletableFuture<Rocket> reply = zone.request(launchPad
+				.prepareForLaunch("loadstream").attach("stream", stream), 0,
+				TimeUnit.SECONDS);
+		reply.whenComplete(new BiConsumer<Rocket, Throwable>() {
+			@Override
+			public void accept(Rocket rocket, Throwable error) {
+				if (error != null) {
+					failed.incrementAndGet();
+					return;
+				}
+				streamsCompleted.incrementAndGet();
+				streamBytes.addAndGet(streamSize);
+				sendStream(launchPad, zone);
+			}
+		});
+	}
+
+	private void report() {
+		long[] previous = latency.snapshot();
+		long previousCompleted = 0, previousStreamBytes = 0;
+		long last = System.nanoTime();
+		System.out.println(String.format("%8s %10s %10s %8s %9s %9s %9s %9s %9s",
+				"time", "rockets/s", "stream MB/s", "failed", "p50 us", "p99 us",
+				"p999 us", "max us", "inflight"));
+		long started = last;
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				Thread.sleep(TimeUnit.SECONDS.toMillis(report));
+			} catch (InterruptedException e) {
+				return;
+			}
+			long now = System.nanoTime();
+			double seconds = (now - last) / 1e9;
+			long[] counts = latency.snapshot();
+			long[] interval = new long[counts.length];
+			for (int i = 0; i < counts.length; i++) {
+				interval[i] = counts[i] - previous[i];
+			}
+			long done = completed.get(), bytes = streamBytes.get();
+			System.out.println(String.format("%7ds %10.0f %10.1f %8d %9.1f %9.1f %9.1f %9.1f %9d",
+					TimeUnit.NANOSECONDS.toSeconds(now - started),
+					(done - previousCompleted) / seconds,
+					(bytes - previousStreamBytes) / seconds / (1 << 20),
+					failed.get(), Recorder.percentile(interval, 50) / 1e3,
+					Recorder.percentile(interval, 99) / 1e3,
+					Recorder.percentile(interval, 99.9) / 1e3,
+					Recorder.percentile(interval, 100) / 1e3,
+					sent.get() - done - failed.get()));
+			previous = counts;
+			previousCompleted = done;
+			previousStreamBytes = bytes;
+			last = now;
+		}
+	}
+
+	private void printSummary() {
+		long[] counts = latency.snapshot();
+		long bytesWritten = 0, bytesRead = 0;
+		for (LaunchPad launchPad : launchPads) {
+			bytesWritten += launchPad.getMetrics().getBytesWritten();
+			bytesRead += launchPad.getMetrics().getBytesRead();
+		}
+		System.out.println();
+		System.out.println("Requests sent " + sent.get() + ", completed " + completed.get() + ", failed " + failed.get());
+		System.out.println("Throughput " + completed.get() / Math.max(1, duration) + " rockets/s, "
+				+ streamsCompleted.get() + " streams of " + streamSize + " bytes");
+		System.out.println("Bytes written " + bytesWritten + ", read " + bytesRead);
+		System.out.println(String.format("Latency p50 %.1fus  p90 %.1fus  p99 %.1fus  p999 %.1fus  p9999 %.1fus  max %.1fus",
+				Recorder.percentile(counts, 50) / 1e3, Recorder.percentile(counts, 90) / 1e3,
+				Recorder.percentile(counts, 99) / 1e3, Recorder.percentile(counts, 99.9) / 1e3,
+				Recorder.percentile(counts, 99.99) / 1e3, Recorder.percentile(counts, 100) / 1e3));
+	}
+
+	/**
+	 * Records latencies in log-linear buckets, the way HdrHistogram does:
+	 * every power of two is split into 128 buckets, so percentiles are
+	 * accurate to within 1%, whatever the range of latencies.
+	 */
+	private static class Recorder {
+		private static final int SUB_BITS = 7;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+		private static final int LINEAR = SUB_BUCKETS * 2;
+		private final AtomicLongArray counts = new AtomicLongArray(LINEAR
+				+ (63 - SUB_BITS) * SUB_BUCKETS);
+
+		private void record(long nanos) {
+			counts.incrementAndGet(index(Math.max(0, nanos)));
+		}
+
+		private long[] snapshot() {
+			long[] snapshot = new long[counts.length()];
+			for (int i = 0; i < snapshot.length; i++) {
+				snapshot[i] = counts.get(i);
+			}
+			return snapshot;
+		}
+
+		private static int index(long value) {
+			if (value < LINEAR) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int shift = exponent - SUB_BITS;
+			int sub = (int) (value >>> shift) - SUB_BUCKETS;
+			return LINEAR + (exponent - SUB_BITS - 1) * SUB_BUCKETS + sub;
+		}
+
+		/**
+		 * @return the largest value that falls in a bucket.
+		 */
+		private static long highestValue(int index) {
+			if (index < LINEAR) {
+				return index;
+			}
+			int exponent = (index - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+			int sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+			int shift = exponent - SUB_BITS;
+			return ((long) (sub + 1) << shift) - 1;
+		}
+
+		private static long percentile(long[] counts, double percentile) {
+			long total = 0;
+			for (long count : counts) {
+				total += count;
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return highestValue(i);
+				}
+			}
+			return highestValue(counts.length - 1);
+		}
+	}
+}
@@ -5,23 +5,18 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.function.Consumer;
 
 import com.jwatts.rocket.LandingZone;
 import com.jwatts.rocket.LaunchPad;
 import com.jwatts.rocket.LaunchPad.LZCommunicationListener;
-import com.jwatts.rocket.LaunchPad.LandingListener;
 import com.jwatts.rocket.Rocket;
 import com.jwatts.rocket.RocketStream;
 import com.jwatts.rocket.RocketStream.StreamData;
 
 public class SampleClient {
 	public static void main(String[] args) {
-		LaunchPad.connect("127.0.0.1", 1234).onLanding(new LandingListener() {
-			@Override
-			public void onLanding(LaunchPad launchPad, Rocket rocket) {
-				System.out.println("Result is " + rocket.getInt("result"));
-			}
-		}).onCommunicationWithLandingZone(new LZCommunicationListener() {
+		LaunchPad.connect("127.0.0.1", 1234).onCommunicationWithLandingZone(new LZCommunicationListener() {
 			@Override
 			public void onLZOnline(LaunchPad launchPad, LandingZone zone) {
 				/* Read in files */
@@ -48,9 +43,14 @@ public class SampleClient {
 						return ByteBuffer.wrap(baos.toByteArray());
 					}
 				});
-				launchPad.prepareForLaunch("sendfile").attach("file", stream).attach("dest", "IMG.JPG").launch(zone);
-				launchPad.prepareForLaunch("factorial").attach("factorial", 5)
-						.launch(zone);
+				launchPad.prepareForLaunch("sendfile").attach("file", stream).attach("dest", "IMG.JPG").attach("size", (long) baos.size()).launch(zone);
+				zone.request(launchPad.prepareForLaunch("factorial").attachInt("factorial", 5))
+						.thenAccept(new Consumer<Rocket>() {
+							@Override
+							public void accept(Rocket reply) {
+								System.out.println("Result is " + reply.getInt("result"));
+							}
+						});
 				StringBuffer s = new StringBuffer();
 				for (int j = 1; j <= 50; j++) {
 					s.append(j + " ");
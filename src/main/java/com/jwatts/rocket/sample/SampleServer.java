@@ -1,5 +1,6 @@
 package com.jwatts.rocket.sample;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -23,13 +24,27 @@ public class SampleServer {
 			
 			@Override
 			public void onLanding(LaunchPad launchPad, Rocket rocket) {
-				launchPad.prepareForLaunch("factorial").attach("result", factorial(rocket.getInt("factorial"))).launch(rocket.getOrigin());
+				Rocket result = launchPad.prepareForLaunch("factorial").attachInt("result", factorial(rocket.getInt("factorial")));
+				if (rocket.isRequest()) {
+					rocket.reply(result);
+				} else {
+					result.launch(rocket.getOrigin());
+				}
 			}
 		}, "factorial").onLanding(new LandingListener() {
 			@Override
 			public void onLanding(LaunchPad launchPad, Rocket rocket) {
 				RocketStream stream = rocket.getRocketStream("file");
 				final String dest = rocket.getString("dest");
+				if (rocket.containsKey("size")) {
+					/* The size is known up front, so write straight into a mapped file. */
+					try {
+						stream.openStream(new RocketStream.MappedStreamReader(new File(dest), rocket.getLong("size")));
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					return;
+				}
 				try {
 					stream.openStream(new StreamReader() {
 						FileOutputStream fos = new FileOutputStream(dest);
@@ -37,7 +52,7 @@ public class SampleServer {
 						@Override
 						public void onStreamData(ByteBuffer data) {
 							try {
-								fos.write(data.array(), data.position(), data.remaining());
+								fos.getChannel().write(data);
 							} catch (IOException e) {
 								e.printStackTrace();
 							}
@@ -56,7 +71,30 @@ public class SampleServer {
 					e.printStackTrace();
 				}
 			}
-		}, "sendfile");
+		}, "sendfile").onLanding(new LandingListener() {
+			@Override
+			public void onLanding(final LaunchPad launchPad, final Rocket rocket) {
+				/* Streams from the LoadGenerator are read and thrown away. */
+				rocket.getRocketStream("stream").openStream(new StreamReader() {
+					@Override
+					public void onStreamData(ByteBuffer data) {
+					}
+
+					@Override
+					public void onStreamClosed() {
+						rocket.reply(launchPad.prepareForLaunch("loadstream"));
+					}
+				});
+			}
+		}, "loadstream").onLanding(new LandingListener() {
+			@Override
+			public void onLanding(LaunchPad launchPad, Rocket rocket) {
+				/* Anything else that asks for a reply, such as the LoadGenerator's requests, gets one. */
+				if (rocket.isRequest()) {
+					rocket.reply(launchPad.prepareForLaunch(rocket.getTag()).attachLong("sent", rocket.getLong("sent")));
+				}
+			}
+		});
 	}
 	
 	public static int factorial(int x) {
@@ -0,0 +1,66 @@
+package com.jwatts.rocket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+/**
+ * Round trips frames through a DeflateCodec, and checks that compressed
+ * frames it cannot inflate fail rather than spin.
+ *
+ * @author joeywatts
+ *
+ */
+public class DeflateCodecTest {
+	private static byte[] data(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i % 7);
+		}
+		return data;
+	}
+
+	@Test
+	public void roundTrips() throws IOException {
+		DeflateCodec codec = new DeflateCodec();
+		byte[] data = data(10000);
+		ByteBuffer compressed = ByteBuffer.allocate(data.length);
+		assertTrue(codec.compress(new ByteBuffer[] { ByteBuffer.wrap(data) },
+				compressed));
+		compressed.flip();
+		ByteBuffer inflated = ByteBuffer.allocate(data.length);
+		codec.decompress(compressed, inflated);
+		assertArrayEquals(data, inflated.array());
+	}
+
+	@Test(expected = IOException.class, timeout = 5000)
+	public void presetDictionaryFails() throws IOException {
+		Deflater deflater = new Deflater();
+		deflater.setDictionary(new byte[] { 0, 1, 2, 3, 4, 5, 6 });
+		deflater.setInput(data(1000));
+		deflater.finish();
+		byte[] out = new byte[1000];
+		int length = deflater.deflate(out);
+		deflater.end();
+		new DeflateCodec().decompress(ByteBuffer.wrap(out, 0, length),
+				ByteBuffer.allocate(1000));
+	}
+
+	@Test(expected = IOException.class, timeout = 5000)
+	public void truncatedFrameFails() throws IOException {
+		DeflateCodec codec = new DeflateCodec();
+		byte[] data = data(10000);
+		ByteBuffer compressed = ByteBuffer.allocate(data.length);
+		codec.compress(new ByteBuffer[] { ByteBuffer.wrap(data) }, compressed);
+		compressed.flip();
+		compressed.limit(compressed.limit() / 2);
+		codec.decompress(compressed, ByteBuffer.wrap(Arrays.copyOf(data,
+				data.length)));
+	}
+}
@@ -0,0 +1,118 @@
+package com.jwatts.rocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Indexes Rockets lazily, to check that values whose declared length does
+ * not match their type are refused, and that the frame goes back to the
+ * BufferPool once the Rocket has been decoded.
+ *
+ * @author joeywatts
+ *
+ */
+public class LazyRocketTest {
+	private BufferPool pool;
+	private LandingZone zone;
+
+	@Before
+	public void setUp() {
+		pool = BufferPool.heap();
+		zone = new LandingZone(new LaunchPad().bufferPool(pool));
+	}
+
+	/**
+	 * Copies a Rocket's plain encoding into a buffer from the pool, as a
+	 * LandingZone would read it.
+	 */
+	private ByteBuffer frame(Rocket rocket) {
+		RocketBuffer encoded = rocket.toRocketBuffer(pool);
+		ByteBuffer bytes = encoded.getBuffer();
+		ByteBuffer frame = pool.acquire(bytes.remaining());
+		frame.put(bytes.duplicate());
+		frame.flip();
+		encoded.written();
+		return frame;
+	}
+
+	private static void putValue(ByteBuffer buffer, byte type, byte[] data) {
+		buffer.putInt(data.length);
+		buffer.put(type);
+		buffer.put(data);
+	}
+
+	/**
+	 * A plain frame with one int field, whose value is declared to be the
+	 * given number of bytes long and followed by another field.
+	 */
+	private static ByteBuffer shortInt(int length) {
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		putValue(buffer, RocketValue.TYPE_STRING, new byte[] { 't' });
+		putValue(buffer, RocketValue.TYPE_STRING, new byte[] { 'a' });
+		buffer.putInt(length);
+		buffer.put(RocketValue.TYPE_INT);
+		buffer.put(new byte[length]);
+		putValue(buffer, RocketValue.TYPE_STRING, new byte[] { 'b' });
+		putValue(buffer, RocketValue.TYPE_INT, new byte[] { 0, 0, 0, 7 });
+		buffer.flip();
+		return buffer;
+	}
+
+	@Test
+	public void readsFieldsStraightFromTheFrame() throws IOException {
+		Rocket rocket = new Rocket().index(zone, frame(new Rocket("t")
+				.attachInt("a", 1).attach("s", "text")), false);
+		assertEquals("t", rocket.getTag());
+		assertEquals(1, rocket.getInt("a"));
+		assertEquals("text", rocket.getString("s"));
+	}
+
+	@Test
+	public void wellFormedIntIsAccepted() throws IOException {
+		Rocket rocket = new Rocket().index(zone, shortInt(4), false);
+		assertEquals(0, rocket.getInt("a"));
+		assertEquals(7, rocket.getInt("b"));
+	}
+
+	@Test
+	public void valueOfTheWrongLengthIsMalformed() {
+		for (int length : new int[] { 0, 2, 8 }) {
+			try {
+				new Rocket().index(zone, shortInt(length), false);
+				fail("accepted an int of " + length + " bytes");
+			} catch (IOException e) {
+				/* Expected. */
+			}
+		}
+	}
+
+	@Test
+	public void frameIsReleasedOnceMaterialized() throws IOException {
+		Rocket rocket = new Rocket().index(zone, frame(new Rocket("t")
+				.attachInt("a", 1)), false);
+		long released = pool.getReleaseCount();
+		rocket.attach("b", "changed");
+		assertEquals(released + 1, pool.getReleaseCount());
+		assertEquals(1, rocket.getInt("a"));
+		/* Only once. */
+		rocket.keySet();
+		assertEquals(released + 1, pool.getReleaseCount());
+	}
+
+	@Test
+	public void sharedFrameIsNotReleased() throws IOException {
+		Rocket rocket = new Rocket().index(zone, frame(new Rocket("t")
+				.attach("bytes", new byte[] { 1, 2, 3 })), false);
+		ByteBuffer slice = rocket.getByteBuffer("bytes");
+		long released = pool.getReleaseCount();
+		rocket.keySet();
+		assertEquals(released, pool.getReleaseCount());
+		assertEquals(3, slice.get(2));
+	}
+}
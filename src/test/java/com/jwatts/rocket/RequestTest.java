@@ -0,0 +1,175 @@
+package com.jwatts.rocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Sends requests over a loopback connection to a server that answers "echo"
+ * requests straight away and leaves "slow" ones for the test to answer, to
+ * check that requests time out and that replies arriving after that are
+ * dropped without disturbing later requests.
+ *
+ * @author joeywatts
+ *
+ */
+public class RequestTest {
+	private LaunchPad server, client;
+	private LandingZone zone;
+	private BlockingQueue<Rocket> held;
+	private AtomicInteger clientLandings;
+
+	@Before
+	public void setUp() throws IOException, InterruptedException {
+		int port = freePort();
+		held = new ArrayBlockingQueue<Rocket>(16);
+		clientLandings = new AtomicInteger();
+		server = LaunchPad.serve(port).onLanding(
+				new LaunchPad.LandingListener() {
+					@Override
+					public void onLanding(LaunchPad launchPad, Rocket rocket) {
+						if (rocket.getTag().equals("slow")) {
+							held.add(rocket);
+							return;
+						}
+						rocket.reply(launchPad.prepareForLaunch("echo")
+								.attachInt("value", rocket.getInt("value")));
+					}
+				});
+		client = LaunchPad.connect("127.0.0.1", port).onLanding(
+				new LaunchPad.LandingListener() {
+					@Override
+					public void onLanding(LaunchPad launchPad, Rocket rocket) {
+						clientLandings.incrementAndGet();
+					}
+				});
+		for (int i = 0; i < 1000 && client.getAvailableLandingZones().isEmpty(); i++) {
+			Thread.sleep(10);
+		}
+		zone = client.getAvailableLandingZones().get(0);
+	}
+
+	@After
+	public void tearDown() {
+		client.shutdown();
+		server.shutdown();
+	}
+
+	private Rocket echo(int value) throws Exception {
+		return zone.request(
+				client.prepareForLaunch("echo").attachInt("value", value),
+				10, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS);
+	}
+
+	@Test(timeout = 30000)
+	public void repliesCompleteTheirOwnRequests() throws Exception {
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[100];
+		for (int i = 0; i < futures.length; i++) {
+			futures[i] = zone.request(client.prepareForLaunch("echo")
+					.attachInt("value", i));
+		}
+		for (int i = 0; i < futures.length; i++) {
+			Rocket reply = (Rocket) futures[i].get(10, TimeUnit.SECONDS);
+			assertEquals(i, reply.getInt("value"));
+		}
+		assertEquals(0, clientLandings.get());
+	}
+
+	@Test(timeout = 30000)
+	public void requestTimesOutAndLateReplyIsDropped() throws Exception {
+		CompletableFuture<Rocket> slow = zone.request(
+				client.prepareForLaunch("slow"), 100, TimeUnit.MILLISECONDS);
+		Rocket request = held.poll(10, TimeUnit.SECONDS);
+		assertTrue(request.isRequest());
+		try {
+			slow.get(10, TimeUnit.SECONDS);
+			fail("request did not time out");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+
+		/* Answered after the client gave up on it. */
+		request.reply(server.prepareForLaunch("late").attachInt("value", -1));
+		for (int i = 0; i < 20; i++) {
+			assertEquals(i, echo(i).getInt("value"));
+		}
+		/* Neither completed a later request nor landed as a plain Rocket. */
+		assertEquals(0, clientLandings.get());
+		assertFalse(client.getAvailableLandingZones().isEmpty());
+	}
+
+	@Test(timeout = 30000)
+	public void timedOutRequestsDoNotHoldUpOthers() throws Exception {
+		CompletableFuture<Rocket> slow = zone.request(
+				client.prepareForLaunch("slow"), 200, TimeUnit.MILLISECONDS);
+		assertEquals(7, echo(7).getInt("value"));
+		assertFalse(slow.isDone());
+		try {
+			slow.get(10, TimeUnit.SECONDS);
+			fail("request did not time out");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void requestWithoutTimeoutWaitsForItsReply() throws Exception {
+		CompletableFuture<Rocket> slow = zone.request(
+				client.prepareForLaunch("slow"), 0, TimeUnit.MILLISECONDS);
+		Rocket request = held.poll(10, TimeUnit.SECONDS);
+		Thread.sleep(200);
+		assertFalse(slow.isDone());
+		request.reply(server.prepareForLaunch("done").attachInt("value", 3));
+		assertEquals(3, slow.get(10, TimeUnit.SECONDS).getInt("value"));
+	}
+
+	@Test(timeout = 30000)
+	public void rejectedDispatchStillCompletesRequests() throws Exception {
+		client.dispatchOn(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException();
+			}
+		});
+		assertEquals(5, echo(5).getInt("value"));
+		CompletableFuture<Rocket> slow = zone.request(
+				client.prepareForLaunch("slow"), 100, TimeUnit.MILLISECONDS);
+		try {
+			slow.get(10, TimeUnit.SECONDS);
+			fail("request did not time out");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void onlyRequestsCanBeRepliedTo() {
+		client.prepareForLaunch("echo").reply(client.prepareForLaunch("echo"));
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+}
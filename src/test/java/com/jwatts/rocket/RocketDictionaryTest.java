@@ -0,0 +1,81 @@
+package com.jwatts.rocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Fills a RocketDictionary past its CAPACITY, and checks that compact
+ * Rockets still round trip once new strings have to be sent inline.
+ *
+ * @author joeywatts
+ *
+ */
+public class RocketDictionaryTest {
+
+	@Test
+	public void assignsIdsUpToCapacity() {
+		RocketDictionary dictionary = new RocketDictionary();
+		for (int i = 1; i <= RocketDictionary.CAPACITY; i++) {
+			assertEquals(i, dictionary.idOf("key" + i));
+		}
+		assertEquals(RocketDictionary.CAPACITY, dictionary.size());
+		assertEquals(0, dictionary.idOf("one too many"));
+		assertEquals(RocketDictionary.CAPACITY, dictionary.size());
+		/* Strings that already have an ID keep it. */
+		assertEquals(1, dictionary.idOf("key1"));
+		assertEquals(RocketDictionary.CAPACITY,
+				dictionary.idOf("key" + RocketDictionary.CAPACITY));
+		assertEquals("key" + RocketDictionary.CAPACITY,
+				dictionary.get(RocketDictionary.CAPACITY));
+	}
+
+	@Test
+	public void longStringsAreSentInline() {
+		RocketDictionary dictionary = new RocketDictionary();
+		char[] chars = new char[RocketDictionary.MAX_STRING_LENGTH + 1];
+		Arrays.fill(chars, 'k');
+		assertEquals(0, dictionary.idOf(new String(chars)));
+		assertEquals(1, dictionary.idOf(new String(chars, 1,
+				RocketDictionary.MAX_STRING_LENGTH)));
+	}
+
+	@Test
+	public void compactRocketRoundTripsPastCapacity() throws IOException {
+		final RocketDictionary dictionary = new RocketDictionary();
+		for (int i = 0; i < RocketDictionary.CAPACITY - 1; i++) {
+			dictionary.idOf("filler" + i);
+		}
+		Rocket rocket = new Rocket("tag").attach("defined", "first")
+				.attach("inline", "second").attachInt("number", 42);
+		int[] ids = rocket.dictionaryIds(dictionary);
+		assertEquals(RocketDictionary.CAPACITY, ids[0]);
+		int inline = 0;
+		for (int id : ids) {
+			if (id == 0) {
+				inline++;
+			}
+		}
+		assertTrue("some strings are sent inline", inline > 0);
+
+		BufferPool pool = BufferPool.heap();
+		RocketBuffer encoded = rocket.toCompactRocketBuffer(pool, ids);
+		ByteBuffer frame = encoded.getBuffer();
+		Rocket parsed = new Rocket().parseCompact(new LandingZone() {
+			@Override
+			protected String getDefinition(int id) {
+				return dictionary.get(id);
+			}
+		}, frame);
+		assertEquals("tag", parsed.getTag());
+		assertEquals("first", parsed.getString("defined"));
+		assertEquals("second", parsed.getString("inline"));
+		assertEquals(42, parsed.getInt("number"));
+		encoded.written();
+	}
+}
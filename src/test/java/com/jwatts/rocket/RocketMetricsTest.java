@@ -0,0 +1,38 @@
+package com.jwatts.rocket;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks that a LandingZone's gauges are taken back out of its LaunchPad's
+ * in full when it retires, however large they have grown.
+ *
+ * @author joeywatts
+ *
+ */
+public class RocketMetricsTest {
+
+	@Test
+	public void retireTakesGaugesOutOfParent() {
+		RocketMetrics parent = new RocketMetrics(null);
+		RocketMetrics zone = new RocketMetrics(parent);
+		RocketMetrics other = new RocketMetrics(parent);
+		long large = 3L + Integer.MAX_VALUE;
+		zone.framesQueued(large);
+		zone.streamsQueued(large);
+		zone.streamBytesBuffered(large);
+		other.framesQueued(2);
+		other.streamsQueued(1);
+		assertEquals(large + 2, parent.getQueuedFrames());
+		assertEquals(large + 1, parent.getQueuedStreams());
+
+		zone.retire();
+		assertEquals(2, parent.getQueuedFrames());
+		assertEquals(1, parent.getQueuedStreams());
+		assertEquals(0, parent.getBufferedStreamBytes());
+		/* Later changes stay with the retired LandingZone. */
+		zone.framesQueued(-1);
+		assertEquals(2, parent.getQueuedFrames());
+	}
+}
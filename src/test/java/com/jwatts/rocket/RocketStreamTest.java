@@ -0,0 +1,293 @@
+package com.jwatts.rocket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Checks that a RocketStream stops sending once it has used up the credit
+ * the other side gave it, and carries on when more credit arrives.
+ *
+ * @author joeywatts
+ *
+ */
+public class RocketStreamTest {
+	private static final int CHUNK = 1000;
+
+	/**
+	 * A stream of count chunks of CHUNK bytes, where each byte is its
+	 * position in the stream.
+	 */
+	private static RocketStream.StreamData chunks(final int count) {
+		return new RocketStream.StreamData() {
+			private int sent;
+
+			@Override
+			public ByteBuffer getBuffer() {
+				ByteBuffer buffer = ByteBuffer.allocate(CHUNK);
+				for (int i = 0; i < CHUNK; i++) {
+					buffer.put((byte) (sent * CHUNK + i));
+				}
+				buffer.flip();
+				sent++;
+				return buffer;
+			}
+
+			@Override
+			public boolean isFinished() {
+				return sent >= count;
+			}
+		};
+	}
+
+	/**
+	 * Takes chunks from a stream for as long as it has credit.
+	 *
+	 * @return the number of chunks taken.
+	 */
+	private static int send(RocketStream stream, LandingZone zone) {
+		int sent = 0;
+		while (stream.hasCredit() && !stream.isFinishedWriting()) {
+			RocketBuffer frame = stream.getBuffer(zone);
+			assertEquals(16 + CHUNK, frame.getLength());
+			frame.written();
+			sent++;
+		}
+		return sent;
+	}
+
+	@Test
+	public void stopsWhenCreditIsUsedUpAndResumesWithMore() {
+		LandingZone zone = new LandingZone(new LaunchPad());
+		RocketStream stream = RocketStream.createStream(chunks(10))
+				.setChunkSize(CHUNK);
+		stream.startSending(2500, 0);
+		assertTrue(stream.hasCredit());
+		/* The last chunk sent may overshoot the window. */
+		assertEquals(3, send(stream, zone));
+		assertFalse(stream.hasCredit());
+		assertFalse(stream.isFinishedWriting());
+
+		/* Not enough to cover the overshoot. */
+		stream.addCredit(500);
+		assertFalse(stream.hasCredit());
+		stream.addCredit(1000);
+		assertEquals(1, send(stream, zone));
+		assertFalse(stream.hasCredit());
+
+		stream.addCredit(100 * CHUNK);
+		assertEquals(6, send(stream, zone));
+		assertTrue(stream.isFinishedWriting());
+	}
+
+	@Test
+	public void zeroWindowMeansNoFlowControl() {
+		LandingZone zone = new LandingZone(new LaunchPad());
+		RocketStream stream = RocketStream.createStream(chunks(10))
+				.setChunkSize(CHUNK);
+		stream.startSending(0, 0);
+		assertEquals(10, send(stream, zone));
+		assertTrue(stream.isFinishedWriting());
+	}
+
+	@Test
+	public void onlyTheFirstStartSetsTheWindow() {
+		LandingZone zone = new LandingZone(new LaunchPad());
+		RocketStream stream = RocketStream.createStream(chunks(10))
+				.setChunkSize(CHUNK);
+		stream.startSending(CHUNK, 0);
+		stream.startSending(0, 0);
+		assertEquals(1, send(stream, zone));
+		assertFalse(stream.hasCredit());
+	}
+
+	@Test
+	public void chunksFitThePoolsLargestSizeClass() {
+		LaunchPad pad = new LaunchPad();
+		LandingZone zone = new LandingZone(pad);
+		final int length = 4 * 1024 * 1024;
+		RocketStream stream = RocketStream.createStream(
+				new RocketStream.StreamData() {
+					private boolean sent;
+
+					@Override
+					public ByteBuffer getBuffer() {
+						sent = true;
+						return ByteBuffer.allocate(length);
+					}
+
+					@Override
+					public boolean isFinished() {
+						return sent;
+					}
+				}).setChunkSize(length);
+		stream.startSending(0, 0);
+		int max = pad.getBufferPool().getMaxBufferSize();
+		long total = 0;
+		while (!stream.isFinishedWriting()) {
+			RocketBuffer frame = stream.getBuffer(zone);
+			assertTrue(frame.getLength() <= max);
+			total += frame.getLength() - 16;
+			frame.written();
+		}
+		assertEquals(length, total);
+		assertEquals(0, pad.getBufferPool().getOversizedCount());
+	}
+
+	@Test(timeout = 30000)
+	public void receiverHoldsOneWindowUntilTheStreamIsRead()
+			throws IOException, InterruptedException {
+		final int window = 64 * 1024;
+		final int count = 2000;
+		int port = freePort();
+		final BlockingQueue<RocketStream> landed = new ArrayBlockingQueue<RocketStream>(
+				1);
+		LaunchPad server = LaunchPad.serve(port).streamWindow(window)
+				.onLanding(new LaunchPad.LandingListener() {
+					@Override
+					public void onLanding(LaunchPad launchPad, Rocket rocket) {
+						landed.add(rocket.getRocketStream("data"));
+					}
+				});
+		LaunchPad client = LaunchPad.connect("127.0.0.1", port);
+		try {
+			awaitHello(client);
+			client.prepareForLaunch("stream")
+					.attach("data",
+							RocketStream.createStream(chunks(count))
+									.setChunkSize(CHUNK))
+					.launch(client.getAvailableLandingZones().get(0));
+			RocketStream stream = landed.poll(10, TimeUnit.SECONDS);
+
+			/* Nobody is reading, so the sender runs out of credit. */
+			long held = 0;
+			for (int i = 0; i < 50; i++) {
+				Thread.sleep(10);
+				held = Math.max(held, server.getInboundBytes());
+			}
+			assertTrue("held " + held, held > 0);
+			assertTrue("held " + held, held <= window + CHUNK);
+
+			/* Reading hands credit back, and the rest arrives. */
+			final ByteArrayOutputStream received = new ByteArrayOutputStream();
+			final CountDownLatch closed = new CountDownLatch(1);
+			stream.openStream(new RocketStream.StreamReader() {
+				@Override
+				public void onStreamData(ByteBuffer data) {
+					byte[] bytes = new byte[data.remaining()];
+					data.get(bytes);
+					received.write(bytes, 0, bytes.length);
+				}
+
+				@Override
+				public void onStreamClosed() {
+					closed.countDown();
+				}
+			});
+			assertTrue(closed.await(20, TimeUnit.SECONDS));
+			byte[] expected = new byte[count * CHUNK];
+			for (int i = 0; i < expected.length; i++) {
+				expected[i] = (byte) i;
+			}
+			assertArrayEquals(expected, received.toByteArray());
+		} finally {
+			client.shutdown();
+			server.shutdown();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void failedReaderAbandonsTheStream() throws IOException,
+			InterruptedException {
+		int port = freePort();
+		final BlockingQueue<Exception> serverErrors = new ArrayBlockingQueue<Exception>(
+				16);
+		final BlockingQueue<Exception> clientErrors = new ArrayBlockingQueue<Exception>(
+				16);
+		LaunchPad server = LaunchPad.serve(port).streamWindow(64 * 1024)
+				.onError(new LaunchPad.ErrorListener() {
+					@Override
+					public void onError(LaunchPad launchPad, Exception e) {
+						serverErrors.offer(e);
+					}
+				}).onLanding(new LaunchPad.LandingListener() {
+					@Override
+					public void onLanding(LaunchPad launchPad, Rocket rocket) {
+						rocket.getRocketStream("data").openStream(
+								new RocketStream.StreamReader() {
+									@Override
+									public void onStreamData(ByteBuffer data) {
+										throw new IllegalStateException(
+												"disk full");
+									}
+
+									@Override
+									public void onStreamClosed() {
+									}
+								});
+					}
+				});
+		LaunchPad client = LaunchPad.connect("127.0.0.1", port).onError(
+				new LaunchPad.ErrorListener() {
+					@Override
+					public void onError(LaunchPad launchPad, Exception e) {
+						clientErrors.offer(e);
+					}
+				});
+		try {
+			awaitHello(client);
+			client.prepareForLaunch("stream")
+					.attach("data",
+							RocketStream.createStream(chunks(100000))
+									.setChunkSize(CHUNK))
+					.launch(client.getAvailableLandingZones().get(0));
+			Exception e = serverErrors.poll(10, TimeUnit.SECONDS);
+			assertEquals("disk full", e.getMessage());
+			/* The sender is told to stop, and gives up on it. */
+			e = clientErrors.poll(10, TimeUnit.SECONDS);
+			assertTrue(e.getMessage(), e.getMessage().contains("abandoned"));
+			for (int i = 0; i < 100 && server.getInboundBytes() > 0; i++) {
+				Thread.sleep(10);
+			}
+			assertEquals(0, server.getInboundBytes());
+			assertFalse(client.getAvailableLandingZones().isEmpty());
+		} finally {
+			client.shutdown();
+			server.shutdown();
+		}
+	}
+
+	/**
+	 * Waits until the client is connected and knows the server uses flow
+	 * control; streams sent before then are not flow controlled.
+	 */
+	private static void awaitHello(LaunchPad client)
+			throws InterruptedException {
+		while (client.getAvailableLandingZones().isEmpty()
+				|| !client.getAvailableLandingZones().get(0)
+						.peerSupports(LandingZone.FEATURE_FLOW_CONTROL)) {
+			Thread.sleep(10);
+		}
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package com.jwatts.rocket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Round trips the varint and UTF-8 encodings used by the compact encoding,
+ * at the values where their lengths change, and checks that values whose
+ * declared length does not fit their type are refused.
+ *
+ * @author joeywatts
+ *
+ */
+public class RocketValueTest {
+	private static final int[] VARINTS = { 0, 1, 127, 128, 16383, 16384,
+			2097151, 2097152, 268435455, 268435456, Integer.MAX_VALUE };
+	private static final int[] VARINT_SIZES = { 1, 1, 1, 2, 2, 3, 3, 4, 4, 5,
+			5 };
+
+	private static final String[] STRINGS = { "", "a", "\u007f", "\u0080",
+			"\u07ff", "\u0800", "\ud7ff", "\ue000", "\uffff",
+			"\ud800\udc00", "\udbff\udfff", "\u00e9t\u00e9 \u6771\u4eac",
+			"a\ud83d\ude80b" };
+
+	/* Unpaired surrogates, which String.getBytes replaces with '?'. */
+	private static final String[] UNPAIRED = { "\ud800", "\udc00",
+			"a\ud800", "\udc00\ud800", "\ud800a\udc00" };
+
+	@Test
+	public void varintRoundTrips() {
+		for (int i = 0; i < VARINTS.length; i++) {
+			int value = VARINTS[i];
+			ByteBuffer buffer = ByteBuffer.allocate(5);
+			RocketValue.putVarint(buffer, value);
+			assertEquals("size of " + value, VARINT_SIZES[i],
+					RocketValue.varintSize(value));
+			assertEquals("bytes written for " + value, VARINT_SIZES[i],
+					buffer.position());
+			buffer.flip();
+			assertEquals(value, RocketValue.getVarint(buffer));
+			assertEquals(0, buffer.remaining());
+		}
+	}
+
+	@Test
+	public void varintsFollowEachOther() {
+		ByteBuffer buffer = ByteBuffer.allocate(5 * VARINTS.length);
+		for (int value : VARINTS) {
+			RocketValue.putVarint(buffer, value);
+		}
+		buffer.flip();
+		for (int value : VARINTS) {
+			assertEquals(value, RocketValue.getVarint(buffer));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void varintLongerThanFiveBytesIsMalformed() {
+		ByteBuffer buffer = ByteBuffer.wrap(new byte[] { (byte) 0x80,
+				(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0 });
+		RocketValue.getVarint(buffer);
+	}
+
+	@Test(expected = BufferUnderflowException.class)
+	public void truncatedVarintUnderflows() {
+		ByteBuffer buffer = ByteBuffer.wrap(new byte[] { (byte) 0x80 });
+		RocketValue.getVarint(buffer);
+	}
+
+	@Test
+	public void primitiveOfTheWrongLengthIsMalformed() {
+		for (int length : new int[] { -1, 0, 2, 8 }) {
+			ByteBuffer buffer = ByteBuffer.allocate(16);
+			buffer.putInt(length).put(RocketValue.TYPE_INT).putInt(7).flip();
+			try {
+				RocketValue.parse(buffer);
+				fail("accepted an int of " + length + " bytes");
+			} catch (IllegalArgumentException e) {
+				/* Expected. */
+			}
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.putInt(4).put(RocketValue.TYPE_INT).putInt(7).flip();
+		assertEquals(7, RocketValue.parse(buffer));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rocketWithPrimitiveOfTheWrongLengthIsMalformed() {
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		buffer.putInt(1).put(RocketValue.TYPE_STRING).put((byte) 't');
+		buffer.putInt(1).put(RocketValue.TYPE_STRING).put((byte) 'a');
+		buffer.putInt(2).put(RocketValue.TYPE_LONG).putLong(7);
+		buffer.flip();
+		new Rocket().parse(null, buffer);
+	}
+
+	@Test
+	public void utf8MatchesStringGetBytes() {
+		for (String s : STRINGS) {
+			assertUtf8(s);
+		}
+		for (String s : UNPAIRED) {
+			assertUtf8(s);
+		}
+	}
+
+	@Test
+	public void compactStringRoundTrips() {
+		for (String s : STRINGS) {
+			ByteBuffer buffer = ByteBuffer.allocate(RocketValue
+					.compactStringSize(s));
+			RocketValue.putCompactString(buffer, s);
+			assertEquals(0, buffer.remaining());
+			buffer.flip();
+			assertEquals(s, RocketValue.getCompactString(buffer));
+		}
+	}
+
+	@Test
+	public void compactStringLengthCrossesVarintBoundary() {
+		for (int length : new int[] { 127, 128, 16383, 16384 }) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < length; i++) {
+				sb.append('x');
+			}
+			String s = sb.toString();
+			assertEquals(RocketValue.varintSize(length) + length,
+					RocketValue.compactStringSize(s));
+			ByteBuffer buffer = ByteBuffer.allocate(RocketValue
+					.compactStringSize(s));
+			RocketValue.putCompactString(buffer, s);
+			buffer.flip();
+			assertEquals(s, RocketValue.getCompactString(buffer));
+		}
+	}
+
+	private static void assertUtf8(String s) {
+		byte[] expected = s.getBytes(RocketValue.UTF_8);
+		assertEquals("length of " + escape(s), expected.length,
+				RocketValue.utf8Length(s));
+		ByteBuffer buffer = ByteBuffer.allocate(expected.length);
+		RocketValue.putUtf8(buffer, s);
+		assertArrayEquals("encoding of " + escape(s), expected,
+				buffer.array());
+	}
+
+	private static String escape(String s) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < s.length(); i++) {
+			sb.append(String.format("\\u%04x", (int) s.charAt(i)));
+		}
+		return sb.toString();
+	}
+}
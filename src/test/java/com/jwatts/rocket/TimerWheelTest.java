@@ -0,0 +1,168 @@
+package com.jwatts.rocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Drives a TimerWheel with made up times, to check that timeouts fire once,
+ * on the first tick at or after their deadline, however far round the wheel
+ * they are and however late the wheel is expired.
+ *
+ * @author joeywatts
+ *
+ */
+public class TimerWheelTest {
+	private static final long TICK = TimerWheel.TICK_NANOS;
+
+	private TimerWheel wheel;
+	private long t0;
+	private List<Runnable> expired;
+
+	@Before
+	public void setUp() {
+		wheel = new TimerWheel();
+		t0 = System.nanoTime();
+		expired = new ArrayList<Runnable>();
+	}
+
+	private Runnable task(final List<Integer> fired, final int id) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				fired.add(id);
+			}
+		};
+	}
+
+	private static void runAll(List<Runnable> tasks) {
+		for (Runnable task : tasks) {
+			task.run();
+		}
+		tasks.clear();
+	}
+
+	@Test
+	public void firesOnFirstTickAtOrAfterDeadline() {
+		List<Integer> fired = new ArrayList<Integer>();
+		long deadline = t0 + 10 * TICK;
+		wheel.add(new TimerWheel.Timeout(task(fired, 1), deadline));
+		wheel.expire(deadline - 1, expired);
+		assertTrue(expired.isEmpty());
+		wheel.expire(deadline + TICK, expired);
+		runAll(expired);
+		assertEquals(1, fired.size());
+		wheel.expire(deadline + 2 * TICK, expired);
+		assertTrue(expired.isEmpty());
+		assertEquals(-1, wheel.nanosUntilNext(deadline + 2 * TICK));
+	}
+
+	@Test
+	public void timeoutMoreThanOneTurnAwayWaitsForItsTurn() {
+		List<Integer> fired = new ArrayList<Integer>();
+		long deadline = t0 + (TimerWheel.SLOTS + 10) * TICK;
+		wheel.add(new TimerWheel.Timeout(task(fired, 1), deadline));
+		/* Its bucket comes round once before the deadline. */
+		for (long now = t0; now < deadline; now += TICK) {
+			wheel.expire(now, expired);
+			assertTrue("fired a turn early", expired.isEmpty());
+		}
+		wheel.expire(deadline - 1, expired);
+		assertTrue(expired.isEmpty());
+		wheel.expire(deadline + TICK, expired);
+		runAll(expired);
+		assertEquals(1, fired.size());
+	}
+
+	@Test
+	public void lateExpireFiresEverythingOnce() {
+		List<Integer> fired = new ArrayList<Integer>();
+		int count = 3 * TimerWheel.SLOTS;
+		for (int i = 0; i < count; i++) {
+			wheel.add(new TimerWheel.Timeout(task(fired, i), t0 + i * TICK));
+		}
+		wheel.expire(t0 + (count + 1) * TICK, expired);
+		runAll(expired);
+		assertEquals(count, fired.size());
+		/* None twice. */
+		assertEquals(count, new HashSet<Integer>(fired).size());
+		wheel.expire(t0 + 2 * (count + 1) * TICK, expired);
+		assertTrue(expired.isEmpty());
+		assertEquals(-1, wheel.nanosUntilNext(t0 + 2 * (count + 1) * TICK));
+	}
+
+	@Test
+	public void lateExpireLeavesLaterTimeoutsAlone() {
+		List<Integer> fired = new ArrayList<Integer>();
+		wheel.add(new TimerWheel.Timeout(task(fired, 1), t0 + 5 * TICK));
+		wheel.add(new TimerWheel.Timeout(task(fired, 2), t0
+				+ (3 * TimerWheel.SLOTS + 5) * TICK));
+		wheel.expire(t0 + 2 * TimerWheel.SLOTS * TICK, expired);
+		runAll(expired);
+		assertEquals(1, fired.size());
+		assertEquals(1, fired.get(0).intValue());
+		wheel.expire(t0 + (3 * TimerWheel.SLOTS + 6) * TICK, expired);
+		runAll(expired);
+		assertEquals(2, fired.size());
+		assertEquals(2, fired.get(1).intValue());
+	}
+
+	@Test
+	public void cancelledTimeoutNeverFires() {
+		List<Integer> fired = new ArrayList<Integer>();
+		assertEquals(-1, wheel.nanosUntilNext(t0));
+		TimerWheel.Timeout cancelled = new TimerWheel.Timeout(
+				task(fired, 1), t0 + 10 * TICK);
+		TimerWheel.Timeout far = new TimerWheel.Timeout(task(fired, 2), t0
+				+ (TimerWheel.SLOTS + 50) * TICK);
+		wheel.add(cancelled);
+		wheel.add(far);
+		wheel.add(new TimerWheel.Timeout(task(fired, 3), t0 + 10 * TICK));
+		cancelled.cancel();
+		far.cancel();
+		wheel.expire(t0 + 20 * TICK, expired);
+		runAll(expired);
+		assertEquals(1, fired.size());
+		assertEquals(3, fired.get(0).intValue());
+		/* The far one is only dropped when its bucket comes round. */
+		assertTrue(wheel.nanosUntilNext(t0 + 20 * TICK) >= 0);
+		wheel.expire(t0 + (2 * TimerWheel.SLOTS + 20) * TICK, expired);
+		assertTrue(expired.isEmpty());
+		assertEquals(-1, wheel.nanosUntilNext(t0
+				+ (2 * TimerWheel.SLOTS + 20) * TICK));
+	}
+
+	@Test
+	public void pastDeadlineFiresOnNextTick() {
+		List<Integer> fired = new ArrayList<Integer>();
+		long now = t0 + 100 * TICK;
+		wheel.expire(now, expired);
+		wheel.add(new TimerWheel.Timeout(task(fired, 1), t0));
+		wheel.expire(now, expired);
+		assertTrue("fired in a tick already expired", expired.isEmpty());
+		wheel.expire(now + TICK, expired);
+		runAll(expired);
+		assertEquals(1, fired.size());
+	}
+
+	@Test
+	public void nanosUntilNextCoversTheNearestTimeout() {
+		List<Integer> fired = new ArrayList<Integer>();
+		wheel.add(new TimerWheel.Timeout(task(fired, 1), t0
+				+ (TimerWheel.SLOTS + 50) * TICK));
+		wheel.add(new TimerWheel.Timeout(task(fired, 2), t0 + 10 * TICK));
+		long wait = wheel.nanosUntilNext(t0);
+		assertTrue("waits too long: " + wait, wait <= 11 * TICK);
+		assertTrue("waits too little: " + wait, wait >= 9 * TICK);
+		wheel.expire(t0 + wait, expired);
+		runAll(expired);
+		assertEquals(1, fired.size());
+		assertEquals(2, fired.get(0).intValue());
+	}
+}